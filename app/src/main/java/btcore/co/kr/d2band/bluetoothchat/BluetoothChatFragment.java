@@ -8,7 +8,7 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.FragmentActivity;
@@ -21,6 +21,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
@@ -28,7 +29,15 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import btcore.co.kr.d2band.R;
+import btcore.co.kr.d2band.bluetoothchat.protocol.Envelope;
+import btcore.co.kr.d2band.bluetoothchat.protocol.WriteFuture;
 
 /**
  * Created by leehaneul on 2017-12-22.
@@ -51,10 +60,26 @@ public class BluetoothChatFragment extends Fragment {
     // 현재 연결중인 디바이스 네임
     private String mConnectedDeviceName = null;
 
-
     // 대화 스레드용 어댑터
     private ArrayAdapter<String> mConversationArrayAdapter;
 
+    // 대화 목록에 넣을 줄을 모아 프레임마다 한 번에 넣는다.
+    private final ConversationBatcher mBatcher = new ConversationBatcher();
+
+    // 받은 메시지를 문자열로 바꾸는 스레드. 순서를 지키도록 하나만 쓴다.
+    private final ExecutorService mDecodeExecutor = Executors.newSingleThreadExecutor();
+    // 대화 기록 중 목록에 보일 구간을 읽는다. 서비스를 만들 때 만든다.
+    private ConversationRenderer mRenderer;
+
+    // 화면을 바꾸는 리스너를 UI 스레드에서 실행한다.
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Executor mMainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mMainHandler.post(command);
+        }
+    };
+
     /**
      * String buffer for outgoing messages
      * 문자열을 추가하거나 변경 할 때 주료 사용하는 자료형
@@ -62,6 +87,10 @@ public class BluetoothChatFragment extends Fragment {
 
     private StringBuffer mOutStringBuffer;
 
+    // 보내는 메시지를 감싼다. UI 스레드만 사용한다.
+    private final Envelope mOutEnvelope = new Envelope();
+    private long mNextMessageId = 1;
+
 
     /**
      * 로컬 블루투스 어댑터( 블루투스 송수신 장치) 를 나타낸다.
@@ -88,8 +117,12 @@ public class BluetoothChatFragment extends Fragment {
             FragmentActivity activity = (FragmentActivity) getActivity();
             Snackbar.make(getActivity().getWindow().getDecorView().getRootView(), "블루투스 지원하지 않습니다.", Snackbar.LENGTH_LONG).show();
             activity.finish();
-        } else{
-          // 장치가 블루투스를 지원하는 경우
+        } else if (mBluetoothAdapter.isEnabled()) {
+            // 장치가 블루투스를 지원하는 경우
+            // 화면을 만드는 동안 마지막으로 연결했던 장치에 미리 연결을 시작한다. (장치 검색 없이)
+            // 저장된 장치가 없으면 onResume() 에서 평소처럼 듣기만 시작한다.
+            mChatService = createChatService();
+            mChatService.connectLastPeer();
         }
 
     }
@@ -109,17 +142,19 @@ public class BluetoothChatFragment extends Fragment {
             /**
              * startActivityForResult 다른 액티비티를 시작하고 그 액티비티로부터 결과를 수신 할 수 있게 해주는 방법
              */
-        }else if(mChatService == null){
+        }else if(mConversationArrayAdapter == null){
             setupChat();
         }
     }
     @Override
     public void onDestroy() {
         super.onDestroy();
-        // 블루투스 서비스 종료
+        // 블루투스 서비스 종료. 회전으로 다시 만들어질 때도 파일과 스레드를 놓아야 새 서비스가 같은 폴더를 다시 연다.
         if (mChatService != null) {
-            mChatService.stop();
+            mChatService.release();
         }
+        // 이미 넘긴 메시지는 마저 처리해 버퍼를 돌려준다. 그 뒤에 온 메시지는 서비스가 바로 놓는다.
+        mDecodeExecutor.shutdown();
     }
 
     @Override
@@ -160,6 +195,26 @@ public class BluetoothChatFragment extends Fragment {
         mConversationArrayAdapter = new ArrayAdapter<String>(getActivity(), R.layout.message);
 
         mConversationView.setAdapter(mConversationArrayAdapter);
+        mBatcher.setAdapter(mConversationView, mConversationArrayAdapter);
+        // 목록 끝에 닿으면 대화 기록의 앞뒤 구간을 읽는다. 목록에는 몇백 줄만 둔다.
+        mConversationView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (mRenderer == null || totalItemCount == 0 || visibleItemCount == totalItemCount) {
+                    return;
+                }
+                if (firstVisibleItem == 0) {
+                    mRenderer.requestOlder();
+                } else if (firstVisibleItem + visibleItemCount >= totalItemCount) {
+                    mRenderer.requestNewer();
+                }
+            }
+        });
 
         mOutEditText.setOnEditorActionListener(mWriteListener);
 
@@ -175,7 +230,10 @@ public class BluetoothChatFragment extends Fragment {
             }
         });
 
-        mChatService = new BluetoothChatService(getActivity(), mHandler);
+        // onCreate() 에서 미리 연결을 시작했으면 그 서비스를 그대로 쓴다.
+        if (mChatService == null) {
+            mChatService = createChatService();
+        }
 
         // 버퍼 초기화
         mOutStringBuffer = new StringBuffer("");
@@ -197,17 +255,23 @@ public class BluetoothChatFragment extends Fragment {
     }
 
     private void sendMessage(String message){
-        // 메시지를 보내기전에 커넥션이 되어 있는지 확인 하는 작업
-        if(mChatService.getState() != BluetoothChatService.STATE_CONNECTED){
-            Snackbar.make(getActivity().getWindow().getDecorView().getRootView(), "ITPANGPANG", Snackbar.LENGTH_LONG).show();
-            return;
-        }
-
         // 보낼 메시지가 있는지 확인하는 작업
         if(message.length() > 0){
 
-            byte[] send = message.getBytes();
-            mChatService.write(send);
+            byte[] text = message.getBytes(ConversationFormat.CHARSET);
+            mOutEnvelope.set(Envelope.TYPE_TEXT, mNextMessageId++, System.currentTimeMillis())
+                    .setPayload(text, 0, text.length);
+            byte[] send = new byte[mOutEnvelope.encodedSize()];
+            mOutEnvelope.encode(send, 0);
+            WriteFuture result = mChatService.write(send);
+            // 연결되어 있지 않으면 서비스가 보관했다가 다시 연결되면 보낸다. 보관하지 못했으면 입력을 그대로 둔다.
+            if(mChatService.getState() != BluetoothChatService.STATE_CONNECTED){
+                if(result.isDone() && !result.isSuccess()){
+                    Snackbar.make(getActivity().getWindow().getDecorView().getRootView(), "ITPANGPANG", Snackbar.LENGTH_LONG).show();
+                    return;
+                }
+                Snackbar.make(getActivity().getWindow().getDecorView().getRootView(), R.string.message_queued, Snackbar.LENGTH_SHORT).show();
+            }
             // 메시지를 전송후에 버퍼를 초기화 한후 Edittext 를 초기화 한다.
             mOutStringBuffer.setLength(0);
             mOutEditText.setText(mOutStringBuffer);
@@ -252,61 +316,69 @@ public class BluetoothChatFragment extends Fragment {
 
 
     /**
-     * The Handler that gets information back from the BluetoothChatService
-     * BluetoothChatService 에 정보를  Handler 로 담는다.
-     * Bluetooth 서비스에서 동작하는 또는 콜백 함수를 가지고 기능별 정의.
+     * BluetoothChatService 의 이벤트 중 화면 상태와 알림을 다룬다. {@link #mMainExecutor} 에서 실행된다.
+     * 대화 목록에 들어갈 메시지는 {@link ConversationRenderer} 가 백그라운드 스레드에서 만든다.
      */
-    private final Handler mHandler = new Handler() {
+    private final ChatListener mUiListener = new SimpleChatListener() {
         @Override
-        public void handleMessage(Message msg) {
-            FragmentActivity activity = (FragmentActivity) getActivity();
-            switch (msg.what) {
-                case Constants.MESSAGE_STATE_CHANGE:
-                    switch (msg.arg1) {
-                        case BluetoothChatService.STATE_CONNECTED:
-                            setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
-                            mConversationArrayAdapter.clear();
-                            break;
-                        case BluetoothChatService.STATE_CONNECTING:
-                            setStatus(R.string.title_connecting);
-                            break;
-                        case BluetoothChatService.STATE_LISTEN:
-                            setStatus("STATE_LISTEN");
-                        case BluetoothChatService.STATE_NONE:
-                            setStatus(R.string.title_not_connected);
-                            break;
-                    }
-                    break;
-                case Constants.MESSAGE_WRITE:
-                    byte[] writeBuf = (byte[]) msg.obj;
-                    // construct a string from the buffer
-                    String writeMessage = new String(writeBuf);
-                    mConversationArrayAdapter.add("Me:  " + writeMessage);
-                    break;
-                case Constants.MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    // construct a string from the valid bytes in the buffer
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    mConversationArrayAdapter.add(mConnectedDeviceName + ":  " + readMessage);
+        public void onStateChanged(int state, int previousState) {
+            switch (state) {
+                case BluetoothChatService.STATE_CONNECTED:
+                    setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
                     break;
-                case Constants.MESSAGE_DEVICE_NAME:
-                    // save the connected device's name
-                    mConnectedDeviceName = msg.getData().getString(Constants.DEVICE_NAME);
-                    if (null != activity) {
-                        Toast.makeText(activity, "Connected to "
-                                + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
-                    }
+                case BluetoothChatService.STATE_CONNECTING:
+                    setStatus(R.string.title_connecting);
                     break;
-                case Constants.MESSAGE_TOAST:
-                    if (null != activity) {
-                        Toast.makeText(activity, msg.getData().getString(Constants.TOAST),
-                                Toast.LENGTH_SHORT).show();
-                    }
+                case BluetoothChatService.STATE_LISTEN:
+                    setStatus("STATE_LISTEN");
+                case BluetoothChatService.STATE_NONE:
+                    setStatus(R.string.title_not_connected);
                     break;
             }
         }
+
+        @Override
+        public void onConnected(int peerId, String deviceName, String address) {
+            // save the connected device's name
+            mConnectedDeviceName = deviceName;
+            showToast("Connected to " + mConnectedDeviceName);
+        }
+
+        @Override
+        public void onReconnecting(String address, int attempt, long delayMillis) {
+            // 올림해서 0초로 보이지 않게 한다.
+            setStatus(getString(R.string.title_reconnecting, (delayMillis + 999) / 1000, attempt));
+        }
+
+        @Override
+        public void onReconnectGaveUp(String address, int attempts) {
+            showToast(getString(R.string.reconnect_gave_up, address));
+        }
+
+        @Override
+        public void onError(String message) {
+            showToast(message);
+        }
     };
 
+    private void showToast(String text) {
+        Activity activity = getActivity();
+        if (null != activity) {
+            Toast.makeText(activity, text, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // 화면에 관한 리스너는 UI 스레드, 메시지 디코딩은 백그라운드 스레드에서 받는다.
+    private BluetoothChatService createChatService() {
+        BluetoothChatService service = new BluetoothChatService(getActivity(), null);
+        service.addChatListener(mUiListener, mMainExecutor);
+        mRenderer = new ConversationRenderer(mBatcher, service.getHistory(), mDecodeExecutor);
+        service.addChatListener(mRenderer, mDecodeExecutor);
+        // 지난 대화의 마지막 부분을 먼저 보여 준다.
+        mRenderer.requestLatest();
+        return service;
+    }
+
     /**
      * startActivityForResult()에 전달한 요청 코드 를 가지고 처리하는 부분.
      * @param requestCode
@@ -366,6 +438,18 @@ public class BluetoothChatFragment extends Fragment {
                 startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE_SECURE);
                 return true;
             }
+            case R.id.benchmark: {
+                // 연결된 장치 하나를 골라 몇 초 동안 측정한다. 결과는 대화 목록에 나온다.
+                List<String> peers = mChatService == null
+                        ? Collections.<String>emptyList() : mChatService.getConnectedPeers();
+                if (peers.isEmpty()) {
+                    Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+                Toast.makeText(getActivity(), R.string.benchmark_running, Toast.LENGTH_SHORT).show();
+                mChatService.startBenchmark(peers.get(0), LinkBenchmark.Options.DEFAULT);
+                return true;
+            }
             case R.id.insecure_connect_scan: {
                 // Launch the DeviceListActivity to see devices and do scan
                 Intent serverIntent = new Intent(getActivity(), DeviceListActivity.class);
@@ -2,20 +2,44 @@ package btcore.co.kr.d2band.bluetoothchat;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Bundle;
-import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.os.Handler;
 
+import btcore.co.kr.d2band.bluetoothchat.buffer.BufferPool;
+import btcore.co.kr.d2band.bluetoothchat.buffer.PooledBuffer;
+import btcore.co.kr.d2band.bluetoothchat.metrics.LinkMetrics;
+import btcore.co.kr.d2band.bluetoothchat.metrics.MeteredInputStream;
+import btcore.co.kr.d2band.bluetoothchat.metrics.MeteredOutputStream;
+import btcore.co.kr.d2band.bluetoothchat.metrics.MetricsSnapshot;
+import btcore.co.kr.d2band.bluetoothchat.metrics.ServiceMetrics;
+import btcore.co.kr.d2band.bluetoothchat.protocol.Frame;
+import btcore.co.kr.d2band.bluetoothchat.protocol.FrameAssembler;
+import btcore.co.kr.d2band.bluetoothchat.protocol.FrameCipher;
+import btcore.co.kr.d2band.bluetoothchat.protocol.FrameCompressor;
+import btcore.co.kr.d2band.bluetoothchat.protocol.FrameDecompressor;
+import btcore.co.kr.d2band.bluetoothchat.protocol.FrameReader;
+import btcore.co.kr.d2band.bluetoothchat.protocol.FrameSender;
+import btcore.co.kr.d2band.bluetoothchat.protocol.FrameWriter;
+import btcore.co.kr.d2band.bluetoothchat.protocol.KeyExchange;
+import btcore.co.kr.d2band.bluetoothchat.protocol.ReceiveWindow;
+import btcore.co.kr.d2band.bluetoothchat.protocol.WriteFuture;
+import btcore.co.kr.d2band.bluetoothchat.transport.ChatChannel;
+import btcore.co.kr.d2band.bluetoothchat.transport.ChatServerChannel;
+import btcore.co.kr.d2band.bluetoothchat.transport.ChatTransport;
+
 /**
  * Created by leehaneul on 2017-12-22.
  */
@@ -23,32 +47,47 @@ import android.os.Handler;
 public class BluetoothChatService {
     private static final String TAG = "BluetoothChatService";
 
-    // 서버 소켓을 만들때 사용할 레코드 이름
-    private static final String NAME_SECURE = "BluetoothChatSecure";
-    private static final String NAME_INSECURE = "BluetoothChatInsecure";
-
-    /**
-     * 븥루투스 UUID 란 범용 고유번호 라고 불리며 128bit의 숫자들을 조합한다.
-     * 128비트의 HEX 조합은 Unique하여야 한다. Bluetooth 에서는 device 에서 제공하는 service를 검색하여 각 service 마다
-     * UUID 를 부여한다.
-     * < UUID 구성요소 >
-     * UUID = (time_low) - (time_mid) - (time_high_and_version) - (clock_seq_hi_and_reserved) - (clock_seq_low - node)
-     */
-    private static final UUID MY_UUID_SECURE =
-            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-    private static final UUID MY_UUID_INSECURE =
-            UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
-
     // 멤버 변수
-    private final BluetoothAdapter mAdapter;
-    // 기본 생성자를 통해 Handler를 생성하면, 생성되는  Handler 는 해당 Handler 를 호출한 스레드의  MessageQueue 와 Looper에 자동 연결된다.
-    private final Handler mHandler;
+    // 소켓을 만들고 연결을 받는 전송 계층 (기본값은 RFCOMM)
+    private final ChatTransport mTransport;
+    // 등록된 리스너마다 그 executor 로 이벤트를 넘긴다. Handler 도 이 중 하나로 등록된다.
+    private final ChatEvents mEvents = new ChatEvents();
     private AcceptThread mSecureAcceptThread;
     private AcceptThread mInsecureAcceptThread;
     private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
-    private int mNewState;
+    // 원격 주소별 연결 (여러 장치와 동시에 연결할 수 있다)
+    private final ConnectionManager<ConnectedThread> mConnections =
+            new ConnectionManager<ConnectedThread>();
+    // 연결마다 붙이는 번호. 리스너는 이 번호로 어느 장치의 메시지인지 구분한다.
+    private final AtomicInteger mNextPeerId = new AtomicInteger(1);
+    // 연결 상태. 읽을 때 락을 잡지 않는다.
+    private final ConnectionStateMachine mStateMachine = new ConnectionStateMachine();
+    // 보내는 프레임마다 CRC32C 를 붙일지 여부
+    private volatile boolean mChecksumEnabled;
+    // 상대방도 지원하면 DATA 프레임을 압축해서 보낼지 여부
+    private volatile boolean mCompressionEnabled = true;
+    // 연결마다 키를 교환하고 모든 프레임을 암호화할지 여부
+    private volatile boolean mEncryptionEnabled;
+    // 받은 메시지를 리스너로 넘길 때 사용하는 버퍼 풀
+    private final BufferPool mBufferPool = new BufferPool();
+    // 파일 전송 기록. 연결이 끊겨도 남아 있다가 다시 연결되면 이어서 보낸다.
+    private final FileTransferManager mFileTransfers;
+    // 대화 메시지 순서 번호와 확인받지 못한 메시지. 다시 연결되면 이어서 보낸다.
+    private final DeliveryManager mDelivery = new DeliveryManager();
+    // 연결되어 있지 않은 장치에 보낸 메시지. 지정하지 않았으면 null 이고 그런 메시지는 실패한다.
+    private volatile Outbox mOutbox;
+    // 주고받은 메시지 기록. 지정하지 않았으면 null 이고 남기지 않는다.
+    private volatile ChatHistory mHistory;
+    // 연결 시도, 실패, 끊김 횟수. 연결별 값은 ConnectedThread 마다 따로 있다.
+    private final ServiceMetrics mMetrics = new ServiceMetrics();
+    // 측정값을 주기적으로 로그에 남긴다.
+    private final MetricsReporter mMetricsReporter;
+    // 직접 연결한 장치와의 연결이 끊기면 다시 연결한다.
+    private final ReconnectScheduler mReconnect;
+    // 응답이 없는 연결을 찾아 끊는다.
+    private final KeepAliveMonitor mKeepAlive;
+    // 마지막으로 직접 연결한 장치. Context 없이 만들었으면 null
+    private final LastPeerStore mLastPeerStore;
 
 
     // 커넥션 상태를 나타낸다.
@@ -61,43 +100,332 @@ public class BluetoothChatService {
      * 블루투스 생성자
      *
      * @param context
-     * @param handler
+     * @param handler 이벤트를 {@link Constants} 메시지로 받는다. null 이면 {@link #addChatListener} 로만 받는다.
      */
     public BluetoothChatService(Context context, Handler handler) {
+        this(new RfcommTransport(BluetoothAdapter.getDefaultAdapter()), handler,
+                new LastPeerStore(context));
+        mFileTransfers.setDownloadDirectory(new File(context.getFilesDir(), "received"));
+        setOutboxDirectory(new File(context.getFilesDir(), "outbox"));
+        setHistoryDirectory(new File(context.getFilesDir(), "history"));
+    }
 
+    /**
+     * 전송 계층을 직접 지정하는 생성자.
+     * 메모리 파이프나 로컬 TCP 전송 계층을 넘기면 블루투스 장치 없이 동작을 측정할 수 있다.
+     *
+     * @param transport
+     * @param handler 이벤트를 {@link Constants} 메시지로 받는다. null 이면 {@link #addChatListener} 로만 받는다.
+     */
+    public BluetoothChatService(ChatTransport transport, Handler handler) {
+        this(transport, handler, null);
+    }
 
-        this.mAdapter = BluetoothAdapter.getDefaultAdapter();
+    private BluetoothChatService(ChatTransport transport, Handler handler,
+                                 LastPeerStore lastPeerStore) {
+        this.mTransport = transport;
+        this.mLastPeerStore = lastPeerStore;
         // 초기 생성자로 커넥션 상태는 NONE
-        this.mState = STATE_NONE;
-        this.mNewState = mState;
-        this.mHandler = handler;
+        if (handler != null) {
+            // Handler 가 스레드를 옮기므로 읽기 스레드에서 바로 메시지를 넣는다.
+            mEvents.add(new HandlerChatListener(handler), ChatEvents.DIRECT);
+        }
+        this.mFileTransfers = new FileTransferManager(mEvents);
+        this.mMetricsReporter = new MetricsReporter(new MetricsReporter.Source() {
+            @Override
+            public MetricsSnapshot snapshot() {
+                return getMetrics();
+            }
+        });
+        this.mKeepAlive = new KeepAliveMonitor(mConnections, new KeepAliveMonitor.Listener() {
+            @Override
+            public void onPeerTimeout(KeepAliveMonitor.Peer peer, long silentMillis) {
+                connectionLost((ConnectedThread) peer);
+            }
+        });
+        this.mReconnect = new ReconnectScheduler(mEvents, new ReconnectScheduler.Dialer() {
+            @Override
+            public boolean isConnected(String address) {
+                return BluetoothChatService.this.isConnected(address);
+            }
 
+            @Override
+            public void redial(String address, boolean secure) {
+                mMetrics.redials.increment();
+                dial(address, secure);
+            }
+        });
+
+        // 상태가 실제로 바뀔 때만 UI 에 알린다.
+        mStateMachine.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int oldState, int newState) {
+                // 현재 상태가 어떻게 바뀌었는지 로그 출력
+                Log.d(TAG, "onStateChanged() " + oldState + " -> " + newState);
+                // UI 액티비티를 업데이트 할 수 있도록 리스너에 새로운 상태를 알린다.
+                mEvents.onStateChanged(newState, oldState);
+            }
+        });
+    }
+
+    /**
+     * 이벤트를 받을 리스너를 등록한다. 콜백은 모두 executor 에서 실행되므로 UI 스레드를 거치지 않고
+     * 메시지를 처리할 수 있다. 같은 리스너를 두 번 등록하면 이벤트도 두 번 받는다.
+     *
+     * @param listener 받은 메시지는 다 쓰고 release() 해야 한다. {@link SimpleChatListener} 참고
+     * @param executor 콜백을 실행할 곳. 순서대로 실행해야 받은 순서가 유지된다.
+     */
+    public void addChatListener(ChatListener listener, Executor executor) {
+        if (listener == null || executor == null) {
+            throw new NullPointerException("listener=" + listener + " executor=" + executor);
+        }
+        mEvents.add(listener, executor);
+    }
 
+    /**
+     * 등록한 리스너를 뺀다. 이미 executor 에 넘긴 이벤트는 그대로 전달된다.
+     */
+    public void removeChatListener(ChatListener listener) {
+        mEvents.remove(listener);
     }
 
     /**
      * 스레드 동기화 synchronized
-     * 채팅 연결이 되면 현재 상태에 따라 UI 제목을 업데이트 한다 ( 동기화)
+     * 스레드 구성이 바뀐 뒤 호출하여 상태를 다시 계산하고, 바뀌었으면 상태 리스너(UI 제목 업데이트) 에 알린다.
      */
     private synchronized void updateUserInterfaceTitle() {
-        mState = getState();
-        // 현재 상태가 어떻게 바뀌었는지 로그 출력
-        Log.d(TAG, "updateUserInterfaceTitle() " + mNewState + " -> " + mState);
-        // UI 액티비티를 업데이트 할 수 있도록 핸들로에 새로운 상태를 지정
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, mNewState, -1).sendToTarget();
+        mStateMachine.moveTo(computeState());
+    }
+
+    /**
+     * 현재 커넥션 상태를 리턴. 락을 잡지 않으므로 어느 스레드에서든 자주 불러도 된다.
+     */
+    public int getState() {
+        return mStateMachine.get();
+    }
+
+    /**
+     * 상태가 바뀔 때마다 호출될 리스너를 등록한다. 리스너는 상태를 바꾼 스레드에서 호출된다.
+     */
+    public void addStateListener(ConnectionStateMachine.Listener listener) {
+        mStateMachine.addListener(listener);
+    }
+
+    public void removeStateListener(ConnectionStateMachine.Listener listener) {
+        mStateMachine.removeListener(listener);
+    }
+
+    /**
+     * 스레드 구성으로부터 상태를 계산한다.
+     * 연결이 하나라도 있으면 CONNECTED, 연결 시도 중이면 CONNECTING, 듣고만 있으면 LISTEN
+     */
+    private int computeState() {
+        if (!mConnections.isEmpty()) {
+            return STATE_CONNECTED;
+        }
+        if (mConnectThread != null) {
+            return STATE_CONNECTING;
+        }
+        if (mSecureAcceptThread != null || mInsecureAcceptThread != null) {
+            return STATE_LISTEN;
+        }
+        return STATE_NONE;
+    }
+
+    /**
+     * 동시에 연결할 수 있는 최대 장치 수를 지정한다. (기본값 1)
+     * 이미 연결된 장치는 끊지 않으며, 최대 수에 도달하면 새로 들어오는 연결을 거절한다.
+     */
+    public void setMaxPeers(int maxPeers) {
+        mConnections.setMaxPeers(maxPeers);
+    }
+
+    public int getMaxPeers() {
+        return mConnections.getMaxPeers();
+    }
+
+    /**
+     * 현재 연결된 장치들의 주소
+     */
+    public List<String> getConnectedPeers() {
+        List<String> peers = new ArrayList<String>();
+        for (ConnectedThread connection : mConnections.snapshot()) {
+            peers.add(connection.getRemoteAddress());
+        }
+        return peers;
+    }
+
+    public boolean isConnected(String address) {
+        return mConnections.get(address) != null;
+    }
 
+    /**
+     * 암호화된 연결이면 키 교환에서 나온 확인 값을 돌려준다. 양쪽 화면의 값이 같으면
+     * 중간에 끼어든 장치가 없다. 연결되지 않았거나 암호화하지 않았으면 null
+     */
+    public String getEncryptionFingerprint(String address) {
+        ConnectedThread r = mConnections.get(address);
+        return r != null ? r.mmFingerprint : null;
+    }
+
+    /**
+     * MESSAGE_READ 로 넘기는 {@link PooledBuffer} 를 빌려주는 풀
+     */
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * 보내는 프레임마다 CRC32C 를 붙일지 지정한다. 받는 쪽은 프레임 플래그를 보고 검사한다.
+     * 다음 연결부터 적용된다.
+     */
+    public void setChecksumEnabled(boolean enabled) {
+        mChecksumEnabled = enabled;
     }
 
     /**
-     * 현재 커넥션 상태를 리턴
+     * 보내는 메시지를 deflate 로 압축할지 지정한다. 연결할 때 HELLO 프레임으로 서로 알리고
+     * 양쪽이 모두 지원할 때만 압축한다. 압축된 데이터처럼 보이는 메시지는 압축하지 않는다.
+     * 다음 연결부터 적용된다.
      */
-    public synchronized int getState() {
-        return mState;
+    public void setCompressionEnabled(boolean enabled) {
+        mCompressionEnabled = enabled;
+    }
+
+    /**
+     * 연결하자마자 ECDH 로 키를 교환하고 이후 모든 프레임을 AES-GCM 으로 암호화한다.
+     * 페어링 없이 빠르게 연결하는 insecure RFCOMM 연결에서도 내용을 엿볼 수 없게 된다.
+     * 양쪽 모두 켜야 하며 한쪽만 켜면 연결하자마자 끊긴다 (암호화하지 않은 연결로 되돌아가지 않는다).
+     * 다음 연결부터 적용된다.
+     */
+    public void setEncryptionEnabled(boolean enabled) {
+        mEncryptionEnabled = enabled;
+    }
+
+    /**
+     * 받은 파일을 저장할 폴더. 지정하지 않으면 상대방이 보내는 파일을 거절한다.
+     */
+    public void setDownloadDirectory(File directory) {
+        mFileTransfers.setDownloadDirectory(directory);
+    }
+
+    /**
+     * 연결되어 있지 않은 장치에 보낸 메시지를 보관할 폴더. 장치마다 파일 하나를 쓴다.
+     * 지정하지 않으면 연결되어 있지 않을 때 보낸 메시지는 바로 실패한다.
+     */
+    public void setOutboxDirectory(File directory) {
+        // 같은 파일을 두 Outbox 가 매핑하지 않도록 먼저 닫는다.
+        Outbox previous = mOutbox;
+        if (previous != null) {
+            previous.close();
+        }
+        mOutbox = new Outbox(directory);
+    }
+
+    /**
+     * 주고받은 메시지를 남길 폴더. 열지 못하면 기록하지 않는다.
+     */
+    public void setHistoryDirectory(File directory) {
+        try {
+            mHistory = ChatHistory.open(directory);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open history in " + directory, e);
+        }
+    }
+
+    /**
+     * @return 대화 기록. 폴더를 지정하지 않았으면 null
+     */
+    public ChatHistory getHistory() {
+        return mHistory;
+    }
+
+    /**
+     * 장치로 보내려고 보관 중인 메시지 수
+     */
+    public int getQueuedMessageCount(String address) {
+        Outbox outbox = mOutbox;
+        return outbox != null ? outbox.pending(address) : 0;
+    }
+
+    /**
+     * 파일을 청크 단위로 보낸다. 파일 전체를 메모리에 올리지 않는다.
+     * 진행 상황은 {@link Constants#MESSAGE_FILE_TRANSFER} 로 알린다.
+     * 전송 중 연결이 끊기면 같은 장치와 다시 연결됐을 때 상대방이 확인한 위치부터 이어서 보낸다.
+     *
+     * @param address 받을 장치 주소. 지금 연결돼 있지 않으면 연결될 때까지 기다린다.
+     */
+    public FileTransfer sendFile(String address, File file) throws IOException {
+        return mFileTransfers.send(address, file);
+    }
+
+    /**
+     * 서비스와 연결별 측정값 (주고받은 바이트, 프레임, 쓰기 큐 길이, 쓰기 지연 시간, 연결 시도/끊김 횟수).
+     * 어느 스레드에서 불러도 된다.
+     */
+    public MetricsSnapshot getMetrics() {
+        List<MetricsSnapshot.Link> links = new ArrayList<MetricsSnapshot.Link>();
+        for (ConnectedThread connection : mConnections.snapshot()) {
+            links.add(connection.snapshot());
+        }
+        return new MetricsSnapshot(mMetrics, links);
+    }
+
+    /**
+     * {@link #getMetrics()} 를 intervalMillis 마다 common.logger.Log 로 남긴다. 0 이면 끈다 (기본값).
+     */
+    public void setMetricsDumpInterval(long intervalMillis) {
+        mMetricsReporter.setInterval(intervalMillis);
+    }
+
+    /**
+     * 연결된 장치와 메시지를 주고받아 왕복 시간과 처리량을 잰다. 끝날 때까지 블록되므로
+     * UI 스레드에서는 {@link #startBenchmark(String, LinkBenchmark.Options)} 를 쓴다.
+     * 상대방도 이 버전 이상이어야 답한다.
+     *
+     * @param address 원격 장치 주소
+     */
+    public LinkBenchmark.Result benchmark(String address, LinkBenchmark.Options options)
+            throws IOException, InterruptedException {
+        ConnectedThread r = mConnections.get(address);
+        if (r == null) {
+            throw new IOException("Not connected to " + address);
+        }
+        return r.mmBenchmark.run(options);
+    }
+
+    /**
+     * 별도 스레드에서 측정하고 결과를 {@link ChatListener#onBenchmark} 로 알린다.
+     * 실패하면 {@link ChatListener#onError} 로 알린다.
+     */
+    public void startBenchmark(final String address, final LinkBenchmark.Options options) {
+        new Thread("Benchmark") {
+            @Override
+            public void run() {
+                ConnectedThread r = mConnections.get(address);
+                String failure;
+                try {
+                    LinkBenchmark.Result result = benchmark(address, options);
+                    Log.i(TAG, "Benchmark " + address + ": " + result);
+                    mEvents.onBenchmark(r != null ? r.mmPeerId : -1, result);
+                    return;
+                } catch (IOException e) {
+                    Log.e(TAG, "Benchmark " + address + " failed", e);
+                    failure = e.getMessage();
+                } catch (InterruptedException e) {
+                    failure = "interrupted";
+                }
+                mEvents.onError("Benchmark failed: " + failure);
+            }
+        }.start();
     }
 
     public synchronized void start() {
         Log.d(TAG, "start");
 
+        // 예약된 재연결도 취소한다.
+        mReconnect.cancel();
+
         // 연결을 시도하는 모든 쓰레드를 취소한다.
         if (mConnectThread != null) {
             mConnectThread.cancel();
@@ -105,10 +433,18 @@ public class BluetoothChatService {
         }
 
         // 현재 커넥션 이 맺어 있는 상태라면 커넥션을 종료한다.
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        mConnections.cancelAll();
+
+        startListening();
+
+        // 현재 상태 동기화
+        updateUserInterfaceTitle();
+    }
+
+    /**
+     * 서버 소켓을 듣는 스레드가 없으면 시작한다. 기존 연결은 건드리지 않는다.
+     */
+    private synchronized void startListening() {
         // Start the thread to listen on a BluetoothServerSocket
         if (mSecureAcceptThread == null) {
             mSecureAcceptThread = new AcceptThread(true);
@@ -118,9 +454,6 @@ public class BluetoothChatService {
             mInsecureAcceptThread = new AcceptThread(false);
             mInsecureAcceptThread.start();
         }
-
-        // 현재 상태 동기화
-        updateUserInterfaceTitle();
     }
 
     /**
@@ -129,23 +462,79 @@ public class BluetoothChatService {
      * @param device
      * @param secure
      */
-    public synchronized void connect(BluetoothDevice device, boolean secure) {
-        Log.d(TAG, "connect to " + device);
+    public void connect(BluetoothDevice device, boolean secure) {
+        connect(device.getAddress(), secure);
+    }
 
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
+    /**
+     * 주소로 원격 장치에 대한 연결을 시도한다.
+     * 다른 장치와의 연결은 유지하며, 같은 주소와의 기존 연결은 새 연결이 맺어지면 교체된다.
+     *
+     * @param address 원격 장치 주소
+     * @param secure
+     */
+    public synchronized void connect(String address, boolean secure) {
+        Log.d(TAG, "connect to " + address);
+        // 연결이 끊기면 이 장치로 다시 연결한다.
+        mReconnect.remember(address, secure);
+        dial(address, secure);
+    }
+
+    /**
+     * 마지막으로 직접 연결에 성공한 장치에 다시 연결을 시도한다. 장치 검색을 거치지 않으므로
+     * 앱 시작 직후 UI 를 만드는 동안 미리 불러 두면 첫 메시지까지 걸리는 시간이 줄어든다.
+     * 다른 장치의 연결을 받을 수 있도록 듣기도 함께 시작한다.
+     *
+     * @return 저장된 장치가 있어서 연결을 시작했으면 true
+     */
+    public synchronized boolean connectLastPeer() {
+        String address = mLastPeerStore != null ? mLastPeerStore.getAddress() : null;
+        if (address == null) {
+            return false;
         }
+        Log.d(TAG, "connectLastPeer " + address);
+        startListening();
+        connect(address, mLastPeerStore.isSecure());
+        return true;
+    }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    /**
+     * 연결이 끊기거나 실패했을 때 다시 연결하는 방식. null 이면 다시 연결하지 않는다.
+     * 기본값은 {@link ReconnectPolicy#DEFAULT}.
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnect.setPolicy(policy);
+    }
+
+    public ReconnectPolicy getReconnectPolicy() {
+        return mReconnect.getPolicy();
+    }
+
+    /**
+     * 연결이 살아 있는지 확인하는 간격을 지정한다. intervalMillis 동안 받은 것이 없으면 PING 을 보내고,
+     * intervalMillis * maxMissed 동안 아무것도 받지 못하면 연결을 끊고 연결 끊김으로 처리한다.
+     * 상대방이 HELLO 로 지원한다고 알린 연결에만 적용된다.
+     *
+     * @param intervalMillis 0 이면 끈다. 기본값 {@link KeepAliveMonitor#DEFAULT_INTERVAL_MILLIS}
+     * @param maxMissed      기본값 {@link KeepAliveMonitor#DEFAULT_MAX_MISSED}
+     */
+    public void setKeepAlive(long intervalMillis, int maxMissed) {
+        mKeepAlive.setInterval(intervalMillis, maxMissed);
+        if (!mConnections.isEmpty()) {
+            mKeepAlive.start();
+        }
+    }
+
+    private synchronized void dial(String address, boolean secure) {
+        mMetrics.connectAttempts.increment();
+        // 한 번에 하나의 장치에만 연결을 시도한다.
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
         }
 
         // 지정된 장치에 연결하기 위해 스레드를 시작한다.
-        mConnectThread = new ConnectThread(device, secure);
+        mConnectThread = new ConnectThread(address, secure);
         mConnectThread.start();
 
         updateUserInterfaceTitle();
@@ -155,45 +544,33 @@ public class BluetoothChatService {
     /**
      * Start the ConnectedThread to begin managing a Bluetooth connection
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @param channel The ChatChannel on which the connection was made
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
+    public synchronized void connected(ChatChannel channel, final String socketType) {
         Log.d(TAG, "connected, Socket Type:" + socketType);
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
+        // 같은 장치에 연결을 시도하던 중이었으면 그 스레드는 정리한다.
+        if (mConnectThread != null
+                && channel.getRemoteAddress().equals(mConnectThread.getRemoteAddress())) {
             mConnectThread.cancel();
             mConnectThread = null;
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
-        }
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
-        }
-
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
+        // 듣기 스레드는 계속 두어 다른 장치의 연결도 받는다.
+        ConnectedThread connection = new ConnectedThread(channel, socketType,
+                mNextPeerId.getAndIncrement());
+        if (!mConnections.add(connection)) {
+            Log.w(TAG, "Too many peers, rejecting " + channel.getRemoteAddress());
+            connection.cancel();
+            return;
+        }
+        connection.start();
+        mReconnect.onConnected(connection.getRemoteAddress());
+        mKeepAlive.start();
 
         // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        mEvents.onConnected(connection.mmPeerId, channel.getRemoteName(), channel.getRemoteAddress());
         // Update UI title
         updateUserInterfaceTitle();
     }
@@ -204,15 +581,15 @@ public class BluetoothChatService {
     public synchronized void stop() {
         Log.d(TAG, "stop");
 
+        mReconnect.cancel();
+        mKeepAlive.stop();
+
         if (mConnectThread != null) {
             mConnectThread.cancel();
             mConnectThread = null;
         }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        mConnections.cancelAll();
 
         if (mSecureAcceptThread != null) {
             mSecureAcceptThread.cancel();
@@ -223,26 +600,123 @@ public class BluetoothChatService {
             mInsecureAcceptThread.cancel();
             mInsecureAcceptThread = null;
         }
-        mState = STATE_NONE;
         // Update UI title
         updateUserInterfaceTitle();
     }
+
+    /**
+     * 연결을 모두 끊고 서비스가 연 파일과 스레드를 정리한다. 화면을 닫을 때 부르며, 그 뒤로는 이 서비스를 쓸 수 없다.
+     * 화면을 다시 만들면 새 서비스가 같은 폴더를 다시 연다.
+     */
+    public void release() {
+        stop();
+        mReconnect.shutdown();
+        mKeepAlive.shutdown();
+        mDelivery.shutdown();
+        Outbox outbox = mOutbox;
+        mOutbox = null;
+        if (outbox != null) {
+            outbox.close();
+        }
+        ChatHistory history = mHistory;
+        mHistory = null;
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot close history", e);
+            }
+        }
+    }
+
     /**
      * Write to the ConnectedThread in an unsynchronized manner
+     * 연결된 모든 장치에 보낸다. 보낼 메시지를 쓰기 큐에 넣고 바로 돌아오며,
+     * 실제 소켓 쓰기는 연결마다 있는 쓰기 스레드에서 이루어진다.
+     * 상대방이 받았다고 확인하기 전에 연결이 끊기면 같은 장치와 다시 연결됐을 때 다시 보내고,
+     * 상대방은 이미 받은 메시지를 버린다. 돌려주는 결과는 이번 연결의 소켓 쓰기 결과다.
+     * 연결된 장치가 없으면 마지막으로 직접 연결한 장치 앞으로 보관했다가 다시 연결되면 보낸다.
      *
      * @param out The bytes to write
+     * @return 모든 장치에 대한 전송 결과. 연결되어 있지 않고 보관하지도 못했으면 이미 실패한 결과
      * @see ConnectedThread#write(byte[])
      */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+    public WriteFuture write(final byte[] out) {
+        List<ConnectedThread> connections = mConnections.snapshot();
+        if (connections.isEmpty()) {
+            String address = mLastPeerStore != null ? mLastPeerStore.getAddress() : null;
+            if (address == null) {
+                return WriteFuture.failed(new IOException("Not connected"));
+            }
+            return write(address, out);
+        }
+        List<WriteFuture> futures = new ArrayList<WriteFuture>(connections.size());
+        for (ConnectedThread r : connections) {
+            futures.add(send(r, out));
+        }
+        WriteFuture result = futures.size() == 1 ? futures.get(0) : WriteFuture.allOf(futures);
+        notifyWritten(result, out, -1);
+        return result;
+    }
+
+    /**
+     * 지정한 장치에만 보낸다. 연결되어 있지 않으면 보관했다가 다시 연결되면 보낸다.
+     * 보관한 메시지는 앱이 다시 시작돼도 남는다.
+     *
+     * @param address 원격 장치 주소
+     * @param out     The bytes to write
+     * @return 소켓에 다 쓰이면 성공하는 결과. 보관했으면 상대방이 받았다고 확인할 때 성공한다.
+     * 보관할 폴더가 없으면 연결되어 있지 않을 때 이미 실패한 결과
+     */
+    public WriteFuture write(String address, byte[] out) {
+        ConnectedThread r = mConnections.get(address);
+        if (r == null) {
+            Outbox outbox = mOutbox;
+            if (outbox == null) {
+                return WriteFuture.failed(new IOException("Not connected to " + address));
+            }
+            WriteFuture result = outbox.enqueue(address, out);
+            notifyWritten(result, out, -1);
+            return result;
+        }
+        WriteFuture result = send(r, out);
+        notifyWritten(result, out, r.mmPeerId);
+        return result;
+    }
+
+    // 보관 중인 메시지가 있으면 그 뒤에 넣어 순서를 지킨다.
+    private WriteFuture send(ConnectedThread r, byte[] out) {
+        Outbox outbox = mOutbox;
+        if (outbox != null && outbox.hasPending(r.mmAddress)) {
+            return outbox.enqueue(r.mmAddress, out);
+        }
+        return r.write(out);
+    }
+
+    // 전송이 끝나면 보낸 메시지를 다시 공유 UI 로 보여준다.
+    private void notifyWritten(WriteFuture future, final byte[] out, final int peerId) {
+        future.addListener(new WriteFuture.Listener() {
+            @Override
+            public void onWriteComplete(WriteFuture future) {
+                if (future.isSuccess()) {
+                    record(ChatHistory.SENT, null, out, 0, out.length);
+                    mEvents.onMessageSent(peerId, out);
+                }
+            }
+        });
+    }
+
+    // 리스너에 알리기 전에 남겨 두어 리스너가 바로 읽을 수 있게 한다.
+    private void record(int direction, String peerName, byte[] message, int offset, int length) {
+        ChatHistory history = mHistory;
+        if (history == null) {
+            return;
+        }
+        try {
+            history.append(direction, peerName, message, offset, length);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write history", e);
         }
-        // Perform the write unsynchronized
-        r.write(out);
     }
 
     /**
@@ -250,41 +724,42 @@ public class BluetoothChatService {
      * 서버 - 클라이언트 와 비슷한 형태로 동작
      * 연결이 수락 또는 취소 될때 까지 실행됩니다.
      *
-     * 이 스레드에서는 애플리케이션은 연결이 수락되고 BluetoothSocket을 가져오자마자 가져온 BluetoothSocket을 개별 스레드로 보내고 BluetoothServerSocket을 닫고 해당 루프를 중단합니다.
+     * 이 스레드에서는 애플리케이션은 연결이 수락되고 소켓을 가져오자마자 가져온 소켓을 개별 스레드로 보낸다.
+     * 여러 장치와 연결할 수 있도록 연결된 뒤에도 서버 소켓을 닫지 않고 계속 듣는다.
      * accept() 가 BluetoothSocket 을 반환할때 해당 소켓은 이미 연결되어 있으므로 connect를 호출해서는 안된다.
      */
     private class AcceptThread extends Thread {
 
         //The Local Sever Socet
-        private final BluetoothServerSocket mmServerSocket;
+        private final ChatServerChannel mmServerSocket;
         private String mSocketType;
+        private boolean mmCanceled;
 
         // 생성자 ( 리스닝 하는 서버 소켓 생성자.)
         public AcceptThread(boolean secure) {
-            BluetoothServerSocket tmp = null;
+            ChatServerChannel tmp = null;
             mSocketType = secure ? "Secure" : "Insecure";
 
             try {
-                if (secure) {
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, MY_UUID_SECURE);
-                } else {
-                    tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_INSECURE, MY_UUID_INSECURE);
-                }
+                tmp = mTransport.listen(secure);
             } catch (IOException e) {
                 Log.e(TAG, "Socet Type : " + mSocketType + "listen() failed", e);
             }
             mmServerSocket = tmp;
-            mState = STATE_LISTEN;
         }
 
         public void run() {
             Log.d(TAG, "Socket Type" + mSocketType + "BEGIN mAcceptThread" + this);
             setName("AcceptThread" + mSocketType);
 
-            BluetoothSocket socket = null;
+            ChatChannel socket = null;
 
-            // 연결 되어 있지 않은 상태에서는 서버 소켓을 듣고 있는다.
-            while (mState != STATE_CONNECTED) {
+            if (mmServerSocket == null) {
+                return;
+            }
+
+            // 취소될 때까지 서버 소켓을 듣고 있는다.
+            while (true) {
                 try {
                     socket = mmServerSocket.accept();
                 } catch (IOException e) {
@@ -295,20 +770,17 @@ public class BluetoothChatService {
                 // 만약 커넥션 이 수용된 상태라면
                 if (socket != null) {
                     synchronized (BluetoothChatService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                connected(socket, socket.getRemoteDevice(), mSocketType);
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
+                        if (mmCanceled) {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                Log.e(TAG, "Could not close unwanted socket", e);
+                            }
+                            break;
                         }
+                        mMetrics.accepts.increment();
+                        // 최대 연결 수를 넘으면 connected() 안에서 거절된다.
+                        connected(socket, mSocketType);
                     }
                 }
             }
@@ -316,6 +788,12 @@ public class BluetoothChatService {
         }
         public void cancel() {
             Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            synchronized (BluetoothChatService.this) {
+                mmCanceled = true;
+            }
+            if (mmServerSocket == null) {
+                return;
+            }
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
@@ -325,34 +803,40 @@ public class BluetoothChatService {
     }
 
     // 커넥션 취소했을때 불리는 함수
-    private void connectionFailed() {
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Unable to connect deviece");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-        mState = STATE_NONE;
+    private void connectionFailed(ConnectThread thread) {
+        synchronized (this) {
+            // 그 사이에 다른 연결 시도로 바뀌었으면 무시한다.
+            if (mConnectThread != thread) {
+                return;
+            }
+            mConnectThread = null;
+        }
+        mMetrics.connectFailures.increment();
+        mReconnect.onConnectFailed(thread.getRemoteAddress());
+        mEvents.onError("Unable to connect deviece");
+        // 다시 리스닝 모드 상태로 돌아간다. 다른 장치와의 연결은 유지한다.
+        startListening();
         // Update UI title
         updateUserInterfaceTitle();
-        // 다시 리스닝 모드 상태로 돌아간다.
-        BluetoothChatService.this.start();
     }
 
     // 연결이 끊어 졌음을 알리고 UI 에 알림.
-    private void connectionLost() {
+    private void connectionLost(ConnectedThread connection) {
+        // 이미 stop() 이나 같은 장치의 새 연결로 정리되었으면 알리지 않는다.
+        if (!mConnections.remove(connection)) {
+            return;
+        }
+        connection.cancel();
+        mMetrics.connectionsLost.increment();
+        mReconnect.onConnectionLost(connection.getRemoteAddress());
 
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        mEvents.onError("Device connection was lost");
+
+        // 블루투스를 리스닝 모드로 되돌린다. 다른 장치와의 연결은 유지한다.
+        startListening();
 
         // UI 업데이트
         updateUserInterfaceTitle();
-
-        // 블루투스를 리스닝 모드로 재시작한다.
-
-        BluetoothChatService.this.start();
     }
 
 
@@ -360,32 +844,32 @@ public class BluetoothChatService {
         /**
          * 블루투스 소켓(tcp 소켓과 유사) 에 대한 인터페이스를 말한다. InputStream 및 OutputStream을 통해 애플리케이션이 다른 블루투스 기기와 데이터를 교환할 수 있게 허용하는 연결 지점입니다.
          */
-        private final BluetoothSocket mmSocket;
-        // 원격 블루투스 기기를 나타낸다. 이를 사용하여 BluetoothSocket 을 통해 원격 기기와의 연결을 요청하거나 이름, 주소 , 클래스 및 연결 상태와 같은 기기 정보를 쿼리할 수 있도록 한다.
-        private final BluetoothDevice mmDevice;
+        private final ChatChannel mmSocket;
+        // 연결할 원격 장치 주소
+        private final String mmAddress;
+        private final boolean mmSecure;
         private String mSocketType;
+        // 연결에 걸린 시간을 재기 위한 시작 시각
+        private final long mmStartedAt = SystemClock.elapsedRealtime();
 
-        public ConnectThread(BluetoothDevice device, boolean secure) {
+        public ConnectThread(String address, boolean secure) {
             // 연결된 디바이스에 정보를 저장.
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+            mmAddress = address;
+            mmSecure = secure;
+            ChatChannel tmp = null;
             mSocketType = secure ? "Secure" : "Insecure";
-            // 커넥션을 위한 블루투스 소켓을 얻는 과정
-            // 블루투스 기기 줌
+            // 커넥션을 위한 소켓을 얻는 과정 (전송 계층에 위임)
             try {
-                if (secure) {
-                    // createRfcommSocketToServiceRecord 을 호출해서 BluetoothSocket 을 얻는다. ( 내가 정의한 uuid 를 통해서)
-                    tmp = device.createRfcommSocketToServiceRecord(MY_UUID_SECURE);
-                } else {
-                    // createInsecureRfcommSocketToServiceRecord 을 호출해서 블루투스 소켓을 얻는다.
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
-                }
+                tmp = mTransport.open(address, secure);
             } catch (IOException e) {
                 Log.d(TAG, "Socet Type" + mSocketType + "create() failed", e);
 
             }
             mmSocket = tmp;
-            mState = STATE_CONNECTING;
+        }
+
+        String getRemoteAddress() {
+            return mmAddress;
         }
 
         public void run() {
@@ -393,10 +877,12 @@ public class BluetoothChatService {
             // 스래드 이름 부여 (디버깅의 편리함을 위해)
             setName("ConnectThread" + mSocketType);
 
-            // 항상 스캔을 취소한뒤 연결한다 왜냐하면 커넥션 상태가 늦어지는 요소가 되기 때문이다.
-            mAdapter.cancelDiscovery();
+            if (mmSocket == null) {
+                connectionFailed(this);
+                return;
+            }
 
-            // 커넥션 가능한 블루투스 소켓을 만든다.
+            // 커넥션 가능한 소켓을 만든다. (RFCOMM 이면 스캔 취소는 전송 계층이 처리한다.)
             try {
                 // 소켓 연결 시도.
                 mmSocket.connect();
@@ -408,11 +894,28 @@ public class BluetoothChatService {
                     Log.e(TAG, "unable to close() " + mSocketType +
                             " socket during connection failure", e1);
                 }
-                connectionFailed();
+                connectionFailed(this);
+                return;
+            }
+
+            mMetrics.connectMillis.record(SystemClock.elapsedRealtime() - mmStartedAt);
+            // 연결이 끝났으므로 ConnectThread 를 비우고 연결된 스레드를 시작한다.
+            synchronized (BluetoothChatService.this) {
+                if (mConnectThread == this) {
+                    mConnectThread = null;
+                }
+                connected(mmSocket, mSocketType);
+            }
+            // 다음에 앱을 켰을 때 바로 연결할 수 있도록 기억한다.
+            if (mLastPeerStore != null && isConnected(mmAddress)) {
+                mLastPeerStore.save(mmAddress, mmSecure);
             }
         }
 
         public void cancel() {
+            if (mmSocket == null) {
+                return;
+            }
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -426,20 +929,53 @@ public class BluetoothChatService {
      * 이 스레드는 원격 장치와의 연결 중에 실행된다.
      * 모든 송수신 전송을 처리한다.
      */
-    private class ConnectedThread extends Thread {
-
-        private final BluetoothSocket mmSocket;
+    private class ConnectedThread extends Thread
+            implements KeepAliveMonitor.Peer, FileTransferManager.Link, DeliveryManager.Link,
+            LinkBenchmark.Link, Outbox.Sender {
+
+        private final ChatChannel mmSocket;
+        private final String mmAddress;
+        private final int mmPeerId;
+        private volatile boolean mmRunning = true;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        // 스트림에서 메시지 경계를 복원하는 프레임 리더
+        private final FrameReader mmFrameReader;
+        // 채널별로 조각난 메시지를 이어 붙인다.
+        private final FrameAssembler mmAssembler = new FrameAssembler();
+        // 보낼 프레임을 큐에 모아 전용 스레드에서 쓰는 sender
+        private final FrameSender mmSender;
+        // 처리한 만큼 상대방에게 credit 을 돌려주는 수신 창
+        private final ReceiveWindow mmReceiveWindow;
+        // UI 스레드가 메시지를 다 쓰면 credit 을 돌려주고 밀린 메시지 수를 줄인다.
+        private final PooledBuffer.ReleaseListener mmReleaseListener;
+        // 압축된 DATA 프레임을 푸는 데 쓴다. 읽기 스레드에서만 사용한다.
+        private final FrameDecompressor mmDecompressor = new FrameDecompressor();
+        private final boolean mmCompressionEnabled;
+        // 쓰기 스레드를 시작하기 전 키 교환에만 직접 쓴다. 그 뒤로는 mmSender 만 쓴다.
+        private final FrameWriter mmFrameWriter;
+        private final boolean mmEncryptionEnabled;
+        // 키 교환 확인 값. 암호화하지 않으면 null
+        private volatile String mmFingerprint;
+        // 마지막으로 프레임을 받은 시각 (SystemClock.elapsedRealtime)
+        private volatile long mmLastReceivedAt = SystemClock.elapsedRealtime();
+        // 상대방이 HELLO 로 PING 에 답할 수 있다고 알렸는지
+        private volatile boolean mmKeepAliveSupported;
+        // 이 연결의 바이트, 프레임, 지연 시간
+        private final LinkMetrics mmMetrics = new LinkMetrics();
+        // 성능 측정. 상대방 측정에도 답한다.
+        private final LinkBenchmark mmBenchmark = new LinkBenchmark(this);
 
         // 생성자
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
+        public ConnectedThread(ChatChannel socket, String socketType, int peerId) {
             Log.d(TAG, "Create ConnectedThread" + socketType);
             mmSocket = socket;
+            mmAddress = socket.getRemoteAddress();
+            mmPeerId = peerId;
             InputStream tmpln = null;
             OutputStream tmpOut = null;
 
-            // 블루투스 소켓 입출력 스트림 가져오기
+            // 소켓 입출력 스트림 가져오기
             try {
                 tmpln = socket.getInputStream();
                 tmpOut = socket.getOutputStream();
@@ -447,53 +983,325 @@ public class BluetoothChatService {
                 Log.e(TAG, "temp sockets not created", e);
             }
 
+            // 소켓 read()/write() 를 센다.
+            if (tmpln != null) {
+                tmpln = new MeteredInputStream(tmpln, mmMetrics);
+            }
+            if (tmpOut != null) {
+                tmpOut = new MeteredOutputStream(tmpOut, mmMetrics);
+            }
             mmInStream = tmpln;
             mmOutStream = tmpOut;
-            // 현재 연결 상태로 바꾸어준다.
-            mState = STATE_CONNECTED;
+            mmFrameReader = new FrameReader(tmpln);
+            mmFrameWriter = new FrameWriter(tmpOut);
+            mmFrameWriter.setChecksumEnabled(mChecksumEnabled);
+            mmCompressionEnabled = mCompressionEnabled;
+            mmEncryptionEnabled = mEncryptionEnabled;
+            mmSender = new FrameSender(mmFrameWriter, "WriterThread" + socketType,
+                    FrameSender.DEFAULT_QUEUE_CAPACITY, Frame.INITIAL_CREDIT,
+                    new FrameSender.Callback() {
+                        @Override
+                        public void onFrameSent(int type, byte[] payload, long queuedNanos) {
+                            mmMetrics.writeLatencyMicros.record(queuedNanos / 1000);
+                        }
+
+                        @Override
+                        public void onSendFailed(IOException e) {
+                            // 연결 끊김 처리는 읽기 루프에서 한다.
+                            Log.e(TAG, "Exception during write", e);
+                        }
+                    });
+            mmReceiveWindow = new ReceiveWindow(mmSender, Frame.INITIAL_CREDIT);
+            mmReleaseListener = new PooledBuffer.ReleaseListener() {
+                @Override
+                public void onReleased(int length) {
+                    mmMetrics.handlerBacklog.decrement();
+                    mmReceiveWindow.onReleased(length);
+                }
+            };
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmAddress;
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
+            Log.i(TAG, "BEGIN mConnectedThread " + mmAddress);
+            setName("ConnectedThread-" + mmPeerId);
+            int type;
+            // 다른 프레임보다 먼저 키를 주고받는다. 그동안 보낸 메시지는 큐에서 기다렸다가 암호화되어 나간다.
+            if (mmEncryptionEnabled && !exchangeKeys()) {
+                mmDecompressor.end();
+                return;
+            }
+            mmSender.start();
+            sendHello();
+            mFileTransfers.onLinkUp(this);
 
             // 연결된 상태에서 InputStream 계속 리스닝 상태로 둔다.
-            while (mState == STATE_CONNECTED) {
+            while (mmRunning) {
                 try {
-                    // InputStream 에 데이터를 읽는다.
-                    bytes = mmInStream.read(buffer);
-
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
+                    // 완전한 프레임 하나가 들어올 때까지 읽는다.
+                    type = mmFrameReader.readFrame();
+                    // 상대방이 스트림을 닫았다 (TCP, 메모리 파이프는 예외 대신 EOF 를 돌려준다.)
+                    if (type < 0) {
+                        throw new IOException("end of stream");
+                    }
+                    // 어떤 프레임이든 받았으면 연결은 살아 있다.
+                    mmLastReceivedAt = SystemClock.elapsedRealtime();
+                    mmMetrics.framesIn.increment();
+                    // 조각난 메시지는 마지막 조각이 올 때까지 모은다.
+                    if (!mmAssembler.add(type, mmFrameReader.getFlags(), mmFrameReader.getPayload(),
+                            mmFrameReader.getPayloadOffset(), mmFrameReader.getPayloadLength())) {
+                        continue;
+                    }
+                    dispatch(mmAssembler.getType(), mmAssembler.getFlags(),
+                            mmAssembler.getPayload(), mmAssembler.getPayloadOffset(),
+                            mmAssembler.getPayloadLength());
 
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
+                    // cancel() 로 닫은 경우는 끊김으로 알리지 않는다.
+                    if (mmRunning) {
+                        Log.e(TAG, "disconnected", e);
+                        connectionLost(this);
+                    }
                     break;
                 }
             }
+            mmDecompressor.end();
+            mFileTransfers.onLinkLost(this);
+            mDelivery.onLinkLost(this);
+            Outbox outbox = mOutbox;
+            if (outbox != null) {
+                outbox.onLinkLost(mmAddress, this);
+            }
+        }
+
+        // 완성된 메시지 하나를 종류에 따라 처리한다. payload 는 다음 프레임을 읽기 전까지만 유효하다.
+        private void dispatch(int type, int flags, byte[] payload, int offset, int length)
+                throws IOException {
+            switch (type) {
+                case Frame.TYPE_PING:
+                    mmSender.sendControl(Frame.TYPE_PONG,
+                            Arrays.copyOfRange(payload, offset, offset + length));
+                    break;
+                case Frame.TYPE_PONG:
+                    break;
+                case Frame.TYPE_CREDIT:
+                    // 상대방이 처리한 만큼 다시 보낼 수 있다.
+                    mmSender.addCredit(Frame.getInt(payload, offset));
+                    break;
+                case Frame.TYPE_HELLO:
+                    // 세션 번호가 없는 HELLO 는 0 으로 본다.
+                    onHello(Frame.getInt(payload, offset),
+                            length >= 12 ? Frame.getLong(payload, offset + 4) : 0);
+                    break;
+                case Frame.TYPE_ACK:
+                    mDelivery.onAck(this, Frame.getLong(payload, offset));
+                    break;
+                case Frame.TYPE_BENCH:
+                    mmBenchmark.onFrame(payload, offset, length);
+                    break;
+                case Frame.TYPE_KEY_EXCHANGE:
+                    // 키 교환은 암호화를 켠 쪽끼리 run() 처음에만 한다.
+                    throw new IOException("Peer requires encryption");
+                case Frame.TYPE_FILE_OFFER:
+                case Frame.TYPE_FILE_ACCEPT:
+                case Frame.TYPE_FILE_CHUNK:
+                case Frame.TYPE_FILE_ACK:
+                case Frame.TYPE_FILE_CANCEL:
+                    mFileTransfers.onFrame(this, type, payload, offset, length);
+                    break;
+                case Frame.TYPE_DATA:
+                    // 읽기 버퍼는 다음 프레임에서 덮어쓰므로 풀에서 빌린 버퍼에 복사해서 넘긴다.
+                    // 받은 리스너가 다 쓰고 release() 하면 풀로 돌아가고 그만큼 credit 을 돌려준다.
+                    PooledBuffer message = readPayload(flags, payload, offset, length);
+                    if ((flags & Frame.FLAG_SEQUENCED) != 0 && !stripSequence(message)) {
+                        break;
+                    }
+                    message.setReleaseListener(mmReleaseListener);
+                    mmMetrics.messagesIn.increment();
+                    mmMetrics.messageSizeIn.record(message.length());
+                    mmMetrics.handlerBacklog.increment();
+                    record(ChatHistory.RECEIVED, mmSocket.getRemoteName(), message.array(), 0,
+                            message.length());
+                    mEvents.onMessage(mmPeerId, message);
+                    break;
+                default:
+                    Log.w(TAG, "Unknown frame type " + type);
+                    break;
+            }
+        }
 
+        // 공개 키를 보내고 상대방 공개 키를 받아 양쪽 방향의 암호를 설정한다.
+        // 쓰기 스레드를 시작하기 전이므로 FrameWriter 를 직접 쓴다.
+        private boolean exchangeKeys() {
+            try {
+                KeyExchange exchange = new KeyExchange();
+                mmFrameWriter.writeFrame(Frame.TYPE_KEY_EXCHANGE, exchange.getPublicKey());
+                int type = mmFrameReader.readFrame();
+                if (type != Frame.TYPE_KEY_EXCHANGE) {
+                    throw new IOException(type < 0 ? "end of stream"
+                            : "Peer did not enable encryption (frame type " + type + ")");
+                }
+                int offset = mmFrameReader.getPayloadOffset();
+                FrameCipher[] ciphers = exchange.agree(Arrays.copyOfRange(mmFrameReader.getPayload(),
+                        offset, offset + mmFrameReader.getPayloadLength()));
+                mmFrameWriter.setCipher(ciphers[0]);
+                mmFrameReader.setCipher(ciphers[1]);
+                mmFingerprint = exchange.getFingerprint();
+                mmLastReceivedAt = SystemClock.elapsedRealtime();
+                Log.i(TAG, "Encrypted link to " + mmAddress + ", fingerprint " + mmFingerprint);
+                return true;
+            } catch (IOException e) {
+                if (mmRunning) {
+                    Log.e(TAG, "key exchange with " + mmAddress + " failed", e);
+                    mEvents.onError("Encryption failed: " + e.getMessage());
+                    connectionLost(this);
+                }
+                return false;
+            }
+        }
+
+        // 연결 직후 이쪽이 지원하는 기능을 알린다.
+        private void sendHello() {
+            byte[] payload = new byte[12];
+            Frame.putInt(payload, 0, Frame.CAP_KEEPALIVE | Frame.CAP_FRAGMENT | Frame.CAP_RELIABLE
+                    | (mmCompressionEnabled ? Frame.CAP_DEFLATE : 0));
+            Frame.putLong(payload, 4, mDelivery.getSessionId());
+            mmSender.sendControl(Frame.TYPE_HELLO, payload);
+        }
+
+        private void onHello(int capabilities, long session) {
+            Log.d(TAG, "HELLO from " + mmAddress + " capabilities=" + capabilities);
+            if (mmCompressionEnabled && (capabilities & Frame.CAP_DEFLATE) != 0) {
+                mmSender.setCompressor(new FrameCompressor());
+            }
+            mmKeepAliveSupported = (capabilities & Frame.CAP_KEEPALIVE) != 0;
+            mmSender.setFragmentationEnabled((capabilities & Frame.CAP_FRAGMENT) != 0);
+            // 압축, 조각내기를 정한 뒤에 확인받지 못한 메시지를 다시 보낸다.
+            if ((capabilities & Frame.CAP_RELIABLE) != 0) {
+                mDelivery.onHello(this, session);
+            }
+            // 그다음에 연결되어 있지 않을 때 보관한 메시지를 보낸다.
+            Outbox outbox = mOutbox;
+            if (outbox != null) {
+                outbox.flush(mmAddress, this);
+            }
+        }
+
+        // 메시지 앞의 순서 번호를 떼어 낸다. 이미 받은 메시지면 버리고 false 를 돌려준다.
+        // 번호 크기만큼의 credit 은 화면에서 쓰기를 기다리지 않고 바로 돌려준다.
+        private boolean stripSequence(PooledBuffer message) throws IOException {
+            byte[] array = message.array();
+            int length = message.length();
+            if (length < DeliveryManager.SEQ_SIZE) {
+                message.release();
+                throw new IOException("Sequenced message too short: " + length);
+            }
+            if (!mDelivery.onReceived(this, Frame.getLong(array, 0))) {
+                message.release();
+                mmReceiveWindow.consumed(length);
+                return false;
+            }
+            System.arraycopy(array, DeliveryManager.SEQ_SIZE, array, 0,
+                    length - DeliveryManager.SEQ_SIZE);
+            message.setLength(length - DeliveryManager.SEQ_SIZE);
+            mmReceiveWindow.consumed(DeliveryManager.SEQ_SIZE);
+            return true;
+        }
+
+        // payload 를 풀에서 빌린 버퍼로 옮긴다. 압축돼 있으면 풀면서 옮긴다.
+        private PooledBuffer readPayload(int flags, byte[] payload, int offset, int length)
+                throws IOException {
+            if ((flags & Frame.FLAG_COMPRESSED) == 0) {
+                return mBufferPool.acquire(length).put(payload, offset, length);
+            }
+            PooledBuffer buffer = mBufferPool.acquire(
+                    FrameDecompressor.originalLength(payload, offset, length));
+            try {
+                buffer.setLength(mmDecompressor.decompress(payload, offset, length,
+                        buffer.array(), 0));
+            } catch (IOException e) {
+                buffer.release();
+                throw e;
+            }
+            return buffer;
         }
 
         /**
-         * mmOutStream 스트림에 버퍼에대한 내용을 쓴다.
+         * 버퍼 내용을 DATA 프레임 하나로 쓰기 큐에 넣는다. 블록되지 않는다.
+         * 버퍼는 전송이 끝날 때까지 수정하면 안 된다.
+         * 상대방이 확인하기 전에 연결이 끊기면 다시 연결됐을 때 한 번 더 보낸다.
          *
          * @param buffer
          */
-        public void write(byte[] buffer) {
+        public WriteFuture write(byte[] buffer) {
+            mmMetrics.messagesOut.increment();
+            return mDelivery.send(this, buffer);
+        }
 
-            try {
-                mmOutStream.write(buffer);
+        // 보관함에서 꺼낸 메시지. 상대방이 확인해야 보관함에서 지운다.
+        @Override
+        public WriteFuture deliver(byte[] message) {
+            mmMetrics.messagesOut.increment();
+            WriteFuture acked = new WriteFuture();
+            mDelivery.send(this, message, acked);
+            return acked;
+        }
 
-                // 보낸 메시지를 다시 공유 UI 로 보여준다.
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
+        MetricsSnapshot.Link snapshot() {
+            return new MetricsSnapshot.Link(mmAddress, mmPeerId, mmMetrics, mmSender.pending(),
+                    mmSender.getCredit(), mDelivery.pending(mmAddress));
+        }
+
+        @Override
+        public WriteFuture send(int type, int flags, byte[] payload) {
+            return mmSender.send(type, flags, payload);
+        }
+
+        @Override
+        public long getLastReceivedAt() {
+            return mmLastReceivedAt;
+        }
+
+        @Override
+        public boolean isKeepAliveSupported() {
+            return mmKeepAliveSupported;
+        }
+
+        @Override
+        public void sendPing() {
+            byte[] payload = new byte[8];
+            Frame.putLong(payload, 0, System.nanoTime());
+            mmSender.sendControl(Frame.TYPE_PING, payload);
+        }
+
+        @Override
+        public int getPeerId() {
+            return mmPeerId;
+        }
+
+        @Override
+        public WriteFuture sendBulk(int type, byte[] payload) {
+            return mmSender.sendBulk(type, payload);
+        }
+
+        @Override
+        public WriteFuture sendControl(int type, byte[] payload) {
+            return mmSender.sendControl(type, payload);
+        }
+
+        @Override
+        public void consumed(int bytes) {
+            mmReceiveWindow.consumed(bytes);
         }
 
+        @Override
         public void cancel() {
+            mmRunning = false;
+            mmSender.close();
             try {
                 mmSocket.close();
             } catch (IOException e) {
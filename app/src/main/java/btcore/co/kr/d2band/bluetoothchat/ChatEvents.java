@@ -0,0 +1,208 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import btcore.co.kr.d2band.bluetoothchat.buffer.PooledBuffer;
+
+/**
+ * 등록된 {@link ChatListener} 마다 그 executor 로 이벤트를 넘긴다.
+ * 서비스 내부는 이 객체 하나만 {@link ChatListener} 로 보고 부른다. 어느 스레드에서 불러도 된다.
+ */
+class ChatEvents implements ChatListener {
+
+    private static final String TAG = "ChatEvents";
+
+    // 부른 스레드에서 바로 실행한다. Handler 처럼 스스로 스레드를 옮기는 리스너에 쓴다.
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final class Registration {
+        final ChatListener listener;
+        final Executor executor;
+
+        Registration(ChatListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    // 이벤트는 자주, 등록은 드물게 일어난다.
+    private final List<Registration> mRegistrations = new CopyOnWriteArrayList<Registration>();
+
+    void add(ChatListener listener, Executor executor) {
+        mRegistrations.add(new Registration(listener, executor));
+    }
+
+    void remove(ChatListener listener) {
+        for (Registration registration : mRegistrations) {
+            if (registration.listener == listener) {
+                mRegistrations.remove(registration);
+            }
+        }
+    }
+
+    // 리스너 하나가 던진 예외나 거절한 executor 때문에 읽기 스레드가 멈추지 않도록 한다.
+    private static void post(final Registration registration, final Event event) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    event.deliver(registration.listener);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Listener " + registration.listener + " failed", e);
+                }
+            }
+        };
+        try {
+            registration.executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Executor rejected event for " + registration.listener, e);
+            event.dropped();
+        }
+    }
+
+    private void dispatch(Event event) {
+        for (Registration registration : mRegistrations) {
+            post(registration, event);
+        }
+    }
+
+    private abstract static class Event {
+        abstract void deliver(ChatListener listener);
+
+        // executor 가 거절해 전달하지 못했다.
+        void dropped() {
+        }
+    }
+
+    @Override
+    public void onStateChanged(final int state, final int previousState) {
+        dispatch(new Event() {
+            @Override
+            void deliver(ChatListener listener) {
+                listener.onStateChanged(state, previousState);
+            }
+        });
+    }
+
+    @Override
+    public void onConnected(final int peerId, final String deviceName, final String address) {
+        dispatch(new Event() {
+            @Override
+            void deliver(ChatListener listener) {
+                listener.onConnected(peerId, deviceName, address);
+            }
+        });
+    }
+
+    /**
+     * 리스너마다 참조를 하나씩 넘긴다. 리스너가 없으면 바로 놓아 credit 을 돌려준다.
+     */
+    @Override
+    public void onMessage(final int peerId, final PooledBuffer message) {
+        List<Registration> registrations = mRegistrations;
+        int count = registrations.size();
+        if (count == 0) {
+            message.release();
+            return;
+        }
+        // 처음 하나는 넘겨받은 참조를 그대로 쓰고 나머지 리스너 몫만 더 잡는다.
+        // 첫 리스너가 먼저 놓아도 풀로 돌아가지 않도록 넘기기 전에 모두 잡아 둔다.
+        for (int i = 1; i < count; i++) {
+            message.retain();
+        }
+        Event event = new Event() {
+            @Override
+            void deliver(ChatListener listener) {
+                listener.onMessage(peerId, message);
+            }
+
+            @Override
+            void dropped() {
+                message.release();
+            }
+        };
+        int delivered = 0;
+        for (Registration registration : registrations) {
+            if (delivered == count) {
+                // 세는 사이에 리스너가 추가됐다. 몫이 없으므로 이번 메시지는 건너뛴다.
+                break;
+            }
+            post(registration, event);
+            delivered++;
+        }
+        // 세는 사이에 리스너가 빠졌으면 남은 몫을 놓는다.
+        for (; delivered < count; delivered++) {
+            message.release();
+        }
+    }
+
+    @Override
+    public void onMessageSent(final int peerId, final byte[] message) {
+        dispatch(new Event() {
+            @Override
+            void deliver(ChatListener listener) {
+                listener.onMessageSent(peerId, message);
+            }
+        });
+    }
+
+    @Override
+    public void onFileTransfer(final int peerId, final FileTransfer transfer, final int state) {
+        dispatch(new Event() {
+            @Override
+            void deliver(ChatListener listener) {
+                listener.onFileTransfer(peerId, transfer, state);
+            }
+        });
+    }
+
+    @Override
+    public void onReconnecting(final String address, final int attempt, final long delayMillis) {
+        dispatch(new Event() {
+            @Override
+            void deliver(ChatListener listener) {
+                listener.onReconnecting(address, attempt, delayMillis);
+            }
+        });
+    }
+
+    @Override
+    public void onReconnectGaveUp(final String address, final int attempts) {
+        dispatch(new Event() {
+            @Override
+            void deliver(ChatListener listener) {
+                listener.onReconnectGaveUp(address, attempts);
+            }
+        });
+    }
+
+    @Override
+    public void onBenchmark(final int peerId, final LinkBenchmark.Result result) {
+        dispatch(new Event() {
+            @Override
+            void deliver(ChatListener listener) {
+                listener.onBenchmark(peerId, result);
+            }
+        });
+    }
+
+    @Override
+    public void onError(final String message) {
+        dispatch(new Event() {
+            @Override
+            void deliver(ChatListener listener) {
+                listener.onError(message);
+            }
+        });
+    }
+}
@@ -0,0 +1,322 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import btcore.co.kr.d2band.bluetoothchat.protocol.Envelope;
+import btcore.co.kr.d2band.bluetoothchat.protocol.Varint;
+import btcore.co.kr.d2band.bluetoothchat.store.HistoryStore;
+import btcore.co.kr.d2band.bluetoothchat.store.InvertedIndex;
+import btcore.co.kr.d2band.bluetoothchat.store.Tokenizer;
+
+/**
+ * 주고받은 메시지를 순서대로 남기는 대화 기록. 서비스가 받은 메시지와 소켓에 다 쓴 메시지를 덧붙이고,
+ * 화면은 필요한 구간만 읽어 보여 준다. 앱을 다시 켜도 남는다.
+ *
+ * <pre>
+ * | direction 1 | 시각 varint (ms) | 이름 길이 varint | 장치 이름 (UTF-8) | 메시지 |
+ * </pre>
+ *
+ * <p>메시지는 주고받은 바이트 그대로다 ({@link btcore.co.kr.d2band.bluetoothchat.protocol.Envelope}
+ * 이거나 예전 버전의 문자열). 기록 번호는 0 부터 늘어나며 {@link HistoryStore} 의 번호와 같다.
+ * 어느 스레드에서 불러도 된다.</p>
+ *
+ * <p>문자열 메시지와 알림은 {@link InvertedIndex} 에 넣어 {@link #search} 로 찾는다. 색인은 메모리에만 있어
+ * 열 때 색인 스레드가 기록을 처음부터 읽어 다시 만들고, 그 뒤로는 덧붙인 기록을 넘겨받아 넣는다.
+ * 덧붙이는 스레드는 기록 파일에 쓰기만 하고 색인을 기다리지 않는다. 낱말 나누기는 색인 스레드가
+ * 락 밖에서 하고, 검색과 같은 락은 나눈 낱말을 합칠 때만 잡는다.</p>
+ */
+public final class ChatHistory implements Closeable {
+
+    public static final int RECEIVED = 1;
+    public static final int SENT = 2;
+    // 파일 전송 결과처럼 화면에 남길 알림. 메시지는 UTF-8 문자열이다.
+    public static final int NOTICE = 3;
+
+    private static final String TAG = "ChatHistory";
+
+    private static final byte[] NO_NAME = new byte[0];
+    // 색인 스레드가 한 번에 넣는 기록 수
+    private static final int INDEX_BATCH = 256;
+    // 닫을 때 색인 스레드를 깨운다.
+    private static final Appended CLOSED = new Appended(-1, null);
+
+    // 덧붙인 기록. 색인 스레드가 파일을 다시 읽지 않고 넣는다.
+    private static final class Appended {
+        final long id;
+        final byte[] record;
+
+        Appended(long id, byte[] record) {
+            this.id = id;
+            this.record = record;
+        }
+    }
+
+    private final HistoryStore mStore;
+    // 색인 스레드만 고친다. 검색과는 자신으로 동기화한다.
+    private final InvertedIndex mIndex = new InvertedIndex();
+    // 색인에 넣은 기록 수. mIndex 로 보호한다.
+    private long mIndexed;
+    private final BlockingQueue<Appended> mAppended = new LinkedBlockingQueue<Appended>();
+    private volatile boolean mClosed;
+
+    private ChatHistory(HistoryStore store) {
+        this.mStore = store;
+    }
+
+    public static ChatHistory open(File directory) throws IOException {
+        final ChatHistory history = new ChatHistory(HistoryStore.open(directory));
+        Thread indexer = new Thread("HistoryIndex") {
+            @Override
+            public void run() {
+                history.indexLoop();
+            }
+        };
+        indexer.setDaemon(true);
+        indexer.setPriority(Thread.MIN_PRIORITY);
+        indexer.start();
+        return history;
+    }
+
+    /**
+     * 돌아오면 {@link #read} 로 바로 읽을 수 있다. 색인에는 조금 뒤에 들어간다.
+     *
+     * @return 덧붙인 기록의 번호
+     */
+    public long append(int direction, String peerName, byte[] message, int offset, int length)
+            throws IOException {
+        byte[] name = peerName != null ? peerName.getBytes(ConversationFormat.CHARSET) : NO_NAME;
+        long timestamp = System.currentTimeMillis();
+        byte[] record = new byte[1 + Varint.size(timestamp) + Varint.size(name.length)
+                + name.length + length];
+        int pos = 0;
+        record[pos++] = (byte) direction;
+        pos += Varint.write(record, pos, timestamp);
+        pos += Varint.write(record, pos, name.length);
+        System.arraycopy(name, 0, record, pos, name.length);
+        pos += name.length;
+        System.arraycopy(message, offset, record, pos, length);
+        // 번호는 HistoryStore 의 락 안에서 정해진다. 색인 순서는 색인 스레드가 맞춘다.
+        long id = mStore.append(record, 0, record.length);
+        mAppended.offer(new Appended(id, record));
+        return id;
+    }
+
+    public long appendNotice(String text) throws IOException {
+        byte[] message = text.getBytes(ConversationFormat.CHARSET);
+        return append(NOTICE, null, message, 0, message.length);
+    }
+
+    /**
+     * 기록 수. 다음에 덧붙일 기록의 번호와 같다.
+     */
+    public long size() {
+        return mStore.size();
+    }
+
+    /**
+     * from 번부터 max 개까지 읽는다. 기록은 {@link Entry#parse(byte[])} 로 푼다.
+     *
+     * @return 읽은 기록 수
+     */
+    public int read(long from, int max, List<byte[]> out) throws IOException {
+        return mStore.read(from, max, out);
+    }
+
+    /**
+     * 검색어의 낱말마다 그 낱말로 시작하는 낱말이 들어 있는 메시지를 찾는다.
+     * 한글 낱말은 가운데부터도 찾는다 ({@link Tokenizer}).
+     *
+     * @param limit 돌려줄 최대 수
+     * @return 기록 번호. 최근 것부터. 색인에 아직 넣지 않은 기록은 찾지 못한다 ({@link #isSearchReady()})
+     */
+    public long[] search(String query, int limit) {
+        synchronized (mIndex) {
+            return mIndex.search(query, limit);
+        }
+    }
+
+    /**
+     * 모든 기록이 색인에 들어 있으면 true. 여는 동안 색인을 다시 만드는 중이면 false
+     */
+    public boolean isSearchReady() {
+        synchronized (mIndex) {
+            return mIndexed == mStore.size();
+        }
+    }
+
+    // 색인 스레드. mIndexed 번부터 순서대로 넣는다. 덧붙인 기록은 넘겨받은 것을 쓰고,
+    // 여러 스레드가 덧붙여 순서가 섞였거나 열 때 있던 기록이면 파일에서 읽는다.
+    private void indexLoop() {
+        Map<Long, byte[]> appended = new HashMap<Long, byte[]>();
+        List<byte[]> records = new ArrayList<byte[]>(INDEX_BATCH);
+        List<List<String>> tokens = new ArrayList<List<String>>(INDEX_BATCH);
+        Envelope envelope = new Envelope();
+        Entry entry = new Entry();
+        long start = System.nanoTime();
+        boolean rebuilt = false;
+        long from = 0;
+        while (!mClosed) {
+            Appended next;
+            while ((next = mAppended.poll()) != null) {
+                if (next == CLOSED) {
+                    return;
+                }
+                // 넘겨받기 전에 파일에서 읽어 이미 넣은 기록이면 버린다.
+                if (next.id >= from) {
+                    appended.put(next.id, next.record);
+                }
+            }
+            if (from == mStore.size()) {
+                if (!rebuilt) {
+                    rebuilt = true;
+                    Log.d(TAG, "Indexed " + from + " messages in "
+                            + (System.nanoTime() - start) / 1000000 + "ms, "
+                            + mIndex.termCount() + " terms");
+                }
+                try {
+                    next = mAppended.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (next == CLOSED) {
+                    return;
+                }
+                if (next.id >= from) {
+                    appended.put(next.id, next.record);
+                }
+                continue;
+            }
+            records.clear();
+            byte[] record;
+            while (records.size() < INDEX_BATCH
+                    && (record = appended.remove(from + records.size())) != null) {
+                records.add(record);
+            }
+            if (records.isEmpty()) {
+                try {
+                    mStore.read(from, INDEX_BATCH, records);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot read history for indexing", e);
+                    return;
+                }
+                for (int i = 0; i < records.size(); i++) {
+                    appended.remove(from + i);
+                }
+            }
+            // 낱말 나누기는 검색을 막지 않도록 락 밖에서 한다.
+            tokens.clear();
+            for (int i = 0; i < records.size(); i++) {
+                List<String> list = new ArrayList<String>();
+                try {
+                    entry.parse(records.get(i));
+                    String text = text(envelope, entry.getMessageArray(),
+                            entry.getMessageOffset(), entry.getMessageLength());
+                    if (text != null) {
+                        Tokenizer.tokenize(text, list);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Skipping malformed history record " + (from + i), e);
+                }
+                tokens.add(list);
+            }
+            synchronized (mIndex) {
+                for (int i = 0; i < tokens.size(); i++) {
+                    mIndex.add(from + i, tokens.get(i));
+                }
+                from += tokens.size();
+                mIndexed = from;
+            }
+        }
+    }
+
+    // 색인에 넣을 문자열. 문자열이 아닌 메시지는 null
+    private static String text(Envelope envelope, byte[] message, int offset, int length) {
+        if (!Envelope.isEnvelope(message, offset, length)) {
+            return new String(message, offset, length, ConversationFormat.CHARSET);
+        }
+        try {
+            envelope.decode(message, offset, length);
+        } catch (IOException e) {
+            return null;
+        }
+        if (envelope.getType() != Envelope.TYPE_TEXT) {
+            return null;
+        }
+        return new String(envelope.getPayloadArray(), envelope.getPayloadOffset(),
+                envelope.getPayloadLength(), ConversationFormat.CHARSET);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mAppended.offer(CLOSED);
+        mStore.close();
+    }
+
+    /**
+     * 읽은 기록 하나를 푼다. 다시 써서 기록마다 만들지 않는다.
+     */
+    public static final class Entry {
+
+        private byte[] mRecord;
+        private int mDirection;
+        private long mTimestamp;
+        private int mNameOffset;
+        private int mNameLength;
+        private int mMessageOffset;
+
+        public Entry parse(byte[] record) throws IOException {
+            if (record.length < 3) {
+                throw new IOException("History record too short: " + record.length);
+            }
+            int pos = 0;
+            mDirection = record[pos++];
+            mTimestamp = Varint.read(record, pos, record.length);
+            pos += Varint.size(mTimestamp);
+            long nameLength = Varint.read(record, pos, record.length);
+            pos += Varint.size(nameLength);
+            if (nameLength > record.length - pos) {
+                throw new IOException("Bad name length " + nameLength);
+            }
+            mRecord = record;
+            mNameOffset = pos;
+            mNameLength = (int) nameLength;
+            mMessageOffset = pos + mNameLength;
+            return this;
+        }
+
+        public int getDirection() {
+            return mDirection;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public String getPeerName() {
+            return new String(mRecord, mNameOffset, mNameLength, ConversationFormat.CHARSET);
+        }
+
+        public byte[] getMessageArray() {
+            return mRecord;
+        }
+
+        public int getMessageOffset() {
+            return mMessageOffset;
+        }
+
+        public int getMessageLength() {
+            return mRecord.length - mMessageOffset;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import btcore.co.kr.d2band.bluetoothchat.buffer.PooledBuffer;
+
+/**
+ * {@link BluetoothChatService} 의 이벤트를 받는다.
+ *
+ * <p>{@link BluetoothChatService#addChatListener(ChatListener, java.util.concurrent.Executor)} 에 넘긴
+ * executor 에서 호출된다. 저장, 중계처럼 UI 와 상관없는 처리는 백그라운드 executor 를 넘기면
+ * UI 스레드를 거치지 않는다. 같은 리스너에 대한 호출 순서가 중요하면 스레드 하나짜리 executor 를 쓴다.
+ * 모두 구현할 필요가 없으면 {@link SimpleChatListener} 를 상속한다.</p>
+ *
+ * <p>peerId 는 연결마다 붙는 번호이고 -1 은 모든 장치 또는 연결이 없는 상태를 뜻한다.</p>
+ */
+public interface ChatListener {
+
+    /**
+     * @param state         {@link BluetoothChatService#STATE_CONNECTED} 등
+     * @param previousState 바로 전 상태
+     */
+    void onStateChanged(int state, int previousState);
+
+    void onConnected(int peerId, String deviceName, String address);
+
+    /**
+     * 대화 메시지를 받았다. 다 쓰면 반드시 {@link PooledBuffer#release()} 해야 한다.
+     * 놓기 전까지는 그만큼 상대방이 더 보내지 못한다 (흐름 제어).
+     */
+    void onMessage(int peerId, PooledBuffer message);
+
+    /**
+     * write() 한 메시지가 소켓에 쓰였다.
+     */
+    void onMessageSent(int peerId, byte[] message);
+
+    /**
+     * 파일 전송 상태나 진행률이 바뀌었다. 다른 스레드에서 호출되는 동안 transfer 는 계속 바뀌므로
+     * 알린 시점의 상태는 state 로 받는다.
+     *
+     * @param state {@link FileTransfer#STATE_DONE} 등
+     */
+    void onFileTransfer(int peerId, FileTransfer transfer, int state);
+
+    /**
+     * 끊긴 장치에 delayMillis 뒤 attempt 번째로 다시 연결한다.
+     */
+    void onReconnecting(String address, int attempt, long delayMillis);
+
+    void onReconnectGaveUp(String address, int attempts);
+
+    void onBenchmark(int peerId, LinkBenchmark.Result result);
+
+    /**
+     * 연결 실패, 끊김처럼 사용자에게 알릴 오류
+     */
+    void onError(String message);
+}
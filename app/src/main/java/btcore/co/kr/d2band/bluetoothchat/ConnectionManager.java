@@ -0,0 +1,95 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 원격 주소별로 동시에 여러 연결을 관리한다.
+ * 읽기는 락 없이 ConcurrentHashMap 으로 하고, 추가/교체는 최대 연결 수를 지키기 위해 동기화한다.
+ *
+ * @param <T> 연결 하나를 나타내는 타입 (BluetoothChatService 의 ConnectedThread)
+ */
+class ConnectionManager<T extends ConnectionManager.Connection> {
+
+    /**
+     * 관리 대상 연결
+     */
+    interface Connection {
+        String getRemoteAddress();
+
+        void cancel();
+    }
+
+    public static final int DEFAULT_MAX_PEERS = 1;
+
+    private final ConcurrentMap<String, T> mConnections = new ConcurrentHashMap<String, T>();
+    private volatile int mMaxPeers = DEFAULT_MAX_PEERS;
+
+    void setMaxPeers(int maxPeers) {
+        if (maxPeers < 1) {
+            throw new IllegalArgumentException("maxPeers < 1");
+        }
+        mMaxPeers = maxPeers;
+    }
+
+    int getMaxPeers() {
+        return mMaxPeers;
+    }
+
+    /**
+     * 연결을 추가한다. 같은 주소에 이미 연결이 있으면 새 연결로 교체하고 이전 연결은 끊는다.
+     *
+     * @return 최대 연결 수를 넘어서 추가하지 못했으면 false
+     */
+    synchronized boolean add(T connection) {
+        String address = connection.getRemoteAddress();
+        T previous = mConnections.get(address);
+        if (previous == null && mConnections.size() >= mMaxPeers) {
+            return false;
+        }
+        mConnections.put(address, connection);
+        if (previous != null && previous != connection) {
+            previous.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * 해당 연결이 아직 등록되어 있을 때만 제거한다. (이미 새 연결로 교체되었으면 무시)
+     */
+    synchronized boolean remove(T connection) {
+        return mConnections.remove(connection.getRemoteAddress(), connection);
+    }
+
+    T get(String address) {
+        return mConnections.get(address);
+    }
+
+    boolean isFull() {
+        return mConnections.size() >= mMaxPeers;
+    }
+
+    boolean isEmpty() {
+        return mConnections.isEmpty();
+    }
+
+    int size() {
+        return mConnections.size();
+    }
+
+    List<T> snapshot() {
+        return new ArrayList<T>(mConnections.values());
+    }
+
+    /**
+     * 모든 연결을 끊고 비운다.
+     */
+    synchronized void cancelAll() {
+        for (T connection : mConnections.values()) {
+            connection.cancel();
+        }
+        mConnections.clear();
+    }
+}
@@ -0,0 +1,106 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BluetoothChatService 의 연결 상태를 락 없이 관리한다.
+ * 상태 읽기는 volatile 읽기 한 번이고, 바꿀 때는 허용된 전이만 CAS 로 반영한 뒤 리스너에 알린다.
+ *
+ * <pre>
+ * NONE -> LISTEN -> CONNECTING -> CONNECTED
+ *   \       \______________________/^
+ *    \_____________________________/
+ * (아래 방향 전이(끊김, 실패, 중지) 는 모두 허용)
+ * </pre>
+ */
+public class ConnectionStateMachine {
+
+    private static final String TAG = "ConnectionStateMachine";
+
+    /**
+     * 상태가 바뀔 때마다 바꾼 스레드에서 호출된다.
+     */
+    public interface Listener {
+        void onStateChanged(int oldState, int newState);
+    }
+
+    private final AtomicInteger mState = new AtomicInteger(BluetoothChatService.STATE_NONE);
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    public int get() {
+        return mState.get();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * 현재 상태가 from 일 때만 to 로 바꾼다.
+     *
+     * @return 바뀌었으면 true. 현재 상태가 from 이 아니거나 허용되지 않은 전이면 false
+     */
+    public boolean transition(int from, int to) {
+        if (from == to || !isAllowed(from, to)) {
+            return false;
+        }
+        if (!mState.compareAndSet(from, to)) {
+            return false;
+        }
+        for (Listener listener : mListeners) {
+            listener.onStateChanged(from, to);
+        }
+        return true;
+    }
+
+    /**
+     * 현재 상태에서 target 으로 바로 이동한다. 거치지 않은 중간 상태를 만들어 알리지 않는다.
+     *
+     * @return 바뀌었으면 true. 이미 target 이거나 허용되지 않은 전이면 false
+     */
+    public boolean moveTo(int target) {
+        while (true) {
+            int current = mState.get();
+            if (current == target) {
+                return false;
+            }
+            if (!isAllowed(current, target)) {
+                Log.w(TAG, "Invalid transition " + current + " -> " + target);
+                return false;
+            }
+            // 다른 스레드가 먼저 바꿨으면 새 상태에서 다시 본다.
+            if (transition(current, target)) {
+                return true;
+            }
+        }
+    }
+
+    static boolean isAllowed(int from, int to) {
+        if (to < from) {
+            // 끊김, 연결 실패, 중지
+            return true;
+        }
+        switch (from) {
+            case BluetoothChatService.STATE_NONE:
+                // 듣지 않고 있어도 상태를 알리기 전에 연결이 끝날 수 있다.
+                return to == BluetoothChatService.STATE_LISTEN
+                        || to == BluetoothChatService.STATE_CONNECTING
+                        || to == BluetoothChatService.STATE_CONNECTED;
+            case BluetoothChatService.STATE_LISTEN:
+                // 듣고 있다가 바로 연결을 받을 수 있다.
+                return to == BluetoothChatService.STATE_CONNECTING
+                        || to == BluetoothChatService.STATE_CONNECTED;
+            case BluetoothChatService.STATE_CONNECTING:
+                return to == BluetoothChatService.STATE_CONNECTED;
+            default:
+                return false;
+        }
+    }
+}
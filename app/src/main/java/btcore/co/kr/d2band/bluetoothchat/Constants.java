@@ -23,13 +23,24 @@ public interface Constants {
 
     // Message types sent from the BluetoothChatService Handler
     public static final int MESSAGE_STATE_CHANGE = 1;
+    // obj is a PooledBuffer holding one message; the receiver must release() it.
+    // arg2 of MESSAGE_READ / MESSAGE_WRITE / arg1 of MESSAGE_DEVICE_NAME is the peer id (-1 = all peers)
     public static final int MESSAGE_READ = 2;
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    // obj is the FileTransfer, arg1 the peer id (-1 while disconnected), arg2 its state
+    public static final int MESSAGE_FILE_TRANSFER = 6;
+    // obj is the peer address, arg1 the attempt number, arg2 the delay in ms before it
+    public static final int MESSAGE_RECONNECT = 7;
+    // obj is the peer address, arg1 the number of attempts made
+    public static final int MESSAGE_RECONNECT_GAVE_UP = 8;
+    // obj is the LinkBenchmark.Result, arg1 the peer id
+    public static final int MESSAGE_BENCHMARK = 9;
 
     // Key names received from the BluetoothChatService Handler
     public static final String DEVICE_NAME = "device_name";
+    public static final String DEVICE_ADDRESS = "device_address";
     public static final String TOAST = "toast";
 
 }
@@ -0,0 +1,141 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import android.view.Choreographer;
+import android.view.View;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 대화 목록에 넣고 뺄 줄을 모아 두었다가 화면을 그릴 때마다 한 번에 바꾼다.
+ *
+ * <p>{@link #append(List)} 등 바꾸는 메서드는 어느 스레드에서 불러도 되고 부른 순서대로 적용된다.
+ * 바뀐 것이 쌓이면 다음 프레임에 한 번만 어댑터를 바꾸므로 메시지가 초당 수백 개 와도 목록은
+ * 프레임마다 한 번만 다시 배치된다. {@link #setAdapter} 는 UI 스레드에서 부른다.</p>
+ */
+class ConversationBatcher implements Choreographer.FrameCallback {
+
+    private static final int APPEND = 0;
+    private static final int PREPEND = 1;
+    private static final int TRIM_FRONT = 2;
+    private static final int TRIM_BACK = 3;
+    private static final int REPLACE = 4;
+
+    private static final class Change {
+        final int kind;
+        final List<String> lines;
+        final int count;
+
+        Change(int kind, List<String> lines, int count) {
+            this.kind = kind;
+            this.lines = lines;
+            this.count = count;
+        }
+    }
+
+    // UI 스레드에서 만들어야 그 스레드의 Choreographer 를 받는다.
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    // 아래 두 값은 this 로 보호한다.
+    private List<Change> mPending = new ArrayList<Change>();
+    private boolean mScheduled;
+    // 아래는 UI 스레드만 사용한다. 목록에 보이는 줄과 같고 화면을 만들기 전에도 쌓아 둔다.
+    private final List<String> mLines = new ArrayList<String>();
+    private ListView mListView;
+    private ArrayAdapter<String> mAdapter;
+
+    void setAdapter(ListView listView, ArrayAdapter<String> adapter) {
+        mListView = listView;
+        mAdapter = adapter;
+        adapter.addAll(mLines);
+    }
+
+    void add(String line) {
+        post(new Change(APPEND, Collections.singletonList(line), 0));
+    }
+
+    void append(List<String> lines) {
+        post(new Change(APPEND, lines, 0));
+    }
+
+    /**
+     * 앞에 넣는다. 보고 있던 줄이 그 자리에 그대로 보이도록 목록 위치를 옮긴다.
+     */
+    void prepend(List<String> lines) {
+        post(new Change(PREPEND, lines, 0));
+    }
+
+    void trimFront(int count) {
+        post(new Change(TRIM_FRONT, null, count));
+    }
+
+    void trimBack(int count) {
+        post(new Change(TRIM_BACK, null, count));
+    }
+
+    void replace(List<String> lines) {
+        post(new Change(REPLACE, lines, 0));
+    }
+
+    private void post(Change change) {
+        synchronized (this) {
+            mPending.add(change);
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        mChoreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        List<Change> batch;
+        synchronized (this) {
+            batch = mPending;
+            mPending = new ArrayList<Change>();
+            mScheduled = false;
+        }
+        // 맨 위에 더해지거나 빠진 줄 수. 보던 줄을 그대로 보이게 하는 데 쓴다.
+        int shift = 0;
+        for (Change change : batch) {
+            switch (change.kind) {
+                case APPEND:
+                    mLines.addAll(change.lines);
+                    break;
+                case PREPEND:
+                    mLines.addAll(0, change.lines);
+                    shift += change.lines.size();
+                    break;
+                case TRIM_FRONT:
+                    mLines.subList(0, Math.min(change.count, mLines.size())).clear();
+                    shift -= change.count;
+                    break;
+                case TRIM_BACK:
+                    mLines.subList(Math.max(0, mLines.size() - change.count), mLines.size()).clear();
+                    break;
+                case REPLACE:
+                    mLines.clear();
+                    mLines.addAll(change.lines);
+                    break;
+            }
+        }
+        if (mAdapter == null || batch.isEmpty()) {
+            return;
+        }
+        int first = mListView.getFirstVisiblePosition();
+        View top = mListView.getChildAt(0);
+        int offset = top != null ? top.getTop() : 0;
+        // 줄마다 목록을 다시 그리지 않도록 알림을 끄고 바꾼 뒤 한 번만 알린다.
+        // 목록 크기는 ConversationRenderer 가 몇백 줄로 묶어 두므로 통째로 넣어도 싸다.
+        mAdapter.setNotifyOnChange(false);
+        mAdapter.clear();
+        mAdapter.addAll(mLines);
+        mAdapter.notifyDataSetChanged();
+        if (shift > 0) {
+            mListView.setSelectionFromTop(first + shift, offset);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * 대화 목록에 넣을 한 줄을 만든다. 안드로이드에 의존하지 않으므로 benchmark 모듈에서도 그대로 잰다.
+ * 문자열은 {@link btcore.co.kr.d2band.bluetoothchat.protocol.Utf8StreamDecoder} 로 푼 것을 받고,
+ * 호출하는 쪽이 다시 쓰는 StringBuilder 에 모아 줄 하나에 String 하나만 만든다.
+ */
+public final class ConversationFormat {
+
+    // 보낼 때와 받을 때 같은 문자셋을 쓴다. 기본 문자셋은 기기마다 다를 수 있다.
+    public static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private ConversationFormat() {
+    }
+
+    public static String received(StringBuilder line, String peerName, CharBuffer text) {
+        line.setLength(0);
+        line.append(peerName).append(":  ");
+        return append(line, text).toString();
+    }
+
+    public static String sent(StringBuilder line, CharBuffer text) {
+        line.setLength(0);
+        line.append("Me:  ");
+        return append(line, text).toString();
+    }
+
+    // append(CharSequence) 는 한 글자씩 복사하므로 배열로 한 번에 붙인다.
+    private static StringBuilder append(StringBuilder line, CharBuffer text) {
+        if (text.hasArray()) {
+            return line.append(text.array(), text.arrayOffset() + text.position(), text.remaining());
+        }
+        return line.append(text);
+    }
+}
@@ -0,0 +1,345 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import btcore.co.kr.d2band.bluetoothchat.buffer.PooledBuffer;
+import btcore.co.kr.d2band.bluetoothchat.protocol.Envelope;
+import btcore.co.kr.d2band.bluetoothchat.protocol.Utf8StreamDecoder;
+
+/**
+ * 받은 메시지와 보낸 메시지를 문자열로 바꿔 {@link ConversationBatcher} 에 넘긴다.
+ * 백그라운드 스레드 하나짜리 executor 에 등록해 UI 스레드에서 디코딩하지 않도록 한다.
+ *
+ * <p>{@link ChatHistory} 가 있으면 목록은 기록의 한 구간만 보여 준다. 처음에는 마지막 {@link #PAGE} 개를
+ * 읽고, 새 메시지가 오면 서비스가 남긴 기록을 읽어 붙이며, 목록 맨 위나 아래로 스크롤하면
+ * 앞뒤 구간을 읽는다. 목록이 {@link #WINDOW} 줄을 넘으면 보고 있지 않은 쪽 끝에서 뺀다.
+ * 기록이 없으면 받은 메시지를 그대로 바꿔 붙이고 오래된 줄부터 뺀다.</p>
+ */
+class ConversationRenderer extends SimpleChatListener {
+
+    private static final String TAG = "ConversationRenderer";
+
+    // 한 번에 읽는 기록 수
+    static final int PAGE = 50;
+    // 목록에 두는 최대 줄 수
+    static final int WINDOW = 200;
+
+    private final ConversationBatcher mBatcher;
+    // null 이면 받은 메시지만 보여 준다.
+    private final ChatHistory mHistory;
+    // 등록한 executor. 스크롤로 앞뒤 구간을 읽을 때도 같은 스레드를 쓴다.
+    private final Executor mExecutor;
+    // 스크롤할 때마다 요청이 쌓이지 않도록 하나만 둔다.
+    private final AtomicBoolean mPagePending = new AtomicBoolean();
+
+    // 아래는 모두 executor 스레드만 사용한다.
+    // 연결 번호별 디바이스 네임
+    private final SparseArray<String> mPeerNames = new SparseArray<String>();
+    // 번호를 모르는 메시지에 붙인다.
+    private String mLastDeviceName;
+    // 목록에 보이는 기록 구간 [mStart, mEnd). 아직 읽지 않았으면 mEnd 가 -1
+    private long mStart;
+    private long mEnd = -1;
+    // 목록 끝이 기록 끝이라 새 메시지를 바로 붙인다.
+    private boolean mFollowing = true;
+    // 기록이 없을 때 목록 줄 수
+    private int mLiveLines;
+    // 아래는 메시지마다 다시 쓴다. 프레임 계층이 조각난 메시지를 이어 붙여 넘기므로
+    // 글자가 메시지 사이에 걸치는 일은 없고 디코더 하나를 메시지마다 처음부터 쓴다.
+    private final Envelope mEnvelope = new Envelope();
+    private final Utf8StreamDecoder mDecoder = new Utf8StreamDecoder();
+    private final StringBuilder mLine = new StringBuilder();
+    private final ChatHistory.Entry mEntry = new ChatHistory.Entry();
+    private final List<byte[]> mRecords = new ArrayList<byte[]>();
+
+    ConversationRenderer(ConversationBatcher batcher, ChatHistory history, Executor executor) {
+        this.mBatcher = batcher;
+        this.mHistory = history;
+        this.mExecutor = executor;
+    }
+
+    /**
+     * 기록의 마지막 구간을 읽어 목록을 채운다. 어느 스레드에서 불러도 된다.
+     */
+    void requestLatest() {
+        if (mHistory == null) {
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                loadLatest();
+            }
+        });
+    }
+
+    /**
+     * 목록 맨 위에 닿았다. 앞 구간을 읽어 위에 붙인다. UI 스레드에서 부른다.
+     */
+    void requestOlder() {
+        requestPage(true);
+    }
+
+    /**
+     * 목록 맨 아래에 닿았다. 기록 끝을 보고 있지 않으면 뒤 구간을 읽어 붙인다. UI 스레드에서 부른다.
+     */
+    void requestNewer() {
+        requestPage(false);
+    }
+
+    private void requestPage(final boolean older) {
+        if (mHistory == null || !mPagePending.compareAndSet(false, true)) {
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mPagePending.set(false);
+                if (older) {
+                    loadOlder();
+                } else {
+                    loadNewer();
+                }
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // 화면을 닫는 중이다.
+            mPagePending.set(false);
+        }
+    }
+
+    @Override
+    public void onConnected(int peerId, String deviceName, String address) {
+        mPeerNames.put(peerId, deviceName);
+        mLastDeviceName = deviceName;
+    }
+
+    @Override
+    public void onMessage(int peerId, PooledBuffer message) {
+        if (mHistory != null) {
+            // 서비스가 알리기 전에 기록에 남겼다.
+            message.release();
+            catchUp();
+            return;
+        }
+        String line = null;
+        try {
+            if (readText(message.array(), 0, message.length())) {
+                line = ConversationFormat.received(mLine, mPeerNames.get(peerId, mLastDeviceName),
+                        decodeText());
+            }
+        } finally {
+            // 문자열로 바꾼 뒤에는 버퍼를 풀로 돌려준다.
+            message.release();
+        }
+        if (line != null) {
+            addLive(line);
+        }
+    }
+
+    @Override
+    public void onMessageSent(int peerId, byte[] message) {
+        if (mHistory != null) {
+            catchUp();
+        } else if (readText(message, 0, message.length)) {
+            addLive(ConversationFormat.sent(mLine, decodeText()));
+        }
+    }
+
+    @Override
+    public void onFileTransfer(int peerId, FileTransfer transfer, int state) {
+        // 진행 중 알림은 무시하고 끝났을 때만 대화창에 남긴다.
+        if (state == FileTransfer.STATE_DONE) {
+            notice((transfer.isIncoming() ? "Received file:  " : "Sent file:  ")
+                    + transfer.getName());
+        } else if (state == FileTransfer.STATE_FAILED) {
+            notice("File transfer failed:  " + transfer.getName());
+        }
+    }
+
+    @Override
+    public void onBenchmark(int peerId, LinkBenchmark.Result result) {
+        notice(mPeerNames.get(peerId, mLastDeviceName) + " benchmark:  " + result);
+    }
+
+    private void notice(String text) {
+        if (mHistory == null) {
+            addLive(text);
+            return;
+        }
+        try {
+            mHistory.appendNotice(text);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write history", e);
+        }
+        catchUp();
+    }
+
+    private void addLive(String line) {
+        mBatcher.add(line);
+        if (++mLiveLines > WINDOW) {
+            mBatcher.trimFront(1);
+            mLiveLines--;
+        }
+    }
+
+    private void loadLatest() {
+        long size = mHistory.size();
+        long from = Math.max(0, size - PAGE);
+        List<String> lines = readLines(from, (int) (size - from));
+        if (lines == null) {
+            return;
+        }
+        mBatcher.replace(lines);
+        mStart = from;
+        mEnd = from + lines.size();
+        mFollowing = true;
+    }
+
+    // 기록 끝을 보고 있으면 새로 남은 기록을 붙인다.
+    private void catchUp() {
+        if (mEnd < 0) {
+            loadLatest();
+            return;
+        }
+        if (!mFollowing) {
+            return;
+        }
+        long size = mHistory.size();
+        if (size - mEnd > WINDOW) {
+            // 한꺼번에 많이 왔으면 어차피 뺄 줄은 읽지 않는다.
+            loadLatest();
+            return;
+        }
+        if (size <= mEnd) {
+            return;
+        }
+        List<String> lines = readLines(mEnd, (int) (size - mEnd));
+        if (lines == null) {
+            return;
+        }
+        mBatcher.append(lines);
+        mEnd += lines.size();
+        trimFront();
+    }
+
+    private void loadOlder() {
+        if (mEnd < 0 || mStart == 0) {
+            return;
+        }
+        long from = Math.max(0, mStart - PAGE);
+        List<String> lines = readLines(from, (int) (mStart - from));
+        if (lines == null) {
+            return;
+        }
+        mBatcher.prepend(lines);
+        mStart = from;
+        int excess = (int) (mEnd - mStart) - WINDOW;
+        if (excess > 0) {
+            mBatcher.trimBack(excess);
+            mEnd -= excess;
+            mFollowing = false;
+        }
+    }
+
+    private void loadNewer() {
+        if (mEnd < 0 || mFollowing) {
+            return;
+        }
+        long size = mHistory.size();
+        int count = (int) Math.min(PAGE, size - mEnd);
+        List<String> lines = readLines(mEnd, count);
+        if (lines == null) {
+            return;
+        }
+        mBatcher.append(lines);
+        mEnd += lines.size();
+        mFollowing = mEnd == size;
+        trimFront();
+    }
+
+    private void trimFront() {
+        int excess = (int) (mEnd - mStart) - WINDOW;
+        if (excess > 0) {
+            mBatcher.trimFront(excess);
+            mStart += excess;
+        }
+    }
+
+    // 기록 count 개를 읽어 줄로 바꾼다. 읽지 못했으면 null
+    private List<String> readLines(long from, int count) {
+        mRecords.clear();
+        try {
+            mHistory.read(from, count, mRecords);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read history from " + from, e);
+            return null;
+        }
+        List<String> lines = new ArrayList<String>(mRecords.size());
+        for (byte[] record : mRecords) {
+            lines.add(render(record));
+        }
+        mRecords.clear();
+        return lines;
+    }
+
+    // 기록 하나가 목록의 한 줄이 되도록 읽지 못한 기록도 줄로 만든다.
+    private String render(byte[] record) {
+        try {
+            mEntry.parse(record);
+        } catch (IOException e) {
+            Log.w(TAG, "Malformed history record", e);
+            return "(unreadable message)";
+        }
+        if (!readText(mEntry.getMessageArray(), mEntry.getMessageOffset(),
+                mEntry.getMessageLength())) {
+            return "(unsupported message)";
+        }
+        switch (mEntry.getDirection()) {
+            case ChatHistory.RECEIVED:
+                return ConversationFormat.received(mLine, mEntry.getPeerName(), decodeText());
+            case ChatHistory.SENT:
+                return ConversationFormat.sent(mLine, decodeText());
+            default:
+                return decodeText().toString();
+        }
+    }
+
+    // mEnvelope 의 payload 를 문자로 푼다. 돌려준 버퍼는 다음 메시지 전까지 유효하다.
+    private CharBuffer decodeText() {
+        mDecoder.reset();
+        return mDecoder.decode(mEnvelope.getPayloadArray(), mEnvelope.getPayloadOffset(),
+                mEnvelope.getPayloadLength(), true);
+    }
+
+    // 메시지를 mEnvelope 에 읽는다. 대화 문자열이면 true
+    private boolean readText(byte[] data, int offset, int length) {
+        if (!Envelope.isEnvelope(data, offset, length)) {
+            // 예전 버전은 문자열만 보낸다. 알림도 문자열로 남긴다.
+            mEnvelope.set(Envelope.TYPE_TEXT, 0, 0).setPayload(data, offset, length);
+            return true;
+        }
+        try {
+            mEnvelope.decode(data, offset, length);
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping malformed message", e);
+            return false;
+        }
+        // 이 버전이 모르는 종류는 대화 목록에 보이지 않는다.
+        return mEnvelope.getType() == Envelope.TYPE_TEXT;
+    }
+}
@@ -0,0 +1,386 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import btcore.co.kr.d2band.bluetoothchat.protocol.Frame;
+import btcore.co.kr.d2band.bluetoothchat.protocol.WriteFuture;
+
+/**
+ * 대화 메시지를 적어도 한 번은 전달한다.
+ *
+ * <p>상대방이 HELLO 로 {@link Frame#CAP_RELIABLE} 을 알리면 DATA 메시지마다 장치별 순서 번호를 붙여
+ * ({@link Frame#FLAG_SEQUENCED}) 보내고, 상대방이 {@link Frame#TYPE_ACK} 로 확인할 때까지 보관한다.
+ * 연결이 끊겼다가 같은 장치와 다시 연결되면 확인받지 못한 메시지를 순서대로 다시 보낸다.
+ * 받는 쪽은 이미 전달한 번호 이하의 메시지를 버리므로 같은 메시지가 두 번 화면에 나오지 않는다.</p>
+ *
+ * <p>ACK 는 누적 방식이고 {@link #ACK_BATCH} 개마다, 또는 마지막 메시지 후 {@link #ACK_DELAY_MILLIS}
+ * 안에 한 번만 보낸다. 장치별 상태는 연결이 끊겨도 남는다.</p>
+ *
+ * <p>번호 붙은 메시지는 쓰기 큐에 한 번에 {@link #MAX_IN_FLIGHT} 개까지만 넣고, 쓰기가 끝나는 대로 다음 것을 넣는다.
+ * 쓰기가 실패하면 (쓰기 큐가 가득 찬 경우 등) 그 뒤의 것은 넣지 않고, 쓰기 큐에 남은 것이 다 끝나면
+ * 확인받지 못한 첫 메시지부터 다시 보낸다. 받는 쪽은 바로 다음 번호만 받고 건너뛴 번호 뒤의 것은 버리므로
+ * 중간에 빠진 메시지를 전달된 것으로 확인하지 않는다.</p>
+ */
+class DeliveryManager {
+
+    private static final String TAG = "DeliveryManager";
+
+    // 순서 번호 크기. 메시지 앞에 붙는다.
+    static final int SEQ_SIZE = 8;
+    // 확인받지 못한 채 보관하는 최대 메시지 수. 넘으면 write() 가 실패한다.
+    static final int WINDOW = 512;
+    // 한 장치에 대해 쓰기 큐에 동시에 넣어 두는 번호 붙은 메시지 수. 쓰기 큐 크기보다 충분히 작아야 한다.
+    static final int MAX_IN_FLIGHT = 16;
+    // 쓰기가 실패한 뒤 다시 보내기까지 기다리는 시간
+    static final long RETRY_DELAY_MILLIS = 200;
+    static final int ACK_BATCH = 16;
+    static final long ACK_DELAY_MILLIS = 200;
+
+    interface Link {
+        String getRemoteAddress();
+
+        WriteFuture send(int type, int flags, byte[] payload);
+
+        WriteFuture sendControl(int type, byte[] payload);
+    }
+
+    // 번호를 붙인 메시지 하나
+    private static final class Message {
+        final long seq;
+        final byte[] framed;
+        // send() 가 돌려준 결과. 처음으로 소켓에 다 쓰이면 성공한다.
+        final WriteFuture written = new WriteFuture();
+        // 상대방이 확인하면 성공한다. 없으면 null
+        final WriteFuture acked;
+
+        Message(long seq, byte[] framed, WriteFuture acked) {
+            this.seq = seq;
+            this.framed = framed;
+            this.acked = acked;
+        }
+    }
+
+    // 장치 하나에 대한 보내는 쪽, 받는 쪽 상태. 자신으로 동기화한다.
+    private static final class Peer {
+        // 보내는 쪽. 두 큐를 합치면 확인받지 못한 메시지가 번호 순서대로 있다.
+        long nextSeq = 1;
+        // 이번 연결에서 쓰기 큐에 넣은 메시지
+        final ArrayDeque<Message> unacked = new ArrayDeque<Message>();
+        // 아직 넣지 않은 메시지
+        final ArrayDeque<Message> unsent = new ArrayDeque<Message>();
+        // link 의 쓰기 큐에 넣고 끝나지 않은 수
+        int inFlight;
+        // 이번 연결에서 쓰기가 실패했다. inFlight 가 0 이 되면 unacked 를 다시 보낸다.
+        boolean stalled;
+        // 받는 쪽
+        long peerSession;
+        long delivered;
+        int unackedCount;
+        boolean ackScheduled;
+        // 상대방 HELLO 를 받아 번호를 붙여 보낼 수 있는 연결. 없으면 null
+        Link link;
+    }
+
+    // 앱이 다시 시작되면 바뀐다. 상대방은 이 값이 바뀌면 받은 번호를 처음부터 센다.
+    private final long mSessionId = new Random().nextLong();
+    private final ConcurrentMap<String, Peer> mPeers = new ConcurrentHashMap<String, Peer>();
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Ack");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    long getSessionId() {
+        return mSessionId;
+    }
+
+    /**
+     * 상대방 HELLO 를 받았다. 상대방이 다시 시작했으면 받는 쪽 상태를 지우고,
+     * 확인받지 못한 메시지를 다시 보낸다. 이미 받은 것은 상대방이 버린다.
+     */
+    void onHello(Link link, long peerSession) {
+        Peer peer = peerFor(link.getRemoteAddress());
+        synchronized (peer) {
+            // 다시 보내는 도중에 새 메시지가 먼저 나가지 않도록 같은 락 안에서 연결을 바꾼다.
+            peer.link = link;
+            if (peer.peerSession != peerSession) {
+                peer.peerSession = peerSession;
+                peer.delivered = 0;
+                peer.unackedCount = 0;
+            }
+            // 상대방이 이쪽에서 보낸 것 중 어디까지 받았는지 바로 알 수 있게 한다.
+            sendAck(link, peer);
+            peer.inFlight = 0;
+            peer.stalled = false;
+            requeueUnacked(peer);
+            if (!peer.unsent.isEmpty()) {
+                Log.d(TAG, "Replaying " + peer.unsent.size() + " messages to " + link.getRemoteAddress());
+            }
+            pump(peer);
+        }
+    }
+
+    /**
+     * 연결이 끊겼다. 보관한 메시지는 다음 연결에서 다시 보낸다.
+     */
+    void onLinkLost(Link link) {
+        Peer peer = mPeers.get(link.getRemoteAddress());
+        if (peer == null) {
+            return;
+        }
+        List<Message> unwritten = new ArrayList<Message>();
+        synchronized (peer) {
+            if (peer.link != link) {
+                return;
+            }
+            peer.link = null;
+            unwritten.addAll(peer.unacked);
+            unwritten.addAll(peer.unsent);
+        }
+        // 아직 소켓에 다 쓰이지 않은 것의 결과는 실패로 끝낸다. 메시지는 남아 다음 연결에서 다시 보낸다.
+        IOException lost = new IOException("Link lost");
+        for (Message message : unwritten) {
+            message.written.fail(lost);
+        }
+    }
+
+    /**
+     * 메시지에 번호를 붙여 보내고 확인받을 때까지 보관한다.
+     * 상대방이 아직 HELLO 를 보내지 않았거나 지원하지 않으면 번호 없이 그대로 보낸다.
+     */
+    WriteFuture send(Link link, byte[] data) {
+        return send(link, data, null);
+    }
+
+    /**
+     * {@link #send(Link, byte[])} 와 같고, 상대방이 받았다고 확인하면 acked 를 성공으로 끝낸다.
+     * 연결이 끊겨도 acked 는 끝나지 않고 다음 연결에서 다시 보낸 메시지의 확인을 기다린다.
+     * 번호 없이 보내면 소켓 쓰기 결과로 끝낸다.
+     *
+     * @param acked 확인 결과를 받을 future. null 이면 받지 않는다
+     */
+    WriteFuture send(Link link, byte[] data, final WriteFuture acked) {
+        Peer peer = peerFor(link.getRemoteAddress());
+        synchronized (peer) {
+            if (peer.link != link) {
+                WriteFuture written = link.send(Frame.TYPE_DATA, 0, data);
+                if (acked != null) {
+                    written.addListener(new WriteFuture.Listener() {
+                        @Override
+                        public void onWriteComplete(WriteFuture future) {
+                            if (future.isSuccess()) {
+                                acked.complete();
+                            } else {
+                                acked.fail(future.getFailure());
+                            }
+                        }
+                    });
+                }
+                return written;
+            }
+            if (peer.unacked.size() + peer.unsent.size() >= WINDOW) {
+                IOException full = new IOException("Delivery window full");
+                if (acked != null) {
+                    acked.fail(full);
+                }
+                return WriteFuture.failed(full);
+            }
+            byte[] framed = new byte[SEQ_SIZE + data.length];
+            Message message = new Message(peer.nextSeq++, framed, acked);
+            Frame.putLong(framed, 0, message.seq);
+            System.arraycopy(data, 0, framed, SEQ_SIZE, data.length);
+            peer.unsent.addLast(message);
+            pump(peer);
+            return message.written;
+        }
+    }
+
+    /**
+     * 번호가 붙은 메시지를 받았다.
+     *
+     * @return 처음 받은 메시지면 true. 이미 전달한 메시지면 false (버린다)
+     */
+    boolean onReceived(Link link, long seq) {
+        final Peer peer = peerFor(link.getRemoteAddress());
+        synchronized (peer) {
+            // 받은 것이 없으면 상대방이 이전 기록을 가진 채 이쪽이 다시 시작한 경우일 수 있다. 상대방은 확인받지 못한
+            // 첫 메시지부터 다시 보내므로 그 앞은 이미 전달됐다. 그 밖에는 바로 다음 번호만 받는다.
+            // 건너뛴 번호 뒤의 것은 버리고, 보내는 쪽이 빠진 번호부터 다시 보낸다.
+            boolean fresh = peer.delivered == 0 ? seq > 0 : seq == peer.delivered + 1;
+            if (fresh) {
+                peer.delivered = seq;
+            } else if (seq > peer.delivered) {
+                Log.w(TAG, "Dropping out-of-order seq " + seq + ", expected " + (peer.delivered + 1));
+            }
+            // 중복이라도 확인은 해 주어야 상대방이 보관한 것을 지운다.
+            if (++peer.unackedCount >= ACK_BATCH) {
+                sendAck(link, peer);
+            } else if (!peer.ackScheduled) {
+                peer.ackScheduled = schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (peer) {
+                            peer.ackScheduled = false;
+                            if (peer.unackedCount > 0 && peer.link != null) {
+                                sendAck(peer.link, peer);
+                            }
+                        }
+                    }
+                }, ACK_DELAY_MILLIS);
+            }
+            return fresh;
+        }
+    }
+
+    /**
+     * 상대방이 seq 까지 받았다고 알려 왔다.
+     */
+    void onAck(Link link, long seq) {
+        Peer peer = peerFor(link.getRemoteAddress());
+        List<Message> acked = new ArrayList<Message>();
+        synchronized (peer) {
+            while (!peer.unacked.isEmpty() && peer.unacked.peekFirst().seq <= seq) {
+                acked.add(peer.unacked.pollFirst());
+            }
+            // 다시 보내려고 되돌려 놓은 것도 상대방이 이미 받았을 수 있다.
+            while (peer.unacked.isEmpty() && !peer.unsent.isEmpty()
+                    && peer.unsent.peekFirst().seq <= seq) {
+                acked.add(peer.unsent.pollFirst());
+            }
+        }
+        // 번호 순서대로 끝낸다.
+        for (Message message : acked) {
+            if (message.acked != null) {
+                message.acked.complete();
+            }
+        }
+    }
+
+    /**
+     * 아직 확인받지 못한 메시지 수
+     */
+    int pending(String address) {
+        Peer peer = mPeers.get(address);
+        if (peer == null) {
+            return 0;
+        }
+        synchronized (peer) {
+            return peer.unacked.size() + peer.unsent.size();
+        }
+    }
+
+    // peer 를 잡은 상태에서 호출. 쓰기 큐에 남은 자리만큼 번호 순서대로 넣는다.
+    private void pump(final Peer peer) {
+        while (peer.link != null && !peer.stalled && peer.inFlight < MAX_IN_FLIGHT
+                && !peer.unsent.isEmpty()) {
+            final Message message = peer.unsent.pollFirst();
+            final Link link = peer.link;
+            peer.unacked.addLast(message);
+            peer.inFlight++;
+            // 쓰기 큐가 가득 차 바로 실패하면 리스너가 여기서 불리고 stalled 가 선다.
+            link.send(Frame.TYPE_DATA, Frame.FLAG_SEQUENCED, message.framed)
+                    .addListener(new WriteFuture.Listener() {
+                        @Override
+                        public void onWriteComplete(WriteFuture future) {
+                            onWritten(peer, link, message, future);
+                        }
+                    });
+        }
+    }
+
+    private void onWritten(final Peer peer, final Link link, Message message, WriteFuture future) {
+        synchronized (peer) {
+            // 끊긴 연결의 결과는 새 연결의 상태에 섞지 않는다.
+            if (peer.link == link) {
+                peer.inFlight--;
+                if (!future.isSuccess() && !peer.stalled) {
+                    Log.w(TAG, "Sequenced write to " + link.getRemoteAddress() + " failed: "
+                            + future.getFailure());
+                    peer.stalled = true;
+                }
+                if (peer.stalled && peer.inFlight == 0) {
+                    // 실패한 것 뒤로 쓴 것이 있을 수 있으므로 확인받지 못한 첫 메시지부터 다시 보낸다.
+                    requeueUnacked(peer);
+                    schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (peer) {
+                                if (peer.link == link && peer.stalled) {
+                                    peer.stalled = false;
+                                    pump(peer);
+                                }
+                            }
+                        }
+                    }, RETRY_DELAY_MILLIS);
+                } else if (!peer.stalled) {
+                    pump(peer);
+                }
+            }
+        }
+        // 결과의 리스너가 다른 락을 잡을 수 있으므로 peer 밖에서 끝낸다.
+        if (future.isSuccess()) {
+            message.written.complete();
+        }
+    }
+
+    // peer 를 잡은 상태에서 호출. 쓰기 큐에 넣었던 메시지를 보낼 메시지 앞으로 되돌린다.
+    private static void requeueUnacked(Peer peer) {
+        while (!peer.unacked.isEmpty()) {
+            peer.unsent.addFirst(peer.unacked.pollLast());
+        }
+    }
+
+    /**
+     * ACK 와 다시 보내기를 예약하는 스레드를 멈춘다. 그 뒤로는 늦은 ACK 를 보내지 않는다.
+     */
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    // 멈춘 뒤 늦게 불렸으면 예약하지 않고 false 를 돌려준다.
+    private boolean schedule(Runnable task, long delayMillis) {
+        try {
+            mExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    // peer 를 잡은 상태에서 호출
+    private void sendAck(Link link, Peer peer) {
+        peer.unackedCount = 0;
+        byte[] payload = new byte[SEQ_SIZE];
+        Frame.putLong(payload, 0, peer.delivered);
+        link.sendControl(Frame.TYPE_ACK, payload);
+    }
+
+    private Peer peerFor(String address) {
+        Peer peer = mPeers.get(address);
+        if (peer == null) {
+            Peer created = new Peer();
+            peer = mPeers.putIfAbsent(address, created);
+            if (peer == null) {
+                peer = created;
+            }
+        }
+        return peer;
+    }
+}
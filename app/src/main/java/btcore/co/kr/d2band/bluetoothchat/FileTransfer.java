@@ -0,0 +1,89 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+
+/**
+ * 보내거나 받는 파일 하나의 진행 상태.
+ * {@link Constants#MESSAGE_FILE_TRANSFER} 로 UI 에 넘어간다. 값은 다른 스레드에서 바뀌므로 읽을 때마다 최신 값이다.
+ */
+public class FileTransfer {
+
+    public static final int STATE_WAITING = 0;  // 상대방이 받겠다고 하기를 기다리는 중
+    public static final int STATE_ACTIVE = 1;   // 주고받는 중
+    public static final int STATE_PAUSED = 2;   // 연결이 끊겼다. 같은 장치와 다시 연결되면 이어서 보낸다.
+    public static final int STATE_DONE = 3;
+    public static final int STATE_FAILED = 4;
+
+    final long mId;
+    final boolean mIncoming;
+    final String mAddress;
+    final String mName;
+    final long mSize;
+
+    volatile File mFile;
+    volatile int mState;
+    // 받는 쪽이 디스크에 쓴 것으로 확인된 연속 바이트 수
+    volatile long mConfirmed;
+
+    // 아래는 FileTransferManager 가 관리한다.
+    FileTransferManager.Link mLink;
+    // 보내는 쪽: 펌프 세대. 바뀌면 이전 펌프는 멈춘다.
+    int mGeneration;
+    // 받는 쪽: 쓰고 있는 .part 파일. FileTransferManager 의 잠금 안에서만 쓰고 닫는다.
+    FileChannel mChannel;
+    int mChunksSinceAck;
+
+    FileTransfer(long id, boolean incoming, String address, String name, long size, File file) {
+        this.mId = id;
+        this.mIncoming = incoming;
+        this.mAddress = address;
+        this.mName = name;
+        this.mSize = size;
+        this.mFile = file;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public boolean isIncoming() {
+        return mIncoming;
+    }
+
+    public String getRemoteAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * 보내는 파일, 또는 받는 중인 .part 파일. 다 받으면 최종 파일로 바뀐다.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public long getTransferred() {
+        return mConfirmed;
+    }
+
+    public int getProgress() {
+        return mSize == 0 ? 100 : (int) (mConfirmed * 100 / mSize);
+    }
+
+    @Override
+    public String toString() {
+        return (mIncoming ? "<- " : "-> ") + mName + " " + getProgress() + "%";
+    }
+}
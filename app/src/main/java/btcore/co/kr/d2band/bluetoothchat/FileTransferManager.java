@@ -0,0 +1,464 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import btcore.co.kr.d2band.bluetoothchat.protocol.FileFrames;
+import btcore.co.kr.d2band.bluetoothchat.protocol.Frame;
+import btcore.co.kr.d2band.bluetoothchat.protocol.WriteFuture;
+
+/**
+ * 파일을 {@link FileFrames#CHUNK_SIZE} 단위 청크로 나눠 주고받는다.
+ *
+ * <p>보내는 쪽은 파일을 FileChannel 에서 청크 단위로 읽어 보내고, 받는 쪽은 받은 청크를 바로 .part 파일의
+ * 해당 위치에 쓴다. 어느 쪽도 파일 전체를 메모리에 올리지 않는다. 받는 쪽은 디스크에 쓴 연속된 바이트 수를
+ * FILE_ACK 로 알린다.</p>
+ *
+ * <p>연결이 끊겨도 전송 기록은 남겨 둔다. 같은 장치와 다시 연결되면 보내는 쪽이 같은 id 로 FILE_OFFER 를
+ * 다시 보내고, 받는 쪽은 확인된 위치를 FILE_ACCEPT 로 돌려주어 그 위치부터 이어 받는다.</p>
+ */
+class FileTransferManager {
+
+    private static final String TAG = "FileTransferManager";
+
+    // 전송당 동시에 쓰기 큐에 올려 두는 청크 수. 메모리 사용량은 이 값 * CHUNK_SIZE 로 제한된다.
+    private static final int MAX_IN_FLIGHT = 8;
+    // 이 청크 수마다 FILE_ACK 를 보낸다.
+    private static final int ACK_EVERY = 4;
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * 파일 프레임을 주고받는 연결 하나
+     */
+    interface Link {
+        String getRemoteAddress();
+
+        int getPeerId();
+
+        /**
+         * 흐름 제어를 받는 대용량 채널로 보낸다. 대화 메시지보다 뒤로 밀린다.
+         */
+        WriteFuture sendBulk(int type, byte[] payload);
+
+        WriteFuture sendControl(int type, byte[] payload);
+
+        /**
+         * 받은 프레임을 처리했으니 그만큼 credit 을 돌려준다.
+         */
+        void consumed(int bytes);
+    }
+
+    private final ChatListener mListener;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Random mRandom = new Random();
+
+    // 아래는 모두 this 로 보호한다.
+    private final Map<Long, FileTransfer> mOutgoing = new HashMap<Long, FileTransfer>();
+    private final Map<Long, FileTransfer> mIncoming = new HashMap<Long, FileTransfer>();
+    private final Map<String, Link> mLinks = new HashMap<String, Link>();
+
+    private volatile File mDownloadDirectory;
+
+    FileTransferManager(ChatListener listener) {
+        this.mListener = listener;
+    }
+
+    void setDownloadDirectory(File directory) {
+        mDownloadDirectory = directory;
+    }
+
+    File getDownloadDirectory() {
+        return mDownloadDirectory;
+    }
+
+    /**
+     * 파일 보내기를 시작한다. 지금 연결돼 있지 않으면 연결될 때까지 기다린다.
+     */
+    synchronized FileTransfer send(String address, File file) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        FileTransfer transfer = new FileTransfer(mRandom.nextLong(), false, address,
+                file.getName(), file.length(), file);
+        mOutgoing.put(transfer.mId, transfer);
+        Link link = mLinks.get(address);
+        if (link != null) {
+            offer(transfer, link);
+        } else {
+            transfer.mState = FileTransfer.STATE_PAUSED;
+        }
+        notifyUpdate(transfer);
+        return transfer;
+    }
+
+    /**
+     * 연결이 준비됐다. 이 장치로 보내다 멈춘 전송을 다시 제안한다.
+     */
+    synchronized void onLinkUp(Link link) {
+        mLinks.put(link.getRemoteAddress(), link);
+        for (FileTransfer transfer : mOutgoing.values()) {
+            if (transfer.mLink == null && transfer.mAddress.equals(link.getRemoteAddress())) {
+                offer(transfer, link);
+                notifyUpdate(transfer);
+            }
+        }
+    }
+
+    /**
+     * 연결이 끊겼다. 이 연결로 오가던 전송은 멈추고 기록은 남긴다.
+     */
+    synchronized void onLinkLost(Link link) {
+        if (mLinks.get(link.getRemoteAddress()) == link) {
+            mLinks.remove(link.getRemoteAddress());
+        }
+        for (FileTransfer transfer : mOutgoing.values()) {
+            if (transfer.mLink == link) {
+                transfer.mGeneration++;
+                pause(transfer);
+            }
+        }
+        for (FileTransfer transfer : mIncoming.values()) {
+            if (transfer.mLink == link) {
+                closeQuietly(transfer.mChannel);
+                transfer.mChannel = null;
+                pause(transfer);
+            }
+        }
+    }
+
+    /**
+     * 링크의 읽기 스레드에서 파일 프레임 하나를 처리한다.
+     *
+     * @throws IOException 프레임 형식이 잘못됐을 때. 디스크 오류는 해당 전송만 실패로 끝낸다.
+     */
+    void onFrame(Link link, int type, byte[] src, int offset, int length) throws IOException {
+        long id = FileFrames.id(src, offset, length);
+        switch (type) {
+            case Frame.TYPE_FILE_OFFER:
+                onOffer(link, id, FileFrames.offerSize(src, offset),
+                        FileFrames.offerName(src, offset, length));
+                break;
+            case Frame.TYPE_FILE_ACCEPT:
+                onAccept(link, id, FileFrames.offset(src, offset));
+                break;
+            case Frame.TYPE_FILE_CHUNK:
+                // 무시하는 청크도 받은 것이므로 credit 은 항상 돌려준다.
+                link.consumed(length);
+                onChunk(link, id, src, offset, length);
+                break;
+            case Frame.TYPE_FILE_ACK:
+                onAck(link, id, FileFrames.offset(src, offset));
+                break;
+            case Frame.TYPE_FILE_CANCEL:
+                onCancel(id);
+                break;
+        }
+    }
+
+    // this 를 잡은 상태에서 호출
+    private void offer(FileTransfer transfer, Link link) {
+        transfer.mLink = link;
+        transfer.mState = FileTransfer.STATE_WAITING;
+        link.sendControl(Frame.TYPE_FILE_OFFER,
+                FileFrames.offer(transfer.mId, transfer.mSize, transfer.mName));
+    }
+
+    private synchronized void onOffer(Link link, long id, long size, String name) {
+        FileTransfer transfer = mIncoming.get(id);
+        try {
+            if (transfer == null) {
+                File directory = mDownloadDirectory;
+                if (directory == null || (!directory.isDirectory() && !directory.mkdirs())) {
+                    Log.w(TAG, "No download directory, rejecting " + name);
+                    link.sendControl(Frame.TYPE_FILE_CANCEL, FileFrames.position(id, 0));
+                    return;
+                }
+                String safeName = safeName(name);
+                transfer = new FileTransfer(id, true, link.getRemoteAddress(), safeName, size,
+                        new File(directory, safeName + "." + Long.toHexString(id) + PART_SUFFIX));
+                mIncoming.put(id, transfer);
+            }
+            if (transfer.mChannel == null) {
+                transfer.mChannel = new RandomAccessFile(transfer.mFile, "rw").getChannel();
+            }
+            // 확인되지 않은 뒤쪽은 다시 받는다.
+            transfer.mChannel.truncate(transfer.mConfirmed);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open " + transfer.mFile, e);
+            fail(transfer, link);
+            return;
+        }
+        transfer.mLink = link;
+        transfer.mChunksSinceAck = 0;
+        transfer.mState = FileTransfer.STATE_ACTIVE;
+        link.sendControl(Frame.TYPE_FILE_ACCEPT, FileFrames.position(id, transfer.mConfirmed));
+        if (transfer.mConfirmed == transfer.mSize) {
+            finishIncoming(transfer, link);
+        } else {
+            notifyUpdate(transfer);
+        }
+    }
+
+    private synchronized void onAccept(Link link, long id, long offset) {
+        FileTransfer transfer = mOutgoing.get(id);
+        if (transfer == null || offset < 0 || offset > transfer.mSize) {
+            link.sendControl(Frame.TYPE_FILE_CANCEL, FileFrames.position(id, 0));
+            return;
+        }
+        // 새 연결이거나 받는 쪽이 되감기를 요청했다. 이전 펌프는 멈추고 offset 부터 다시 보낸다.
+        int generation = ++transfer.mGeneration;
+        transfer.mLink = link;
+        transfer.mConfirmed = offset;
+        transfer.mState = FileTransfer.STATE_ACTIVE;
+        notifyUpdate(transfer);
+        mExecutor.execute(new Pump(transfer, link, generation, offset));
+    }
+
+    private void onChunk(Link link, long id, byte[] src, int offset, int length) {
+        // 체크섬은 잠금 밖에서 본다. 나머지는 취소, 되감기, 연결 교체와 겹치지 않도록 잠금 안에서 한다.
+        boolean valid = FileFrames.verifyChunk(src, offset, length);
+        synchronized (this) {
+            FileTransfer transfer = mIncoming.get(id);
+            // 취소됐거나 이전 연결에서 온 청크
+            if (transfer == null || transfer.mLink != link || transfer.mChannel == null) {
+                return;
+            }
+            long position = FileFrames.offset(src, offset);
+            // 되감기 전에 이미 보내진 청크
+            if (position != transfer.mConfirmed) {
+                return;
+            }
+            if (!valid) {
+                Log.w(TAG, "Bad chunk checksum at " + position + ", rewinding " + transfer.mName);
+                link.sendControl(Frame.TYPE_FILE_ACCEPT, FileFrames.position(id, position));
+                return;
+            }
+            int dataLength = length - FileFrames.CHUNK_HEADER_SIZE;
+            if (position + dataLength > transfer.mSize) {
+                Log.w(TAG, "Chunk past end of " + transfer.mName);
+                fail(transfer, link);
+                return;
+            }
+            try {
+                ByteBuffer data = ByteBuffer.wrap(src, offset + FileFrames.CHUNK_HEADER_SIZE, dataLength);
+                while (data.hasRemaining()) {
+                    position += transfer.mChannel.write(data, position);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Write failed for " + transfer.mName, e);
+                fail(transfer, link);
+                return;
+            }
+            transfer.mConfirmed = position;
+
+            if (position == transfer.mSize) {
+                finishIncoming(transfer, link);
+            } else if (++transfer.mChunksSinceAck >= ACK_EVERY) {
+                transfer.mChunksSinceAck = 0;
+                link.sendControl(Frame.TYPE_FILE_ACK, FileFrames.position(id, position));
+                notifyUpdate(transfer);
+            }
+        }
+    }
+
+    private synchronized void onAck(Link link, long id, long offset) {
+        FileTransfer transfer = mOutgoing.get(id);
+        if (transfer == null || transfer.mLink != link) {
+            return;
+        }
+        transfer.mConfirmed = Math.min(offset, transfer.mSize);
+        if (transfer.mConfirmed == transfer.mSize) {
+            transfer.mState = FileTransfer.STATE_DONE;
+            mOutgoing.remove(id);
+            notifyUpdate(transfer);
+            transfer.mLink = null;
+            return;
+        }
+        notifyUpdate(transfer);
+    }
+
+    private synchronized void onCancel(long id) {
+        FileTransfer transfer = mOutgoing.remove(id);
+        if (transfer != null) {
+            transfer.mGeneration++;
+        } else {
+            transfer = mIncoming.remove(id);
+            if (transfer == null) {
+                return;
+            }
+            closeQuietly(transfer.mChannel);
+            transfer.mChannel = null;
+            transfer.mFile.delete();
+        }
+        Log.w(TAG, "Transfer canceled by peer: " + transfer.mName);
+        transfer.mState = FileTransfer.STATE_FAILED;
+        notifyUpdate(transfer);
+        transfer.mLink = null;
+    }
+
+    // 받은 파일을 닫고 .part 를 떼어 낸다.
+    private synchronized void finishIncoming(FileTransfer transfer, Link link) {
+        try {
+            transfer.mChannel.force(true);
+        } catch (IOException e) {
+            Log.e(TAG, "force() failed for " + transfer.mName, e);
+            fail(transfer, link);
+            return;
+        }
+        closeQuietly(transfer.mChannel);
+        transfer.mChannel = null;
+        File target = uniqueFile(transfer.mFile.getParentFile(), transfer.mName);
+        if (transfer.mFile.renameTo(target)) {
+            transfer.mFile = target;
+        }
+        mIncoming.remove(transfer.mId);
+        transfer.mState = FileTransfer.STATE_DONE;
+        link.sendControl(Frame.TYPE_FILE_ACK, FileFrames.position(transfer.mId, transfer.mSize));
+        notifyUpdate(transfer);
+        transfer.mLink = null;
+    }
+
+    // 되돌릴 수 없는 오류. 상대방에게도 알리고 기록을 지운다.
+    private synchronized void fail(FileTransfer transfer, Link link) {
+        if (transfer.mIncoming) {
+            mIncoming.remove(transfer.mId);
+            closeQuietly(transfer.mChannel);
+            transfer.mChannel = null;
+            transfer.mFile.delete();
+        } else {
+            mOutgoing.remove(transfer.mId);
+            transfer.mGeneration++;
+        }
+        link.sendControl(Frame.TYPE_FILE_CANCEL, FileFrames.position(transfer.mId, 0));
+        transfer.mState = FileTransfer.STATE_FAILED;
+        notifyUpdate(transfer);
+        transfer.mLink = null;
+    }
+
+    private void pause(FileTransfer transfer) {
+        transfer.mState = FileTransfer.STATE_PAUSED;
+        notifyUpdate(transfer);
+        transfer.mLink = null;
+    }
+
+    private synchronized boolean isCurrent(FileTransfer transfer, int generation) {
+        return transfer.mGeneration == generation;
+    }
+
+    private void notifyUpdate(FileTransfer transfer) {
+        Link link = transfer.mLink;
+        mListener.onFileTransfer(link != null ? link.getPeerId() : -1, transfer, transfer.mState);
+    }
+
+    // 상대방이 보낸 이름으로 다운로드 폴더 밖에 쓰지 않도록 경로를 떼어 낸다.
+    private static String safeName(String name) {
+        String safe = name.replace('\\', '/');
+        safe = safe.substring(safe.lastIndexOf('/') + 1).trim();
+        if (safe.length() == 0 || safe.equals(".") || safe.equals("..")) {
+            return "file";
+        }
+        return safe;
+    }
+
+    private static File uniqueFile(File directory, String name) {
+        File file = new File(directory, name);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; file.exists(); i++) {
+            file = new File(directory, base + " (" + i + ")" + extension);
+        }
+        return file;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // 무시
+            }
+        }
+    }
+
+    /**
+     * 파일을 청크로 읽어 쓰기 큐에 넣는다. 큐에 올린 청크가 {@link #MAX_IN_FLIGHT} 개가 되면
+     * 가장 오래된 청크가 소켓에 쓰일 때까지 기다리므로 흐름 제어가 그대로 파일 읽기 속도가 된다.
+     */
+    private class Pump implements Runnable {
+
+        private final FileTransfer mmTransfer;
+        private final Link mmLink;
+        private final int mmGeneration;
+        private final long mmStart;
+
+        Pump(FileTransfer transfer, Link link, int generation, long start) {
+            this.mmTransfer = transfer;
+            this.mmLink = link;
+            this.mmGeneration = generation;
+            this.mmStart = start;
+        }
+
+        @Override
+        public void run() {
+            ArrayDeque<WriteFuture> inFlight = new ArrayDeque<WriteFuture>(MAX_IN_FLIGHT);
+            FileChannel channel = null;
+            try {
+                channel = new FileInputStream(mmTransfer.mFile).getChannel();
+                long position = mmStart;
+                while (position < mmTransfer.mSize && isCurrent(mmTransfer, mmGeneration)) {
+                    int length = (int) Math.min(FileFrames.CHUNK_SIZE, mmTransfer.mSize - position);
+                    // 쓰기 큐가 배열을 참조하므로 청크마다 새로 만든다.
+                    byte[] chunk = new byte[FileFrames.CHUNK_HEADER_SIZE + length];
+                    ByteBuffer data = ByteBuffer.wrap(chunk, FileFrames.CHUNK_HEADER_SIZE, length);
+                    long read = position;
+                    while (data.hasRemaining()) {
+                        int n = channel.read(data, read);
+                        if (n < 0) {
+                            throw new IOException("File shrank: " + mmTransfer.mFile);
+                        }
+                        read += n;
+                    }
+                    FileFrames.encodeChunkHeader(chunk, mmTransfer.mId, position, length);
+                    inFlight.addLast(mmLink.sendBulk(Frame.TYPE_FILE_CHUNK, chunk));
+                    position += length;
+                    if (inFlight.size() >= MAX_IN_FLIGHT) {
+                        inFlight.pollFirst().get();
+                    }
+                }
+                while (!inFlight.isEmpty()) {
+                    inFlight.pollFirst().get();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Read failed for " + mmTransfer.mName, e);
+                synchronized (FileTransferManager.this) {
+                    if (isCurrent(mmTransfer, mmGeneration)) {
+                        fail(mmTransfer, mmLink);
+                    }
+                }
+            } catch (ExecutionException e) {
+                // 연결이 끊겼으면 onLinkLost() 가 멈춤 상태로 바꾼다.
+                Log.w(TAG, "Chunk not sent: " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeQuietly(channel);
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+
+import btcore.co.kr.d2band.bluetoothchat.buffer.PooledBuffer;
+
+/**
+ * 이벤트를 예전처럼 {@link Constants} 의 Handler 메시지로 바꿔 보낸다.
+ * Handler 를 받는 생성자가 이 리스너를 등록한다. Handler 가 스레드를 옮기므로 바로 호출하는 executor 와 함께 쓴다.
+ */
+class HandlerChatListener implements ChatListener {
+
+    private final Handler mHandler;
+
+    HandlerChatListener(Handler handler) {
+        this.mHandler = handler;
+    }
+
+    @Override
+    public void onStateChanged(int state, int previousState) {
+        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, previousState).sendToTarget();
+    }
+
+    @Override
+    public void onConnected(int peerId, String deviceName, String address) {
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME, peerId, -1);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.DEVICE_NAME, deviceName);
+        bundle.putString(Constants.DEVICE_ADDRESS, address);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+
+    @Override
+    public void onMessage(int peerId, PooledBuffer message) {
+        mHandler.obtainMessage(Constants.MESSAGE_READ, message.length(), peerId, message)
+                .sendToTarget();
+    }
+
+    @Override
+    public void onMessageSent(int peerId, byte[] message) {
+        mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, peerId, message).sendToTarget();
+    }
+
+    @Override
+    public void onFileTransfer(int peerId, FileTransfer transfer, int state) {
+        mHandler.obtainMessage(Constants.MESSAGE_FILE_TRANSFER, peerId, state, transfer).sendToTarget();
+    }
+
+    @Override
+    public void onReconnecting(String address, int attempt, long delayMillis) {
+        mHandler.obtainMessage(Constants.MESSAGE_RECONNECT, attempt, (int) delayMillis, address)
+                .sendToTarget();
+    }
+
+    @Override
+    public void onReconnectGaveUp(String address, int attempts) {
+        mHandler.obtainMessage(Constants.MESSAGE_RECONNECT_GAVE_UP, attempts, -1, address)
+                .sendToTarget();
+    }
+
+    @Override
+    public void onBenchmark(int peerId, LinkBenchmark.Result result) {
+        mHandler.obtainMessage(Constants.MESSAGE_BENCHMARK, peerId, -1, result).sendToTarget();
+    }
+
+    @Override
+    public void onError(String message) {
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.TOAST, message);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+}
@@ -0,0 +1,152 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 연결마다 마지막으로 프레임을 받은 시각을 보고 죽은 연결을 찾는다.
+ * 타이머 하나가 모든 연결을 주기적으로 돌아본다.
+ *
+ * <p>interval 동안 아무것도 받지 못한 연결에는 PING 을 보내고, interval * maxMissed 동안 아무것도
+ * 받지 못하면 끊어진 것으로 보고 {@link Listener#onPeerTimeout} 을 부른다. 블루투스 범위를 벗어나서
+ * 반쯤 열린 채로 남은 소켓을 read() 가 예외를 던질 때까지 기다리지 않아도 된다.</p>
+ */
+class KeepAliveMonitor {
+
+    private static final String TAG = "KeepAliveMonitor";
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 2000;
+    public static final int DEFAULT_MAX_MISSED = 3;
+
+    interface Peer extends ConnectionManager.Connection {
+        /**
+         * 마지막으로 프레임을 받은 시각 ({@link SystemClock#elapsedRealtime()})
+         */
+        long getLastReceivedAt();
+
+        /**
+         * 상대방이 PING 에 답할 수 있는지. 모르는 상대는 조용하다고 끊지 않는다.
+         */
+        boolean isKeepAliveSupported();
+
+        void sendPing();
+    }
+
+    interface Listener {
+        void onPeerTimeout(Peer peer, long silentMillis);
+    }
+
+    private final ConnectionManager<? extends Peer> mConnections;
+    private final Listener mListener;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "KeepAlive");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // 아래는 this 로 보호한다.
+    private long mIntervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private int mMaxMissed = DEFAULT_MAX_MISSED;
+    private ScheduledFuture<?> mTask;
+
+    KeepAliveMonitor(ConnectionManager<? extends Peer> connections, Listener listener) {
+        this.mConnections = connections;
+        this.mListener = listener;
+    }
+
+    /**
+     * @param intervalMillis 0 이면 끈다.
+     * @param maxMissed      연속으로 놓친 heartbeat 가 이 수가 되면 끊는다.
+     */
+    synchronized void setInterval(long intervalMillis, int maxMissed) {
+        if (intervalMillis < 0 || maxMissed < 1) {
+            throw new IllegalArgumentException("interval " + intervalMillis + ", maxMissed " + maxMissed);
+        }
+        boolean running = mTask != null;
+        stop();
+        mIntervalMillis = intervalMillis;
+        mMaxMissed = maxMissed;
+        if (running) {
+            start();
+        }
+    }
+
+    synchronized long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    synchronized int getMaxMissed() {
+        return mMaxMissed;
+    }
+
+    /**
+     * 이미 돌고 있으면 아무것도 하지 않는다.
+     */
+    synchronized void start() {
+        if (mTask != null || mIntervalMillis == 0 || mExecutor.isShutdown()) {
+            return;
+        }
+        // 간격의 절반마다 보아야 놓친 시간을 interval 단위로 맞게 셀 수 있다.
+        long period = Math.max(1, mIntervalMillis / 2);
+        mTask = mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check(SystemClock.elapsedRealtime());
+                } catch (RuntimeException e) {
+                    // 예외가 나가면 다음 실행이 취소되므로 여기서 막는다.
+                    Log.e(TAG, "check failed", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+
+    /**
+     * 검사를 멈추고 스레드를 끝낸다. 그 뒤로는 {@link #start()} 해도 돌지 않는다.
+     */
+    synchronized void shutdown() {
+        stop();
+        mExecutor.shutdownNow();
+    }
+
+    void check(long now) {
+        long interval;
+        int maxMissed;
+        synchronized (this) {
+            interval = mIntervalMillis;
+            maxMissed = mMaxMissed;
+        }
+        if (interval == 0) {
+            return;
+        }
+        for (Peer peer : mConnections.snapshot()) {
+            long silent = now - peer.getLastReceivedAt();
+            if (silent < interval || !peer.isKeepAliveSupported()) {
+                continue;
+            }
+            if (silent >= interval * maxMissed) {
+                Log.w(TAG, peer.getRemoteAddress() + " silent for " + silent + "ms");
+                mListener.onPeerTimeout(peer, silent);
+            } else {
+                peer.sendPing();
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * 마지막으로 직접 연결에 성공한 장치 주소와 소켓 종류를 SharedPreferences 에 저장한다.
+ * 앱을 다시 켰을 때 장치 검색 없이 바로 그 장치에 연결하는 데 쓴다.
+ */
+class LastPeerStore {
+
+    private static final String PREFS_NAME = "bluetooth_chat";
+    private static final String KEY_ADDRESS = "last_peer_address";
+    private static final String KEY_SECURE = "last_peer_secure";
+
+    private final SharedPreferences mPrefs;
+
+    LastPeerStore(Context context) {
+        this.mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    void save(String address, boolean secure) {
+        // 같은 값이면 디스크에 다시 쓰지 않는다.
+        if (address.equals(getAddress()) && secure == isSecure()) {
+            return;
+        }
+        mPrefs.edit()
+                .putString(KEY_ADDRESS, address)
+                .putBoolean(KEY_SECURE, secure)
+                .apply();
+    }
+
+    /**
+     * @return 저장된 주소가 없으면 null
+     */
+    String getAddress() {
+        return mPrefs.getString(KEY_ADDRESS, null);
+    }
+
+    boolean isSecure() {
+        return mPrefs.getBoolean(KEY_SECURE, true);
+    }
+
+    void clear() {
+        mPrefs.edit().remove(KEY_ADDRESS).remove(KEY_SECURE).apply();
+    }
+}
@@ -0,0 +1,306 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import btcore.co.kr.d2band.bluetoothchat.protocol.Frame;
+import btcore.co.kr.d2band.bluetoothchat.protocol.WriteFuture;
+
+/**
+ * 연결 하나의 지연 시간과 처리량을 잰다.
+ *
+ * <p>대화 채널로 작은 메시지를 하나씩 주고받아 왕복 시간의 p50/p99/p999 를 구하고,
+ * 대용량 채널로 정해진 시간 동안 데이터를 흘려 보내 상대방이 다 받았다고 답할 때까지의 MB/s 를 구한다.
+ * 모든 메시지는 {@link Frame#TYPE_BENCH} 프레임이라 화면에 나오지 않고 압축하지 않는다.</p>
+ *
+ * <p>연결마다 하나씩 있고 양쪽 모두 상대방 요청에 답한다. 측정은
+ * {@link BluetoothChatService#benchmark(String, Options)} 로 시작한다. 서비스는 전송 계층에 상관없이
+ * 동작하므로 {@link btcore.co.kr.d2band.bluetoothchat.transport.PipedTransport} 나
+ * {@link btcore.co.kr.d2band.bluetoothchat.transport.LoopbackTcpTransport} 로 만든 서비스에서도
+ * 같은 방법으로 잴 수 있다.</p>
+ */
+public class LinkBenchmark {
+
+    // payload 첫 바이트
+    static final int OP_PING = 1;   // + long 번호. 대화 채널
+    static final int OP_PONG = 2;   // PING payload 그대로. 대화 채널
+    static final int OP_FILL = 3;   // 채우기. 대용량 채널
+    static final int OP_END = 4;    // 채우기 끝. 대용량 채널
+    static final int OP_DONE = 5;   // + long 받은 바이트 수. 제어 채널
+
+    // 대용량 측정에서 한 번에 보내는 크기와 쓰기 큐에 쌓아 두는 수
+    static final int BULK_CHUNK = 16 * 1024;
+    private static final int MAX_IN_FLIGHT = 8;
+    // 답을 기다리는 최대 시간
+    private static final long REPLY_TIMEOUT_MILLIS = 10 * 1000;
+
+    interface Link {
+        WriteFuture send(int type, int flags, byte[] payload);
+
+        WriteFuture sendBulk(int type, byte[] payload);
+
+        WriteFuture sendControl(int type, byte[] payload);
+
+        void consumed(int bytes);
+    }
+
+    /**
+     * 측정 방법. 왕복 횟수가 0 이면 지연 시간을, 시간이 0 이면 처리량을 재지 않는다.
+     */
+    public static final class Options {
+
+        public static final Options DEFAULT = new Options(1000, 32, 5000);
+
+        private final int mRoundTrips;
+        private final int mPingSize;
+        private final long mBulkMillis;
+
+        /**
+         * @param roundTrips 왕복 횟수
+         * @param pingSize   왕복 메시지 크기 (9 바이트 이상)
+         * @param bulkMillis 대용량 데이터를 보내는 시간
+         */
+        public Options(int roundTrips, int pingSize, long bulkMillis) {
+            if (roundTrips < 0 || pingSize < 9 || bulkMillis < 0) {
+                throw new IllegalArgumentException("roundTrips=" + roundTrips
+                        + " pingSize=" + pingSize + " bulkMillis=" + bulkMillis);
+            }
+            this.mRoundTrips = roundTrips;
+            this.mPingSize = pingSize;
+            this.mBulkMillis = bulkMillis;
+        }
+
+        public int getRoundTrips() {
+            return mRoundTrips;
+        }
+
+        public int getPingSize() {
+            return mPingSize;
+        }
+
+        public long getBulkMillis() {
+            return mBulkMillis;
+        }
+    }
+
+    /**
+     * 측정 결과. 시간은 나노초다.
+     */
+    public static final class Result {
+
+        private final long[] mRoundTripNanos;
+        private final long mBulkBytes;
+        private final long mBulkNanos;
+
+        Result(long[] sortedRoundTripNanos, long bulkBytes, long bulkNanos) {
+            this.mRoundTripNanos = sortedRoundTripNanos;
+            this.mBulkBytes = bulkBytes;
+            this.mBulkNanos = bulkNanos;
+        }
+
+        public int getRoundTrips() {
+            return mRoundTripNanos.length;
+        }
+
+        /**
+         * @param fraction 0 ~ 1 (예: 0.99)
+         * @return 왕복 시간 백분위 값. 측정하지 않았으면 0
+         */
+        public long getPercentileNanos(double fraction) {
+            if (mRoundTripNanos.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(fraction * mRoundTripNanos.length) - 1;
+            return mRoundTripNanos[Math.max(0, Math.min(index, mRoundTripNanos.length - 1))];
+        }
+
+        public long getP50Nanos() {
+            return getPercentileNanos(0.50);
+        }
+
+        public long getP99Nanos() {
+            return getPercentileNanos(0.99);
+        }
+
+        public long getP999Nanos() {
+            return getPercentileNanos(0.999);
+        }
+
+        public long getBulkBytes() {
+            return mBulkBytes;
+        }
+
+        public long getBulkNanos() {
+            return mBulkNanos;
+        }
+
+        /**
+         * 상대방이 받았다고 답한 바이트 기준 처리량. 측정하지 않았으면 0
+         */
+        public double getMegabytesPerSecond() {
+            if (mBulkNanos <= 0) {
+                return 0;
+            }
+            return mBulkBytes / (1024.0 * 1024.0) / (mBulkNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "rtt n=%d p50=%.2fms p99=%.2fms p999=%.2fms, bulk %d bytes %.2f MB/s",
+                    getRoundTrips(), getP50Nanos() / 1e6, getP99Nanos() / 1e6,
+                    getP999Nanos() / 1e6, mBulkBytes, getMegabytesPerSecond());
+        }
+    }
+
+    private final Link mLink;
+    // 상대방에게서 온 PONG, DONE. 읽기 스레드가 넣고 측정 스레드가 꺼낸다.
+    private final BlockingQueue<byte[]> mReplies = new LinkedBlockingQueue<byte[]>();
+    // 상대방 측정에 답하기 위해 END 까지 받은 바이트 수. 읽기 스레드만 사용한다.
+    private long mFillReceived;
+    // 한 연결에서 측정은 한 번에 하나만
+    private boolean mRunning;
+
+    LinkBenchmark(Link link) {
+        this.mLink = link;
+    }
+
+    /**
+     * 측정한다. 끝날 때까지 블록되므로 UI 스레드에서 부르면 안 된다.
+     */
+    Result run(Options options) throws IOException, InterruptedException {
+        synchronized (this) {
+            if (mRunning) {
+                throw new IOException("Benchmark already running");
+            }
+            mRunning = true;
+        }
+        try {
+            mReplies.clear();
+            long[] roundTrips = measureRoundTrips(options.getRoundTrips(), options.getPingSize());
+            long bulkBytes = 0;
+            long bulkNanos = 0;
+            if (options.getBulkMillis() > 0) {
+                long start = System.nanoTime();
+                bulkBytes = measureBulk(options.getBulkMillis());
+                bulkNanos = System.nanoTime() - start;
+            }
+            return new Result(roundTrips, bulkBytes, bulkNanos);
+        } finally {
+            synchronized (this) {
+                mRunning = false;
+            }
+        }
+    }
+
+    private long[] measureRoundTrips(int count, int size) throws IOException, InterruptedException {
+        long[] nanos = new long[count];
+        for (int i = 0; i < count; i++) {
+            byte[] ping = new byte[size];
+            ping[0] = OP_PING;
+            Frame.putLong(ping, 1, i);
+            long start = System.nanoTime();
+            checkSent(mLink.send(Frame.TYPE_BENCH, 0, ping));
+            byte[] pong = awaitReply(OP_PONG);
+            nanos[i] = System.nanoTime() - start;
+            if (Frame.getLong(pong, 1) != i) {
+                throw new IOException("Unexpected PONG " + Frame.getLong(pong, 1) + ", expected " + i);
+            }
+        }
+        Arrays.sort(nanos);
+        return nanos;
+    }
+
+    // 정해진 시간 동안 보내고 상대방이 다 받았다고 답한 바이트 수를 돌려준다.
+    private long measureBulk(long millis) throws IOException, InterruptedException {
+        // 쓰기 스레드가 보내는 동안 같은 배열을 계속 넘긴다. 내용은 바뀌지 않는다.
+        byte[] fill = new byte[BULK_CHUNK];
+        fill[0] = OP_FILL;
+        ArrayDeque<WriteFuture> inFlight = new ArrayDeque<WriteFuture>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (System.nanoTime() < deadline) {
+            if (inFlight.size() >= MAX_IN_FLIGHT) {
+                awaitSent(inFlight.pollFirst());
+            }
+            inFlight.addLast(checkSent(mLink.sendBulk(Frame.TYPE_BENCH, fill)));
+        }
+        inFlight.addLast(checkSent(mLink.sendBulk(Frame.TYPE_BENCH, new byte[]{OP_END})));
+        while (!inFlight.isEmpty()) {
+            awaitSent(inFlight.pollFirst());
+        }
+        return Frame.getLong(awaitReply(OP_DONE), 1);
+    }
+
+    /**
+     * 읽기 스레드에서 {@link Frame#TYPE_BENCH} 프레임을 넘긴다.
+     */
+    void onFrame(byte[] payload, int offset, int length) throws IOException {
+        if (length < 1) {
+            throw new IOException("Empty benchmark frame");
+        }
+        int op = payload[offset];
+        // 제어 채널로 온 DONE 말고는 모두 credit 을 쓰고 왔다. 바로 돌려준다.
+        if (op != OP_DONE) {
+            mLink.consumed(length);
+        }
+        switch (op) {
+            case OP_PING:
+                byte[] pong = Arrays.copyOfRange(payload, offset, offset + length);
+                pong[0] = OP_PONG;
+                mLink.send(Frame.TYPE_BENCH, 0, pong);
+                break;
+            case OP_FILL:
+                mFillReceived += length;
+                break;
+            case OP_END:
+                byte[] done = new byte[9];
+                done[0] = OP_DONE;
+                Frame.putLong(done, 1, mFillReceived);
+                mFillReceived = 0;
+                mLink.sendControl(Frame.TYPE_BENCH, done);
+                break;
+            case OP_PONG:
+            case OP_DONE:
+                mReplies.add(Arrays.copyOfRange(payload, offset, offset + length));
+                break;
+            default:
+                throw new IOException("Unknown benchmark op " + op);
+        }
+    }
+
+    private byte[] awaitReply(int op) throws IOException, InterruptedException {
+        byte[] reply = mReplies.poll(REPLY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (reply == null) {
+            throw new IOException("No benchmark reply in " + REPLY_TIMEOUT_MILLIS + "ms");
+        }
+        if (reply[0] != op) {
+            throw new IOException("Unexpected benchmark op " + reply[0] + ", expected " + op);
+        }
+        return reply;
+    }
+
+    // 큐에 넣자마자 실패했으면 (연결이 닫혔거나 큐가 가득 참) 바로 알린다.
+    private static WriteFuture checkSent(WriteFuture future) throws IOException {
+        if (future.isDone() && !future.isSuccess()) {
+            throw future.getFailure();
+        }
+        return future;
+    }
+
+    private static void awaitSent(WriteFuture future) throws IOException, InterruptedException {
+        try {
+            future.get(REPLY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw future.getFailure();
+        } catch (TimeoutException e) {
+            throw new IOException("Benchmark write timed out");
+        }
+    }
+}
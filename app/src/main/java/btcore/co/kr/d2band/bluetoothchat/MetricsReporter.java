@@ -0,0 +1,68 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import btcore.co.kr.d2band.bluetoothchat.metrics.MetricsSnapshot;
+import btcore.co.kr.d2band.common.logger.Log;
+
+/**
+ * 측정값을 주기적으로 common.logger.Log 에 남긴다. 로그 화면(LogFragment) 에도 그대로 보인다.
+ */
+class MetricsReporter {
+
+    private static final String TAG = "ChatMetrics";
+
+    interface Source {
+        MetricsSnapshot snapshot();
+    }
+
+    private final Source mSource;
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mTask;
+
+    MetricsReporter(Source source) {
+        this.mSource = source;
+    }
+
+    /**
+     * @param intervalMillis 0 이면 멈춘다.
+     */
+    synchronized void setInterval(long intervalMillis) {
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+        if (intervalMillis <= 0) {
+            return;
+        }
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        mTask = mExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                dump();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void dump() {
+        // 한 번 실패했다고 주기 작업이 멈추지 않도록 예외를 여기서 막는다.
+        try {
+            Log.i(TAG, mSource.snapshot().toString());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "metrics dump failed", e);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import btcore.co.kr.d2band.bluetoothchat.protocol.WriteFuture;
+import btcore.co.kr.d2band.bluetoothchat.store.Journal;
+
+/**
+ * 연결되어 있지 않은 장치에 보낸 메시지를 장치별 {@link Journal} 파일에 보관했다가
+ * 그 장치와 다시 연결되면 넣은 순서대로 보낸다. 상대방이 받았다고 확인한 메시지만 파일에서 지운다
+ * ({@link DeliveryManager} 의 ACK. 상대방이 지원하지 않으면 소켓에 다 쓰였을 때).
+ *
+ * <p>파일은 메모리에 매핑되어 있어 앱이 죽어도 남고, 다음에 앱을 켜서 그 장치와 연결하면 이어서 보낸다.
+ * 소켓에 쓴 뒤 확인받기 전에 앱이 죽었으면 다시 보내므로 상대방 화면에 두 번 나올 수 있다.
+ * 보관 중인 메시지가 있는 장치로 가는 새 메시지도 순서를 지키도록 여기를 거친다.</p>
+ *
+ * <p>연결된 채로 보내기가 실패하면 (전달 창이 가득 찬 경우 등) 보내던 것이 다 끝난 뒤
+ * {@link #RETRY_DELAY_MILLIS} 후에 처음 기록부터 다시 보낸다. 연결이 끊기면 다음 연결에서 이어서 보낸다.</p>
+ *
+ * <p>같은 폴더를 다른 Outbox 가 열기 전에 {@link #close()} 로 닫아야 한다. 두 Outbox 가 같은 파일을
+ * 매핑하면 서로 모르는 head 를 덮어쓴다.</p>
+ */
+class Outbox {
+
+    private static final String TAG = "Outbox";
+
+    // 한 장치에 대해 쓰기 큐에 동시에 넣어 두는 메시지 수
+    static final int MAX_IN_FLIGHT = 16;
+    // 보내기가 실패한 뒤 다시 보내기까지 기다리는 시간
+    static final long RETRY_DELAY_MILLIS = 500;
+
+    interface Sender {
+        /**
+         * @return 상대방이 받았다고 확인하면 성공하는 결과
+         */
+        WriteFuture deliver(byte[] message);
+    }
+
+    // 장치 하나의 보관함. Outbox 로 동기화한다.
+    private static final class Queue {
+        final String address;
+        final Journal journal;
+        // 기록과 같은 순서의 전송 결과. 앱을 다시 켜기 전에 넣은 기록은 기다리는 쪽이 없는 결과다.
+        final ArrayDeque<WriteFuture> futures = new ArrayDeque<WriteFuture>();
+        // 보내는 중인 연결. 연결되어 있지 않으면 null
+        Sender sender;
+        // 보냈지만 확인받지 못한 수
+        int inFlight;
+        // 보내다 실패했다. 보낸 것이 다 끝나면 처음 기록부터 다시 읽고, 잠시 뒤 다시 보낸다.
+        boolean failed;
+
+        Queue(String address, Journal journal) {
+            this.address = address;
+            this.journal = journal;
+            for (int i = 0; i < journal.size(); i++) {
+                futures.addLast(new WriteFuture());
+            }
+        }
+    }
+
+    private final File mDirectory;
+    private final Map<String, Queue> mQueues = new HashMap<String, Queue>();
+    private boolean mClosed;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "OutboxRetry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    Outbox(File directory) {
+        this.mDirectory = directory;
+    }
+
+    /**
+     * 메시지를 보관한다. 그 장치로 보내는 중이면 바로 이어서 보낸다.
+     *
+     * @return 나중에 상대방이 받으면 성공하는 결과. 보관하지 못했으면 이미 실패한 결과
+     */
+    synchronized WriteFuture enqueue(String address, byte[] message) {
+        if (mClosed) {
+            return WriteFuture.failed(new IOException("Outbox closed"));
+        }
+        Queue queue;
+        try {
+            queue = open(address);
+            if (!queue.journal.append(message, 0, message.length)) {
+                return WriteFuture.failed(new IOException("Outbox full for " + address));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "enqueue to " + address + " failed", e);
+            return WriteFuture.failed(e);
+        } catch (IllegalArgumentException e) {
+            return WriteFuture.failed(new IOException("Message too large: " + message.length));
+        }
+        WriteFuture future = new WriteFuture();
+        queue.futures.addLast(future);
+        pump(queue);
+        return future;
+    }
+
+    /**
+     * 장치와 연결되어 보낼 수 있게 됐다. 보관한 메시지를 순서대로 보낸다.
+     */
+    synchronized void flush(String address, Sender sender) {
+        if (mClosed) {
+            return;
+        }
+        Queue queue;
+        try {
+            queue = open(address);
+        } catch (IOException e) {
+            Log.e(TAG, "open outbox for " + address + " failed", e);
+            return;
+        }
+        if (!queue.journal.isEmpty()) {
+            Log.d(TAG, "Flushing " + queue.journal.size() + " queued messages to " + address);
+        }
+        queue.sender = sender;
+        pump(queue);
+    }
+
+    /**
+     * 연결이 끊겼다. 남은 메시지는 다음 연결에서 보낸다. 확인을 기다리던 것은
+     * {@link DeliveryManager} 가 다음 연결에서 다시 보내고 확인받는다.
+     */
+    synchronized void onLinkLost(String address, Sender sender) {
+        Queue queue = mQueues.get(address);
+        if (queue != null && queue.sender == sender) {
+            queue.sender = null;
+        }
+    }
+
+    /**
+     * 보관 중인 메시지가 있으면 true. 그 장치로 가는 새 메시지는 {@link #enqueue} 로 보내야 순서가 지켜진다.
+     */
+    synchronized boolean hasPending(String address) {
+        if (mClosed) {
+            return false;
+        }
+        Queue queue = mQueues.get(address);
+        if (queue == null) {
+            // 앱을 다시 켠 뒤 처음이면 파일에 남은 것이 있는지 본다.
+            if (!journalFile(address).exists()) {
+                return false;
+            }
+            try {
+                queue = open(address);
+            } catch (IOException e) {
+                Log.e(TAG, "open outbox for " + address + " failed", e);
+                return false;
+            }
+        }
+        return !queue.journal.isEmpty();
+    }
+
+    synchronized int pending(String address) {
+        Queue queue = mQueues.get(address);
+        return queue == null ? 0 : queue.journal.size();
+    }
+
+    // Outbox 를 잡은 상태에서 호출
+    private void pump(final Queue queue) {
+        while (queue.sender != null && !queue.failed && queue.inFlight < MAX_IN_FLIGHT) {
+            byte[] message = queue.journal.next();
+            if (message == null) {
+                return;
+            }
+            queue.inFlight++;
+            // 바로 끝난 결과면 리스너가 여기서 불린다. 같은 락이라 그대로 들어간다.
+            queue.sender.deliver(message).addListener(new WriteFuture.Listener() {
+                @Override
+                public void onWriteComplete(WriteFuture future) {
+                    onSent(queue, future);
+                }
+            });
+        }
+    }
+
+    private synchronized void onSent(final Queue queue, WriteFuture future) {
+        if (mClosed) {
+            // 닫은 뒤 온 확인. 기록은 다음에 여는 Outbox 가 다시 보낸다.
+            return;
+        }
+        queue.inFlight--;
+        if (future.isSuccess()) {
+            // 확인은 보낸 순서대로 오므로 성공한 것은 항상 첫 기록이다.
+            queue.journal.removeFirst();
+            queue.futures.pollFirst().complete();
+        } else if (!queue.failed) {
+            Log.w(TAG, "send to " + queue.address + " failed: " + future.getFailure());
+            queue.failed = true;
+        }
+        if (!queue.failed) {
+            pump(queue);
+            return;
+        }
+        if (queue.inFlight == 0) {
+            // 연결은 그대로 두고 잠시 뒤 처음 기록부터 다시 보낸다. 바로 보내면 같은 이유로 또 실패한다.
+            queue.journal.rewind();
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Outbox.this) {
+                        if (mClosed) {
+                            return;
+                        }
+                        queue.failed = false;
+                        pump(queue);
+                    }
+                }
+            }, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 다시 보내기 스레드를 멈추고 파일을 모두 닫는다. 보관한 메시지는 파일에 남아 다음에 여는 Outbox 가 보낸다.
+     * 기다리던 결과는 실패로 끝낸다.
+     */
+    void close() {
+        List<WriteFuture> waiting = new ArrayList<WriteFuture>();
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mExecutor.shutdownNow();
+            for (Queue queue : mQueues.values()) {
+                waiting.addAll(queue.futures);
+                try {
+                    queue.journal.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close outbox for " + queue.address + " failed", e);
+                }
+            }
+            mQueues.clear();
+        }
+        // 결과의 리스너가 다른 락을 잡을 수 있으므로 락 밖에서 끝낸다.
+        IOException closed = new IOException("Outbox closed");
+        for (WriteFuture future : waiting) {
+            future.fail(closed);
+        }
+    }
+
+    private Queue open(String address) throws IOException {
+        Queue queue = mQueues.get(address);
+        if (queue == null) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Cannot create " + mDirectory);
+            }
+            queue = new Queue(address, Journal.open(journalFile(address)));
+            mQueues.put(address, queue);
+        }
+        return queue;
+    }
+
+    private File journalFile(String address) {
+        // 블루투스 주소의 ':' 처럼 파일 이름에 쓰기 곤란한 문자는 바꾼다.
+        return new File(mDirectory, address.replaceAll("[^A-Za-z0-9.-]", "_") + ".journal");
+    }
+}
@@ -0,0 +1,71 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import java.util.Random;
+
+/**
+ * 연결이 끊기거나 연결에 실패했을 때 다시 연결을 시도하는 간격과 횟수.
+ *
+ * <p>n 번째 시도 전 대기 시간은 initialDelay * 2^(n-1) 이고 maxDelay 를 넘지 않는다.
+ * 여기서 최대 jitter 비율만큼을 무작위로 줄여서 여러 장치가 같은 순간에 다시 붙지 않게 한다.</p>
+ */
+public class ReconnectPolicy {
+
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(500, 30 * 1000, 0.5, 10);
+
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final double mJitter;
+    private final int mMaxAttempts;
+
+    /**
+     * @param initialDelayMillis 첫 시도 전 대기 시간
+     * @param maxDelayMillis     대기 시간 상한
+     * @param jitter             0 ~ 1. 대기 시간에서 무작위로 줄일 수 있는 최대 비율
+     * @param maxAttempts        연속 실패가 이 횟수가 되면 포기한다.
+     */
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, double jitter,
+                           int maxAttempts) {
+        if (initialDelayMillis <= 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("bad delays " + initialDelayMillis + ", " + maxDelayMillis);
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter " + jitter);
+        }
+        this.mInitialDelayMillis = initialDelayMillis;
+        this.mMaxDelayMillis = maxDelayMillis;
+        this.mJitter = jitter;
+        this.mMaxAttempts = maxAttempts;
+    }
+
+    public long getInitialDelayMillis() {
+        return mInitialDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return mMaxDelayMillis;
+    }
+
+    public double getJitter() {
+        return mJitter;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * @param attempt 1 부터 시작하는 시도 번호
+     * @return 이번 시도 전에 기다릴 시간 (ms)
+     */
+    public long delayMillis(int attempt, Random random) {
+        // 2^62 를 넘지 않게 지수를 제한한다.
+        int shift = Math.min(attempt - 1, 62);
+        long delay = mInitialDelayMillis;
+        if (shift > 0) {
+            delay = mInitialDelayMillis > (mMaxDelayMillis >> shift)
+                    ? mMaxDelayMillis : mInitialDelayMillis << shift;
+        }
+        delay = Math.min(delay, mMaxDelayMillis);
+        return (long) (delay * (1 - mJitter * random.nextDouble()));
+    }
+}
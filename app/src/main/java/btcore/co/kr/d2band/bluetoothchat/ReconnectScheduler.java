@@ -0,0 +1,179 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 마지막으로 직접 연결한 장치를 기억했다가 연결이 끊기거나 실패하면 {@link ReconnectPolicy} 에 따라
+ * 다시 연결한다. 시도할 때마다 {@link ChatListener#onReconnecting} 을, 포기하면
+ * {@link ChatListener#onReconnectGaveUp} 을 부른다.
+ *
+ * <p>연결됐다가 금방 다시 끊기는 장치는 시도 횟수를 처음부터 세지 않는다.
+ * 연결이 {@link #STABLE_MILLIS} 이상 유지된 경우에만 다음 끊김에서 처음 간격으로 돌아간다.</p>
+ */
+class ReconnectScheduler {
+
+    private static final String TAG = "ReconnectScheduler";
+
+    static final long STABLE_MILLIS = 10 * 1000;
+
+    interface Dialer {
+        boolean isConnected(String address);
+
+        void redial(String address, boolean secure);
+    }
+
+    private final ChatListener mListener;
+    private final Dialer mDialer;
+    private final Random mRandom = new Random();
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Reconnect");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private volatile ReconnectPolicy mPolicy = ReconnectPolicy.DEFAULT;
+
+    // 아래는 this 로 보호한다.
+    private String mAddress;
+    private boolean mSecure;
+    private int mAttempts;
+    private long mConnectedAt;
+    private ScheduledFuture<?> mPending;
+    // 예약할 때마다 증가한다. 취소된 뒤 늦게 실행된 작업을 걸러낸다.
+    private int mScheduleId;
+
+    ReconnectScheduler(ChatListener listener, Dialer dialer) {
+        this.mListener = listener;
+        this.mDialer = dialer;
+    }
+
+    /**
+     * null 이면 다시 연결하지 않는다.
+     */
+    void setPolicy(ReconnectPolicy policy) {
+        mPolicy = policy;
+        if (policy == null) {
+            cancel();
+        }
+    }
+
+    ReconnectPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * 사용자가 직접 연결을 요청했다. 이 장치를 기억하고 시도 횟수를 처음부터 센다.
+     */
+    synchronized void remember(String address, boolean secure) {
+        cancelPending();
+        mAddress = address;
+        mSecure = secure;
+        mAttempts = 0;
+        mConnectedAt = 0;
+    }
+
+    synchronized String getAddress() {
+        return mAddress;
+    }
+
+    synchronized boolean isSecure() {
+        return mSecure;
+    }
+
+    /**
+     * 예약된 시도를 취소한다. 기억한 장치는 그대로 둔다.
+     */
+    synchronized void cancel() {
+        cancelPending();
+        mAttempts = 0;
+    }
+
+    /**
+     * 예약된 시도를 취소하고 스레드를 멈춘다. 그 뒤로는 다시 연결하지 않는다.
+     */
+    synchronized void shutdown() {
+        cancelPending();
+        mExecutor.shutdownNow();
+    }
+
+    synchronized void onConnected(String address) {
+        if (address.equals(mAddress)) {
+            cancelPending();
+            mConnectedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    synchronized void onConnectFailed(String address) {
+        if (address.equals(mAddress)) {
+            scheduleNext();
+        }
+    }
+
+    synchronized void onConnectionLost(String address) {
+        if (!address.equals(mAddress)) {
+            return;
+        }
+        if (mConnectedAt != 0 && SystemClock.elapsedRealtime() - mConnectedAt >= STABLE_MILLIS) {
+            mAttempts = 0;
+        }
+        mConnectedAt = 0;
+        scheduleNext();
+    }
+
+    // this 를 잡은 상태에서 호출
+    private void scheduleNext() {
+        ReconnectPolicy policy = mPolicy;
+        if (policy == null || mPending != null || mExecutor.isShutdown()) {
+            return;
+        }
+        if (mAttempts >= policy.getMaxAttempts()) {
+            Log.w(TAG, "Giving up on " + mAddress + " after " + mAttempts + " attempts");
+            mListener.onReconnectGaveUp(mAddress, mAttempts);
+            mAttempts = 0;
+            return;
+        }
+        mAttempts++;
+        long delay = policy.delayMillis(mAttempts, mRandom);
+        Log.d(TAG, "Reconnect to " + mAddress + " #" + mAttempts + " in " + delay + "ms");
+        mListener.onReconnecting(mAddress, mAttempts, delay);
+        final String address = mAddress;
+        final boolean secure = mSecure;
+        final int scheduleId = ++mScheduleId;
+        mPending = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ReconnectScheduler.this) {
+                    // 그 사이에 취소되었거나 다시 예약됐다.
+                    if (scheduleId != mScheduleId || mPending == null) {
+                        return;
+                    }
+                    mPending = null;
+                }
+                if (!mDialer.isConnected(address)) {
+                    mDialer.redial(address, secure);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // this 를 잡은 상태에서 호출
+    private void cancelPending() {
+        mScheduleId++;
+        if (mPending != null) {
+            mPending.cancel(false);
+            mPending = null;
+        }
+    }
+}
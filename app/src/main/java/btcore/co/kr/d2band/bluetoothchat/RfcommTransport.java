@@ -0,0 +1,131 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import btcore.co.kr.d2band.bluetoothchat.transport.ChatChannel;
+import btcore.co.kr.d2band.bluetoothchat.transport.ChatServerChannel;
+import btcore.co.kr.d2band.bluetoothchat.transport.ChatTransport;
+
+/**
+ * BluetoothAdapter 의 RFCOMM 소켓을 사용하는 기본 전송 계층.
+ */
+public class RfcommTransport implements ChatTransport {
+
+    // 서버 소켓을 만들때 사용할 레코드 이름
+    private static final String NAME_SECURE = "BluetoothChatSecure";
+    private static final String NAME_INSECURE = "BluetoothChatInsecure";
+
+    /**
+     * 븥루투스 UUID 란 범용 고유번호 라고 불리며 128bit의 숫자들을 조합한다.
+     * 128비트의 HEX 조합은 Unique하여야 한다. Bluetooth 에서는 device 에서 제공하는 service를 검색하여 각 service 마다
+     * UUID 를 부여한다.
+     * < UUID 구성요소 >
+     * UUID = (time_low) - (time_mid) - (time_high_and_version) - (clock_seq_hi_and_reserved) - (clock_seq_low - node)
+     */
+    private static final UUID MY_UUID_SECURE =
+            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    private static final UUID MY_UUID_INSECURE =
+            UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+
+    private final BluetoothAdapter mAdapter;
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        this.mAdapter = adapter;
+    }
+
+    @Override
+    public ChatServerChannel listen(boolean secure) throws IOException {
+        BluetoothServerSocket serverSocket;
+        if (secure) {
+            serverSocket = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, MY_UUID_SECURE);
+        } else {
+            serverSocket = mAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_INSECURE, MY_UUID_INSECURE);
+        }
+        return new RfcommServerChannel(serverSocket);
+    }
+
+    @Override
+    public ChatChannel open(String address, boolean secure) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        BluetoothSocket socket;
+        if (secure) {
+            // createRfcommSocketToServiceRecord 을 호출해서 BluetoothSocket 을 얻는다. ( 내가 정의한 uuid 를 통해서)
+            socket = device.createRfcommSocketToServiceRecord(MY_UUID_SECURE);
+        } else {
+            // createInsecureRfcommSocketToServiceRecord 을 호출해서 블루투스 소켓을 얻는다.
+            socket = device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
+        }
+        return new RfcommChannel(socket, mAdapter);
+    }
+
+    private static final class RfcommServerChannel implements ChatServerChannel {
+        private final BluetoothServerSocket mServerSocket;
+
+        RfcommServerChannel(BluetoothServerSocket serverSocket) {
+            this.mServerSocket = serverSocket;
+        }
+
+        @Override
+        public ChatChannel accept() throws IOException {
+            return new RfcommChannel(mServerSocket.accept(), null);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    private static final class RfcommChannel implements ChatChannel {
+        private final BluetoothSocket mSocket;
+        // accept 로 얻은 채널이면 null
+        private final BluetoothAdapter mAdapter;
+
+        RfcommChannel(BluetoothSocket socket, BluetoothAdapter adapter) {
+            this.mSocket = socket;
+            this.mAdapter = adapter;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            // 항상 스캔을 취소한뒤 연결한다 왜냐하면 커넥션 상태가 늦어지는 요소가 되기 때문이다.
+            if (mAdapter != null) {
+                mAdapter.cancelDiscovery();
+            }
+            mSocket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mSocket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
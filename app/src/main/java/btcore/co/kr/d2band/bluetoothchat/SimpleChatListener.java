@@ -0,0 +1,47 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import btcore.co.kr.d2band.bluetoothchat.buffer.PooledBuffer;
+
+/**
+ * 필요한 메서드만 재정의하도록 아무것도 하지 않는 {@link ChatListener}.
+ * {@link #onMessage} 를 재정의하지 않으면 받은 버퍼를 바로 놓는다.
+ */
+public class SimpleChatListener implements ChatListener {
+
+    @Override
+    public void onStateChanged(int state, int previousState) {
+    }
+
+    @Override
+    public void onConnected(int peerId, String deviceName, String address) {
+    }
+
+    @Override
+    public void onMessage(int peerId, PooledBuffer message) {
+        message.release();
+    }
+
+    @Override
+    public void onMessageSent(int peerId, byte[] message) {
+    }
+
+    @Override
+    public void onFileTransfer(int peerId, FileTransfer transfer, int state) {
+    }
+
+    @Override
+    public void onReconnecting(String address, int attempt, long delayMillis) {
+    }
+
+    @Override
+    public void onReconnectGaveUp(String address, int attempts) {
+    }
+
+    @Override
+    public void onBenchmark(int peerId, LinkBenchmark.Result result) {
+    }
+
+    @Override
+    public void onError(String message) {
+    }
+}
@@ -0,0 +1,109 @@
+package btcore.co.kr.d2band.bluetoothchat.buffer;
+
+/**
+ * 받은 프레임을 담을 {@link PooledBuffer} 를 재사용하는 풀.
+ * 크기별(2의 거듭제곱) 로 나눈 스택에 버퍼를 보관하며 빌리고 돌려줄 때 객체를 새로 만들지 않는다.
+ * 가장 큰 크기보다 큰 요청은 풀을 거치지 않고 새로 만든다.
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 256;
+    public static final int MAX_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_BUFFERS_PER_CLASS = 32;
+
+    private final SizeClass[] mClasses;
+
+    public BufferPool() {
+        this(DEFAULT_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * @param buffersPerClass 크기별로 보관할 최대 버퍼 수
+     */
+    public BufferPool(int buffersPerClass) {
+        int count = indexFor(MAX_BUFFER_SIZE) + 1;
+        mClasses = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            mClasses[i] = new SizeClass(MIN_BUFFER_SIZE << i, buffersPerClass);
+        }
+    }
+
+    /**
+     * 최소 size 바이트를 담을 수 있는 버퍼를 빌린다. 참조 카운트는 1 로 시작한다.
+     */
+    public PooledBuffer acquire(int size) {
+        PooledBuffer buffer;
+        if (size > MAX_BUFFER_SIZE) {
+            buffer = new PooledBuffer(null, size);
+        } else {
+            SizeClass sizeClass = mClasses[indexFor(size)];
+            buffer = sizeClass.pop();
+            if (buffer == null) {
+                buffer = new PooledBuffer(this, sizeClass.mBufferSize);
+            }
+        }
+        buffer.onAcquire();
+        return buffer;
+    }
+
+    /**
+     * 현재 풀에 보관된 버퍼 수 (디버깅용)
+     */
+    public int pooledCount() {
+        int total = 0;
+        for (SizeClass sizeClass : mClasses) {
+            total += sizeClass.size();
+        }
+        return total;
+    }
+
+    void recycle(PooledBuffer buffer) {
+        int index = indexFor(buffer.capacity());
+        if (index < mClasses.length && mClasses[index].mBufferSize == buffer.capacity()) {
+            mClasses[index].push(buffer);
+        }
+    }
+
+    private static int indexFor(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        // size 이상인 가장 작은 2의 거듭제곱의 지수 - log2(MIN_BUFFER_SIZE)
+        int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return bits - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * 같은 크기의 버퍼를 담는 고정 크기 스택
+     */
+    private static final class SizeClass {
+        private final int mBufferSize;
+        private final PooledBuffer[] mStack;
+        private int mTop;
+
+        SizeClass(int bufferSize, int capacity) {
+            this.mBufferSize = bufferSize;
+            this.mStack = new PooledBuffer[capacity];
+        }
+
+        synchronized PooledBuffer pop() {
+            if (mTop == 0) {
+                return null;
+            }
+            PooledBuffer buffer = mStack[--mTop];
+            mStack[mTop] = null;
+            return buffer;
+        }
+
+        synchronized void push(PooledBuffer buffer) {
+            // 가득 차면 버리고 GC 에 맡긴다.
+            if (mTop < mStack.length) {
+                mStack[mTop++] = buffer;
+            }
+        }
+
+        synchronized int size() {
+            return mTop;
+        }
+    }
+}
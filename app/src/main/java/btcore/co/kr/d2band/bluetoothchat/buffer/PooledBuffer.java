@@ -0,0 +1,122 @@
+package btcore.co.kr.d2band.bluetoothchat.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link BufferPool} 에서 빌려온 참조 카운트 버퍼.
+ * 받은 쪽은 데이터를 다 쓴 뒤 반드시 {@link #release()} 를 호출해야 풀로 돌아간다.
+ * 다른 스레드로 넘길 때는 {@link #retain()} 으로 참조를 하나 더 잡는다.
+ */
+public final class PooledBuffer {
+
+    /**
+     * 마지막 참조가 놓여 버퍼가 풀로 돌아가기 직전에 호출된다.
+     * 받는 쪽이 데이터를 실제로 다 처리했는지 알아야 할 때(흐름 제어) 사용한다.
+     */
+    public interface ReleaseListener {
+        void onReleased(int length);
+    }
+
+    private final BufferPool mPool;
+    private final byte[] mArray;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private int mLength;
+    private ReleaseListener mReleaseListener;
+
+    PooledBuffer(BufferPool pool, int capacity) {
+        this.mPool = pool;
+        this.mArray = new byte[capacity];
+    }
+
+    /**
+     * 데이터가 들어 있는 배열. 유효한 범위는 [0, {@link #length()}) 이다.
+     */
+    public byte[] array() {
+        return mArray;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public int capacity() {
+        return mArray.length;
+    }
+
+    /**
+     * src 의 내용을 버퍼 맨 앞에 복사하고 길이를 지정한다.
+     */
+    public PooledBuffer put(byte[] src, int offset, int length) {
+        if (length > mArray.length) {
+            throw new IndexOutOfBoundsException("length " + length + " > capacity " + mArray.length);
+        }
+        System.arraycopy(src, offset, mArray, 0, length);
+        mLength = length;
+        return this;
+    }
+
+    public void setLength(int length) {
+        if (length < 0 || length > mArray.length) {
+            throw new IndexOutOfBoundsException("length " + length);
+        }
+        mLength = length;
+    }
+
+    /**
+     * 버퍼가 풀로 돌아갈 때 호출될 리스너를 지정한다. 풀에서 다시 꺼내면 지워진다.
+     */
+    public PooledBuffer setReleaseListener(ReleaseListener listener) {
+        mReleaseListener = listener;
+        return this;
+    }
+
+    /**
+     * 유효한 데이터만 가리키는 ByteBuffer 뷰. 복사하지 않는다.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(mArray, 0, mLength);
+    }
+
+    public PooledBuffer retain() {
+        int count;
+        do {
+            count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer already released");
+            }
+        } while (!mRefCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * 참조를 하나 놓는다. 마지막 참조였으면 풀로 돌아가며 이후 이 버퍼를 읽으면 안 된다.
+     */
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            ReleaseListener listener = mReleaseListener;
+            if (listener != null) {
+                mReleaseListener = null;
+                listener.onReleased(mLength);
+            }
+            mLength = 0;
+            if (mPool != null) {
+                mPool.recycle(this);
+            }
+        } else if (count < 0) {
+            mRefCount.set(0);
+            throw new IllegalStateException("Buffer released too many times");
+        }
+    }
+
+    int refCount() {
+        return mRefCount.get();
+    }
+
+    // 풀에서 꺼낼 때 참조 카운트를 1 로 맞춘다.
+    void onAcquire() {
+        mReleaseListener = null;
+        mRefCount.set(1);
+    }
+}
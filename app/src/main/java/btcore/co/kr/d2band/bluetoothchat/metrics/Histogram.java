@@ -0,0 +1,136 @@
+package btcore.co.kr.d2band.bluetoothchat.metrics;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 구간이 고정된 히스토그램. 기록은 락 없이 카운터 하나만 올리므로 읽기, 쓰기 경로에서 불러도 된다.
+ * 백분위 값은 그 값이 들어간 구간의 상한이다.
+ */
+public final class Histogram {
+
+    // 구간 상한 (포함). 마지막 상한보다 큰 값은 넘침 구간에 들어간다.
+    private final long[] mBounds;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public Histogram(long[] bounds) {
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("bounds must ascend: " + Arrays.toString(bounds));
+            }
+        }
+        this.mBounds = bounds.clone();
+        this.mCounts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * min 부터 max 까지 1, 2, 5 배로 늘어나는 구간 (예: 10, 20, 50, 100, ...)
+     */
+    public static Histogram of125(long min, long max) {
+        long[] bounds = new long[64];
+        int n = 0;
+        long decade = 1;
+        while (decade * 10 <= min) {
+            decade *= 10;
+        }
+        while (true) {
+            for (int step : new int[]{1, 2, 5}) {
+                long bound = decade * step;
+                if (bound >= min && bound <= max) {
+                    bounds[n++] = bound;
+                }
+            }
+            if (decade > max / 10) {
+                break;
+            }
+            decade *= 10;
+        }
+        return new Histogram(Arrays.copyOf(bounds, n));
+    }
+
+    public void record(long value) {
+        int index = Arrays.binarySearch(mBounds, value);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        mCounts.incrementAndGet(index);
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new Snapshot(mBounds, counts, mSum.get(), mMax.get());
+    }
+
+    /**
+     * 어느 순간의 값. 바뀌지 않는다.
+     */
+    public static final class Snapshot {
+
+        private final long[] mBounds;
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(long[] bounds, long[] counts, long sum, long max) {
+            this.mBounds = bounds;
+            this.mCounts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.mCount = count;
+            this.mSum = sum;
+            this.mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * @param fraction 0 ~ 1 (예: 0.99)
+         * @return 그 백분위 값이 들어간 구간의 상한. 넘침 구간이면 최댓값. 기록이 없으면 0
+         */
+        public long getPercentile(double fraction) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * mCount);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank && mCounts[i] > 0) {
+                    return i < mBounds.length ? Math.min(mBounds[i], mMax) : mMax;
+                }
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n=%d mean=%.1f p50=%d p99=%d max=%d",
+                    mCount, getMean(), getPercentile(0.50), getPercentile(0.99), mMax);
+        }
+    }
+}
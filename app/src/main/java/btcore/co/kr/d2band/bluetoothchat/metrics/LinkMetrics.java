@@ -0,0 +1,33 @@
+package btcore.co.kr.d2band.bluetoothchat.metrics;
+
+import android.os.SystemClock;
+
+/**
+ * 연결 하나의 측정값. 연결이 끊기면 함께 버린다.
+ * 카운터는 읽기 스레드, 쓰기 스레드, UI 스레드에서 각자 올린다.
+ */
+public final class LinkMetrics {
+
+    // 소켓 스트림 read()/write() 호출 수와 바이트 수 (프레임 헤더 포함)
+    public final StripedCounter bytesIn = new StripedCounter();
+    public final StripedCounter bytesOut = new StripedCounter();
+    public final StripedCounter readCalls = new StripedCounter();
+    public final StripedCounter writeCalls = new StripedCounter();
+    // 받은 프레임 수 (조각 하나가 프레임 하나)
+    public final StripedCounter framesIn = new StripedCounter();
+    // Handler 로 넘긴 대화 메시지 수, 보낸 메시지 수
+    public final StripedCounter messagesIn = new StripedCounter();
+    public final StripedCounter messagesOut = new StripedCounter();
+    // Handler 로 넘겼지만 아직 release() 되지 않은 메시지 수. UI 스레드가 밀리면 늘어난다.
+    public final StripedCounter handlerBacklog = new StripedCounter();
+    // 쓰기 큐에 넣은 뒤 소켓에 쓰일 때까지 걸린 시간 (마이크로초)
+    public final Histogram writeLatencyMicros = Histogram.of125(10, 10 * 1000 * 1000);
+    // 받은 대화 메시지 크기 (바이트)
+    public final Histogram messageSizeIn = Histogram.of125(10, 1024 * 1024);
+
+    private final long mCreatedAt = SystemClock.elapsedRealtime();
+
+    public long getCreatedAt() {
+        return mCreatedAt;
+    }
+}
@@ -0,0 +1,38 @@
+package btcore.co.kr.d2band.bluetoothchat.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 읽은 바이트 수와 read() 호출 수를 센다.
+ */
+public final class MeteredInputStream extends FilterInputStream {
+
+    private final LinkMetrics mMetrics;
+
+    public MeteredInputStream(InputStream in, LinkMetrics metrics) {
+        super(in);
+        this.mMetrics = metrics;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        mMetrics.readCalls.increment();
+        if (b >= 0) {
+            mMetrics.bytesIn.increment();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        mMetrics.readCalls.increment();
+        if (n > 0) {
+            mMetrics.bytesIn.add(n);
+        }
+        return n;
+    }
+}
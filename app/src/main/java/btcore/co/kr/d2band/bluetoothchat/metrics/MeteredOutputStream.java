@@ -0,0 +1,33 @@
+package btcore.co.kr.d2band.bluetoothchat.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 쓴 바이트 수와 write() 호출 수를 센다.
+ */
+public final class MeteredOutputStream extends FilterOutputStream {
+
+    private final LinkMetrics mMetrics;
+
+    public MeteredOutputStream(OutputStream out, LinkMetrics metrics) {
+        super(out);
+        this.mMetrics = metrics;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        mMetrics.writeCalls.increment();
+        mMetrics.bytesOut.increment();
+    }
+
+    // FilterOutputStream 은 바이트 하나씩 쓰므로 그대로 넘긴다.
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        mMetrics.writeCalls.increment();
+        mMetrics.bytesOut.add(len);
+    }
+}
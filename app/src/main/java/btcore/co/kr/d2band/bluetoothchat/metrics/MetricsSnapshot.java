@@ -0,0 +1,203 @@
+package btcore.co.kr.d2band.bluetoothchat.metrics;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 어느 순간의 서비스, 연결별 측정값. 바뀌지 않으므로 어느 스레드로 넘겨도 된다.
+ */
+public final class MetricsSnapshot {
+
+    private final long mAccepts;
+    private final long mConnectAttempts;
+    private final long mConnectFailures;
+    private final long mConnectionsLost;
+    private final long mRedials;
+    private final Histogram.Snapshot mConnectMillis;
+    private final List<Link> mLinks;
+
+    public MetricsSnapshot(ServiceMetrics metrics, List<Link> links) {
+        this.mAccepts = metrics.accepts.sum();
+        this.mConnectAttempts = metrics.connectAttempts.sum();
+        this.mConnectFailures = metrics.connectFailures.sum();
+        this.mConnectionsLost = metrics.connectionsLost.sum();
+        this.mRedials = metrics.redials.sum();
+        this.mConnectMillis = metrics.connectMillis.snapshot();
+        this.mLinks = Collections.unmodifiableList(new ArrayList<Link>(links));
+    }
+
+    public long getAccepts() {
+        return mAccepts;
+    }
+
+    public long getConnectAttempts() {
+        return mConnectAttempts;
+    }
+
+    public long getConnectFailures() {
+        return mConnectFailures;
+    }
+
+    public long getConnectionsLost() {
+        return mConnectionsLost;
+    }
+
+    public long getRedials() {
+        return mRedials;
+    }
+
+    public Histogram.Snapshot getConnectMillis() {
+        return mConnectMillis;
+    }
+
+    public List<Link> getLinks() {
+        return mLinks;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,
+                "accepts=%d connects=%d failed=%d lost=%d redials=%d connect_ms[%s]",
+                mAccepts, mConnectAttempts, mConnectFailures, mConnectionsLost, mRedials,
+                mConnectMillis));
+        for (Link link : mLinks) {
+            sb.append('\n').append(link);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 연결 하나의 측정값
+     */
+    public static final class Link {
+
+        private final String mAddress;
+        private final int mPeerId;
+        private final long mUptimeMillis;
+        private final long mBytesIn;
+        private final long mBytesOut;
+        private final long mReadCalls;
+        private final long mWriteCalls;
+        private final long mFramesIn;
+        private final long mMessagesIn;
+        private final long mMessagesOut;
+        private final long mHandlerBacklog;
+        private final int mQueuedFrames;
+        private final long mCredit;
+        private final int mUnacked;
+        private final Histogram.Snapshot mWriteLatencyMicros;
+        private final Histogram.Snapshot mMessageSizeIn;
+
+        /**
+         * @param queuedFrames 쓰기 큐에 남은 프레임 수
+         * @param credit       지금 보낼 수 있는 바이트 수
+         * @param unacked      상대방이 아직 확인하지 않은 메시지 수
+         */
+        public Link(String address, int peerId, LinkMetrics metrics, int queuedFrames,
+                    long credit, int unacked) {
+            this.mAddress = address;
+            this.mPeerId = peerId;
+            this.mUptimeMillis = SystemClock.elapsedRealtime() - metrics.getCreatedAt();
+            this.mBytesIn = metrics.bytesIn.sum();
+            this.mBytesOut = metrics.bytesOut.sum();
+            this.mReadCalls = metrics.readCalls.sum();
+            this.mWriteCalls = metrics.writeCalls.sum();
+            this.mFramesIn = metrics.framesIn.sum();
+            this.mMessagesIn = metrics.messagesIn.sum();
+            this.mMessagesOut = metrics.messagesOut.sum();
+            this.mHandlerBacklog = metrics.handlerBacklog.sum();
+            this.mQueuedFrames = queuedFrames;
+            this.mCredit = credit;
+            this.mUnacked = unacked;
+            this.mWriteLatencyMicros = metrics.writeLatencyMicros.snapshot();
+            this.mMessageSizeIn = metrics.messageSizeIn.snapshot();
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public int getPeerId() {
+            return mPeerId;
+        }
+
+        public long getUptimeMillis() {
+            return mUptimeMillis;
+        }
+
+        public long getBytesIn() {
+            return mBytesIn;
+        }
+
+        public long getBytesOut() {
+            return mBytesOut;
+        }
+
+        public long getReadCalls() {
+            return mReadCalls;
+        }
+
+        public long getWriteCalls() {
+            return mWriteCalls;
+        }
+
+        public long getFramesIn() {
+            return mFramesIn;
+        }
+
+        public long getMessagesIn() {
+            return mMessagesIn;
+        }
+
+        public long getMessagesOut() {
+            return mMessagesOut;
+        }
+
+        public long getHandlerBacklog() {
+            return mHandlerBacklog;
+        }
+
+        public int getQueuedFrames() {
+            return mQueuedFrames;
+        }
+
+        public long getCredit() {
+            return mCredit;
+        }
+
+        public int getUnacked() {
+            return mUnacked;
+        }
+
+        public Histogram.Snapshot getWriteLatencyMicros() {
+            return mWriteLatencyMicros;
+        }
+
+        public Histogram.Snapshot getMessageSizeIn() {
+            return mMessageSizeIn;
+        }
+
+        /**
+         * 연결된 뒤 평균 초당 read() 호출 수
+         */
+        public double getReadsPerSecond() {
+            return mUptimeMillis <= 0 ? 0 : mReadCalls * 1000.0 / mUptimeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "[%d] %s up=%ds in=%dB/%d reads (%.1f/s)/%d frames/%d msgs out=%dB/%d writes/%d msgs"
+                            + " backlog=%d queued=%d credit=%d unacked=%d write_us[%s] size_in[%s]",
+                    mPeerId, mAddress, mUptimeMillis / 1000, mBytesIn, mReadCalls,
+                    getReadsPerSecond(), mFramesIn, mMessagesIn, mBytesOut, mWriteCalls,
+                    mMessagesOut, mHandlerBacklog, mQueuedFrames, mCredit, mUnacked,
+                    mWriteLatencyMicros, mMessageSizeIn);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package btcore.co.kr.d2band.bluetoothchat.metrics;
+
+/**
+ * BluetoothChatService 전체의 연결 관련 측정값. 서비스가 살아 있는 동안 계속 쌓인다.
+ */
+public final class ServiceMetrics {
+
+    // 받아들인 연결, 직접 시도한 연결 (다시 연결 포함), 실패, 끊김
+    public final StripedCounter accepts = new StripedCounter();
+    public final StripedCounter connectAttempts = new StripedCounter();
+    public final StripedCounter connectFailures = new StripedCounter();
+    public final StripedCounter connectionsLost = new StripedCounter();
+    // 다시 연결 시도 수. connectAttempts 에도 들어간다.
+    public final StripedCounter redials = new StripedCounter();
+    // connect() 부터 연결될 때까지 걸린 시간 (밀리초)
+    public final Histogram connectMillis = Histogram.of125(10, 60 * 1000);
+}
@@ -0,0 +1,49 @@
+package btcore.co.kr.d2band.bluetoothchat.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 여러 스레드가 자주 더하는 카운터.
+ * 스레드마다 다른 칸(서로 다른 캐시 라인) 에 더하고 읽을 때 합한다. 읽기는 쓰기보다 훨씬 드물다고 본다.
+ */
+public final class StripedCounter {
+
+    // long 8개 = 64바이트. 칸 사이를 이만큼 띄워 같은 캐시 라인을 두 스레드가 건드리지 않게 한다.
+    private static final int PAD = 8;
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PAD);
+
+    private static int stripes() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int n = 1;
+        while (n < cpus && n < 16) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    public void add(long delta) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        mCells.addAndGet(stripe * PAD, delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void decrement() {
+        add(-1);
+    }
+
+    /**
+     * 지금까지 더한 값. 다른 스레드가 더하는 중이면 그 일부만 반영될 수 있다.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += mCells.get(i * PAD);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,77 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) 체크섬.
+ * java.util.zip.CRC32C 는 API 26 (Java 9) 부터 있어서 minSdk 21 에서는 직접 구현한다.
+ * 한 번에 8바이트씩 처리하는 slicing-by-8 테이블 방식이다.
+ */
+public final class Crc32c implements Checksum {
+
+    private static final int POLY = 0x82F63B78;
+    private static final int[][] TABLE = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLE[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            int crc = TABLE[0][n];
+            for (int k = 1; k < 8; k++) {
+                crc = TABLE[0][crc & 0xff] ^ (crc >>> 8);
+                TABLE[k][n] = crc;
+            }
+        }
+    }
+
+    private int mCrc = 0xffffffff;
+
+    @Override
+    public void update(int b) {
+        mCrc = TABLE[0][(mCrc ^ b) & 0xff] ^ (mCrc >>> 8);
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int crc = mCrc;
+        int[] t0 = TABLE[0], t1 = TABLE[1], t2 = TABLE[2], t3 = TABLE[3];
+        int[] t4 = TABLE[4], t5 = TABLE[5], t6 = TABLE[6], t7 = TABLE[7];
+        while (len >= 8) {
+            int lo = crc ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+                    | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+            crc = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+                    ^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff]
+                    ^ t1[b[off + 6] & 0xff] ^ t0[b[off + 7] & 0xff];
+            off += 8;
+            len -= 8;
+        }
+        while (len-- > 0) {
+            crc = t0[(crc ^ b[off++]) & 0xff] ^ (crc >>> 8);
+        }
+        mCrc = crc;
+    }
+
+    @Override
+    public long getValue() {
+        return (~mCrc) & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        mCrc = 0xffffffff;
+    }
+
+    /**
+     * 한 번에 계산하는 편의 함수
+     */
+    public static int compute(byte[] b, int off, int len) {
+        Crc32c crc = new Crc32c();
+        crc.update(b, off, len);
+        return (int) crc.getValue();
+    }
+}
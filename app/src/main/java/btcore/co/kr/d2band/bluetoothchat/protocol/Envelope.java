@@ -0,0 +1,200 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.io.IOException;
+
+/**
+ * DATA 메시지 하나를 감싸는 형식. 종류, 번호, 보낸 시각, 보낸 사람을 함께 보낸다.
+ *
+ * <pre>
+ * | magic 1 | type varint | id varint | timestamp varint | sender length varint | sender | payload length varint | payload |
+ * </pre>
+ *
+ * magic 은 {@link #MAGIC} 이다. UTF-8 문자열은 이 바이트로 시작할 수 없으므로 예전 버전이 보낸
+ * 문자열 메시지와 구분된다 ({@link #isEnvelope}). timestamp 는 1970 년부터의 밀리초, sender 는
+ * UTF-8 이고 없으면 길이 0 이다. payload 해석은 type 에 따른다.
+ *
+ * <p>객체 하나를 계속 다시 쓴다. 보낼 때는 값을 채우고 호출하는 쪽이 준 버퍼에 {@link #encode} 하고,
+ * 받을 때는 {@link #decode} 한 뒤 sender, payload 를 받은 배열 안의 범위로 읽는다. 복사하지 않는다.
+ * 이 클래스는 스레드 안전하지 않다.</p>
+ */
+public final class Envelope {
+
+    // 0xF8 이상은 UTF-8 에 나오지 않는다. 아래 3비트는 형식 버전이다.
+    public static final int MAGIC = 0xF9;
+
+    // 메시지 종류
+    public static final int TYPE_TEXT = 1;      // payload: UTF-8 대화 문자열
+
+    private int mType;
+    private long mId;
+    private long mTimestamp;
+    private byte[] mSender;
+    private int mSenderOffset;
+    private int mSenderLength;
+    private byte[] mPayload;
+    private int mPayloadOffset;
+    private int mPayloadLength;
+
+    /**
+     * sender, payload 는 비운다.
+     */
+    public Envelope set(int type, long id, long timestampMillis) {
+        if (type < 0 || id < 0 || timestampMillis < 0) {
+            throw new IllegalArgumentException("type=" + type + " id=" + id
+                    + " timestamp=" + timestampMillis);
+        }
+        mType = type;
+        mId = id;
+        mTimestamp = timestampMillis;
+        mSender = null;
+        mSenderOffset = 0;
+        mSenderLength = 0;
+        mPayload = null;
+        mPayloadOffset = 0;
+        mPayloadLength = 0;
+        return this;
+    }
+
+    public Envelope setSender(byte[] src, int offset, int length) {
+        mSender = src;
+        mSenderOffset = offset;
+        mSenderLength = length;
+        return this;
+    }
+
+    public Envelope setPayload(byte[] src, int offset, int length) {
+        mPayload = src;
+        mPayloadOffset = offset;
+        mPayloadLength = length;
+        return this;
+    }
+
+    public int encodedSize() {
+        return 1 + Varint.size(mType) + Varint.size(mId) + Varint.size(mTimestamp)
+                + Varint.size(mSenderLength) + mSenderLength
+                + Varint.size(mPayloadLength) + mPayloadLength;
+    }
+
+    /**
+     * dst 에 {@link #encodedSize()} 바이트를 쓴다.
+     *
+     * @return 쓴 바이트 수
+     * @throws IndexOutOfBoundsException dst 가 모자람
+     */
+    public int encode(byte[] dst, int offset) {
+        int size = encodedSize();
+        if (offset < 0 || dst.length - offset < size) {
+            throw new IndexOutOfBoundsException("Need " + size + " bytes at " + offset
+                    + ", buffer is " + dst.length);
+        }
+        int pos = offset;
+        dst[pos++] = (byte) MAGIC;
+        pos += Varint.write(dst, pos, mType);
+        pos += Varint.write(dst, pos, mId);
+        pos += Varint.write(dst, pos, mTimestamp);
+        pos += Varint.write(dst, pos, mSenderLength);
+        if (mSenderLength > 0) {
+            System.arraycopy(mSender, mSenderOffset, dst, pos, mSenderLength);
+            pos += mSenderLength;
+        }
+        pos += Varint.write(dst, pos, mPayloadLength);
+        if (mPayloadLength > 0) {
+            System.arraycopy(mPayload, mPayloadOffset, dst, pos, mPayloadLength);
+            pos += mPayloadLength;
+        }
+        return pos - offset;
+    }
+
+    /**
+     * 예전 버전처럼 문자열만 보낸 메시지가 아니라 이 형식인지
+     */
+    public static boolean isEnvelope(byte[] src, int offset, int length) {
+        return length > 0 && (src[offset] & 0xff) == MAGIC;
+    }
+
+    /**
+     * src 를 읽어 값을 채운다. sender, payload 는 src 를 가리키므로 src 가 바뀌기 전까지만 유효하다.
+     *
+     * @throws IOException 형식이 맞지 않거나 길이가 범위를 벗어남
+     */
+    public void decode(byte[] src, int offset, int length) throws IOException {
+        if (!isEnvelope(src, offset, length)) {
+            throw new IOException("Not an envelope");
+        }
+        int limit = offset + length;
+        int pos = offset + 1;
+        long type = Varint.read(src, pos, limit);
+        pos += Varint.size(type);
+        long id = Varint.read(src, pos, limit);
+        pos += Varint.size(id);
+        long timestamp = Varint.read(src, pos, limit);
+        pos += Varint.size(timestamp);
+        // 10 바이트 varint 는 음수로 풀리므로 범위를 양쪽 다 본다. 상대방이 보낸 값이라 믿을 수 없다.
+        if (type < 0 || type > Integer.MAX_VALUE || id < 0 || timestamp < 0) {
+            throw new IOException("Bad envelope header");
+        }
+        int senderLength = readLength(src, pos, limit);
+        pos += Varint.size(senderLength);
+        int senderOffset = pos;
+        pos += senderLength;
+        int payloadLength = readLength(src, pos, limit);
+        pos += Varint.size(payloadLength);
+        int payloadOffset = pos;
+        pos += payloadLength;
+        // 뒤에 붙는 필드는 다음 버전에서 쓸 수 있도록 무시한다.
+        mType = (int) type;
+        mId = id;
+        mTimestamp = timestamp;
+        mSender = src;
+        mSenderOffset = senderOffset;
+        mSenderLength = senderLength;
+        mPayload = src;
+        mPayloadOffset = payloadOffset;
+        mPayloadLength = payloadLength;
+    }
+
+    // 길이를 읽고 그 뒤에 그만큼 데이터가 있는지 확인한다.
+    private static int readLength(byte[] src, int pos, int limit) throws IOException {
+        long length = Varint.read(src, pos, limit);
+        if (length < 0 || length > limit - pos - Varint.size(length)) {
+            throw new IOException("Envelope field length " + length + " exceeds message");
+        }
+        return (int) length;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public byte[] getSenderArray() {
+        return mSender;
+    }
+
+    public int getSenderOffset() {
+        return mSenderOffset;
+    }
+
+    public int getSenderLength() {
+        return mSenderLength;
+    }
+
+    public byte[] getPayloadArray() {
+        return mPayload;
+    }
+
+    public int getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+}
@@ -0,0 +1,97 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * 파일 전송 프레임의 payload 형식.
+ *
+ * <pre>
+ * FILE_OFFER  | id 8 | size 8 | name (UTF-8) |        보내는 쪽 → 받는 쪽. 재연결 후에도 같은 id 로 다시 보낸다.
+ * FILE_ACCEPT | id 8 | offset 8 |                     받는 쪽이 이어 받을 위치. 체크섬이 틀렸을 때도 이 위치로 되돌린다.
+ * FILE_CHUNK  | id 8 | offset 8 | crc32c 4 | data |   data 에 대한 crc32c
+ * FILE_ACK    | id 8 | offset 8 |                     받는 쪽이 디스크에 쓴 연속된 바이트 수
+ * FILE_CANCEL | id 8 | offset 8 |                     어느 쪽이든 전송을 그만둔다. offset 은 사용하지 않는다.
+ * </pre>
+ */
+public final class FileFrames {
+
+    public static final int CHUNK_HEADER_SIZE = 20;
+    // 한 청크에 담는 파일 데이터 크기. 흐름 제어 창보다 충분히 작아야 여러 청크가 동시에 오간다.
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int OFFER_HEADER_SIZE = 16;
+    private static final int POSITION_SIZE = 16;
+    // 이름은 파일 시스템 한계 안에서만 받는다.
+    private static final int MAX_NAME_BYTES = 255;
+
+    private FileFrames() {
+    }
+
+    public static byte[] offer(long id, long size, String name) {
+        byte[] nameBytes = name.getBytes(UTF_8);
+        int nameLength = Math.min(nameBytes.length, MAX_NAME_BYTES);
+        byte[] payload = new byte[OFFER_HEADER_SIZE + nameLength];
+        Frame.putLong(payload, 0, id);
+        Frame.putLong(payload, 8, size);
+        System.arraycopy(nameBytes, 0, payload, OFFER_HEADER_SIZE, nameLength);
+        return payload;
+    }
+
+    public static long offerSize(byte[] src, int offset) {
+        return Frame.getLong(src, offset + 8);
+    }
+
+    public static String offerName(byte[] src, int offset, int length) throws IOException {
+        if (length < OFFER_HEADER_SIZE || length > OFFER_HEADER_SIZE + MAX_NAME_BYTES) {
+            throw new IOException("Bad FILE_OFFER length " + length);
+        }
+        return new String(src, offset + OFFER_HEADER_SIZE, length - OFFER_HEADER_SIZE, UTF_8);
+    }
+
+    /**
+     * FILE_ACCEPT, FILE_ACK, FILE_CANCEL payload
+     */
+    public static byte[] position(long id, long offset) {
+        byte[] payload = new byte[POSITION_SIZE];
+        Frame.putLong(payload, 0, id);
+        Frame.putLong(payload, 8, offset);
+        return payload;
+    }
+
+    /**
+     * 모든 파일 프레임은 id 로 시작한다.
+     */
+    public static long id(byte[] src, int offset, int length) throws IOException {
+        if (length < POSITION_SIZE) {
+            throw new IOException("File frame too short: " + length);
+        }
+        return Frame.getLong(src, offset);
+    }
+
+    /**
+     * FILE_ACCEPT, FILE_ACK, FILE_CHUNK 의 offset
+     */
+    public static long offset(byte[] src, int offset) {
+        return Frame.getLong(src, offset + 8);
+    }
+
+    /**
+     * 청크 헤더를 dst 앞쪽에 쓴다. data 는 이미 dst[CHUNK_HEADER_SIZE..] 에 있어야 한다.
+     */
+    public static void encodeChunkHeader(byte[] dst, long id, long offset, int dataLength) {
+        Frame.putLong(dst, 0, id);
+        Frame.putLong(dst, 8, offset);
+        Frame.putInt(dst, 16, Crc32c.compute(dst, CHUNK_HEADER_SIZE, dataLength));
+    }
+
+    /**
+     * 청크의 data 가 crc32c 와 맞는지 확인한다.
+     */
+    public static boolean verifyChunk(byte[] src, int offset, int length) {
+        return length >= CHUNK_HEADER_SIZE
+                && Frame.getInt(src, offset + 16) == Crc32c.compute(src,
+                offset + CHUNK_HEADER_SIZE, length - CHUNK_HEADER_SIZE);
+    }
+}
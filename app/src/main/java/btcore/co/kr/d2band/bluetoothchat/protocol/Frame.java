@@ -0,0 +1,136 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+/**
+ * 스트림 위에서 메시지 경계를 지키기 위한 프레임 형식.
+ *
+ * <pre>
+ * +--------+--------+------------------+-------------------+------------------+
+ * | type 1 | flags 1| length 4 (BE)    | payload (length)  | crc32c 4 (선택)  |
+ * +--------+--------+------------------+-------------------+------------------+
+ * </pre>
+ *
+ * crc32c 는 flags 에 {@link #FLAG_CRC} 가 있을 때만 붙으며 payload 에 대한 값이다.
+ * flags 에 {@link #FLAG_COMPRESSED} 가 있으면 payload 는 {@link FrameCompressor} 형식이고
+ * crc32c 는 압축된 payload 에 대한 값이다.
+ * flags 에 {@link #FLAG_ENCRYPTED} 가 있으면 payload 는 AES-GCM 암호문 뒤에 {@link #TAG_SIZE} 바이트 태그가
+ * 붙은 것이고 length 는 태그를 포함한다. crc32c 는 암호문에 대한 값이다 ({@link FrameCipher}).
+ *
+ * <p>flags 의 4~5 번 비트는 논리 채널({@link #CHANNEL_CONTROL}, {@link #CHANNEL_INTERACTIVE},
+ * {@link #CHANNEL_BULK}) 이다. 큰 메시지는 같은 채널의 여러 프레임으로 나뉘어 다른 채널의 프레임과
+ * 섞여서 나간다. 마지막 조각이 아닌 프레임에는 {@link #FLAG_MORE} 가 붙고, 받는 쪽은 채널별로
+ * 이어 붙인다({@link FrameAssembler}). 압축은 나누기 전의 메시지 전체에 대해 한다.</p>
+ */
+public final class Frame {
+
+    public static final int HEADER_SIZE = 6;
+    public static final int CRC_SIZE = 4;
+    public static final int TAG_SIZE = 16;
+
+    // 잘못된 데이터가 들어왔을 때 무한히 메모리를 잡지 않도록 제한한다.
+    public static final int MAX_PAYLOAD = 1024 * 1024;
+
+    // 처음에 서로 보낼 수 있다고 가정하는 DATA payload 바이트 수 (흐름 제어 창 크기)
+    public static final int INITIAL_CREDIT = 64 * 1024;
+
+    // 프레임 종류
+    public static final int TYPE_DATA = 1;
+    // 받는 쪽이 처리한 만큼 보낼 수 있는 바이트를 돌려준다. payload: int 바이트 수
+    public static final int TYPE_CREDIT = 2;
+    // 연결 직후 서로 지원하는 기능을 알린다. payload: int CAP_* 비트, long 세션 번호(없을 수 있음)
+    public static final int TYPE_HELLO = 3;
+    // 파일 전송. payload 형식은 {@link FileFrames} 참고
+    public static final int TYPE_FILE_OFFER = 4;
+    public static final int TYPE_FILE_ACCEPT = 5;
+    public static final int TYPE_FILE_CHUNK = 6;
+    public static final int TYPE_FILE_ACK = 7;
+    public static final int TYPE_FILE_CANCEL = 8;
+    // 연결이 살아 있는지 확인한다. PONG 은 PING 의 payload 를 그대로 돌려준다.
+    public static final int TYPE_PING = 9;
+    public static final int TYPE_PONG = 10;
+    // 누적 확인. payload: long 마지막으로 받은 순서 번호
+    public static final int TYPE_ACK = 11;
+    // 연결 성능 측정. payload 형식은 LinkBenchmark 참고
+    public static final int TYPE_BENCH = 12;
+    // 암호화를 켠 연결에서 가장 먼저 주고받는다. payload: 공개 키 ({@link KeyExchange})
+    public static final int TYPE_KEY_EXCHANGE = 13;
+
+    // HELLO 로 알리는 기능
+    public static final int CAP_DEFLATE = 0x01;
+    public static final int CAP_KEEPALIVE = 0x02;
+    public static final int CAP_FRAGMENT = 0x04;
+    public static final int CAP_RELIABLE = 0x08;
+
+    // 플래그
+    public static final int FLAG_CRC = 0x01;
+    public static final int FLAG_COMPRESSED = 0x02;
+    // 같은 채널의 다음 프레임에 메시지가 이어진다.
+    public static final int FLAG_MORE = 0x04;
+    // payload 앞 8바이트가 순서 번호다.
+    public static final int FLAG_SEQUENCED = 0x08;
+    // payload 가 암호화되어 있다. 받는 쪽은 풀고 나서 이 플래그를 지운다.
+    public static final int FLAG_ENCRYPTED = 0x40;
+
+    // 논리 채널. 번호가 작을수록 먼저 보낸다.
+    public static final int CHANNEL_CONTROL = 0;
+    public static final int CHANNEL_INTERACTIVE = 1;
+    public static final int CHANNEL_BULK = 2;
+    public static final int CHANNEL_COUNT = 3;
+    private static final int CHANNEL_SHIFT = 4;
+    private static final int CHANNEL_MASK = 0x30;
+
+    // 이보다 큰 메시지는 나눠서 보낸다. 작을수록 다른 채널이 끼어들 틈이 많아진다.
+    public static final int MAX_FRAGMENT = 4 * 1024;
+
+    private Frame() {
+    }
+
+    /**
+     * 헤더를 dst 에 쓴다.
+     *
+     * @return 쓴 바이트 수 ({@link #HEADER_SIZE})
+     */
+    public static int encodeHeader(byte[] dst, int offset, int type, int flags, int length) {
+        dst[offset] = (byte) type;
+        dst[offset + 1] = (byte) flags;
+        putInt(dst, offset + 2, length);
+        return HEADER_SIZE;
+    }
+
+    /**
+     * 헤더와 payload 를 포함한 프레임 전체 크기
+     */
+    public static int encodedSize(int flags, int length) {
+        return HEADER_SIZE + length + ((flags & FLAG_CRC) != 0 ? CRC_SIZE : 0);
+    }
+
+    public static int channel(int flags) {
+        return (flags & CHANNEL_MASK) >>> CHANNEL_SHIFT;
+    }
+
+    public static int withChannel(int flags, int channel) {
+        return (flags & ~CHANNEL_MASK) | (channel << CHANNEL_SHIFT);
+    }
+
+    public static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    public static int getInt(byte[] src, int offset) {
+        return ((src[offset] & 0xff) << 24)
+                | ((src[offset + 1] & 0xff) << 16)
+                | ((src[offset + 2] & 0xff) << 8)
+                | (src[offset + 3] & 0xff);
+    }
+
+    public static void putLong(byte[] dst, int offset, long value) {
+        putInt(dst, offset, (int) (value >>> 32));
+        putInt(dst, offset + 4, (int) value);
+    }
+
+    public static long getLong(byte[] src, int offset) {
+        return ((long) getInt(src, offset) << 32) | (getInt(src, offset + 4) & 0xffffffffL);
+    }
+}
@@ -0,0 +1,103 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.io.IOException;
+
+/**
+ * {@link Frame#FLAG_MORE} 로 나뉘어 온 메시지를 채널별로 이어 붙인다.
+ * 채널마다 조각은 보낸 순서대로 오므로 채널당 만들고 있는 메시지는 하나뿐이다.
+ *
+ * <p>나뉘지 않은 프레임은 복사하지 않고 FrameReader 버퍼를 그대로 가리킨다.
+ * 결과는 다음 {@link #add} 호출 전까지만 유효하다. 스레드 안전하지 않다.</p>
+ */
+public class FrameAssembler {
+
+    private final byte[][] mBuffers = new byte[Frame.CHANNEL_COUNT][];
+    private final int[] mLengths = new int[Frame.CHANNEL_COUNT];
+    // 조각이 모이는 중인 채널의 첫 조각 type, flags
+    private final int[] mTypes = new int[Frame.CHANNEL_COUNT];
+    private final int[] mFlags = new int[Frame.CHANNEL_COUNT];
+
+    private int mType;
+    private int mMessageFlags;
+    private byte[] mPayload;
+    private int mOffset;
+    private int mLength;
+
+    /**
+     * 프레임 하나를 넣는다.
+     *
+     * @return 메시지가 완성됐으면 true. 결과는 getType(), getFlags(), getPayload() 등으로 읽는다.
+     * @throws IOException 조각을 합친 크기가 {@link Frame#MAX_PAYLOAD} 를 넘을 때
+     */
+    public boolean add(int type, int flags, byte[] src, int offset, int length) throws IOException {
+        int channel = Frame.channel(flags);
+        if (channel >= Frame.CHANNEL_COUNT) {
+            throw new IOException("Unknown channel " + channel);
+        }
+        boolean more = (flags & Frame.FLAG_MORE) != 0;
+        if (mBuffers[channel] == null) {
+            if (!more) {
+                // 나뉘지 않은 메시지
+                set(type, flags, src, offset, length);
+                return true;
+            }
+            mBuffers[channel] = new byte[Math.max(length * 4, Frame.MAX_FRAGMENT)];
+            mLengths[channel] = 0;
+            mTypes[channel] = type;
+            mFlags[channel] = flags & ~Frame.FLAG_MORE;
+        }
+        append(channel, src, offset, length);
+        if (more) {
+            return false;
+        }
+        byte[] message = mBuffers[channel];
+        mBuffers[channel] = null;
+        set(mTypes[channel], mFlags[channel], message, 0, mLengths[channel]);
+        return true;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getFlags() {
+        return mMessageFlags;
+    }
+
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    public int getPayloadOffset() {
+        return mOffset;
+    }
+
+    public int getPayloadLength() {
+        return mLength;
+    }
+
+    private void append(int channel, byte[] src, int offset, int length) throws IOException {
+        int used = mLengths[channel];
+        if (used + length > Frame.MAX_PAYLOAD) {
+            throw new IOException("Fragmented message too large");
+        }
+        byte[] buffer = mBuffers[channel];
+        if (used + length > buffer.length) {
+            byte[] grown = new byte[Math.min(Frame.MAX_PAYLOAD,
+                    Math.max(used + length, buffer.length * 2))];
+            System.arraycopy(buffer, 0, grown, 0, used);
+            buffer = grown;
+            mBuffers[channel] = buffer;
+        }
+        System.arraycopy(src, offset, buffer, used, length);
+        mLengths[channel] = used + length;
+    }
+
+    private void set(int type, int flags, byte[] payload, int offset, int length) {
+        mType = type;
+        mMessageFlags = flags;
+        mPayload = payload;
+        mOffset = offset;
+        mLength = length;
+    }
+}
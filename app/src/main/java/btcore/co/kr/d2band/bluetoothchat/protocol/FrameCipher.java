@@ -0,0 +1,85 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 한 방향의 프레임 payload 를 AES-GCM 으로 암호화하거나 푼다. {@link KeyExchange} 가 만든다.
+ *
+ * <p>nonce 는 보내지 않는다. 양쪽이 이 방향으로 오간 프레임 수를 똑같이 세고 그 번호를 nonce 로 쓴다.
+ * 스트림은 순서대로 전달되므로 프레임이 빠지거나 순서가 바뀌면 태그 검사가 실패한다.
+ * 프레임 헤더(종류, 플래그, 길이) 는 추가 인증 데이터로 넣어 바꿀 수 없다.</p>
+ *
+ * <p>출력 버퍼는 호출하는 쪽이 넘긴다. 이 클래스는 스레드 안전하지 않다.</p>
+ */
+public final class FrameCipher {
+
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_BITS = Frame.TAG_SIZE * 8;
+
+    private final Cipher mCipher;
+    private final SecretKeySpec mKey;
+    private final int mMode;
+    // 앞 4바이트는 0, 뒤 8바이트는 프레임 번호
+    private final byte[] mNonce = new byte[NONCE_SIZE];
+    private long mCounter;
+
+    FrameCipher(byte[] key, boolean encrypt) throws GeneralSecurityException {
+        this.mCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        this.mKey = new SecretKeySpec(key, "AES");
+        this.mMode = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+    }
+
+    /**
+     * payload 를 암호화해 out 에 쓴다. out 에는 length + {@link Frame#TAG_SIZE} 바이트가 들어갈 자리가 있어야 한다.
+     *
+     * @param header 이미 써 둔 프레임 헤더 ({@link Frame#HEADER_SIZE} 바이트)
+     * @return 쓴 바이트 수
+     */
+    public int seal(byte[] header, int headerOffset, byte[] in, int offset, int length,
+                    byte[] out, int outOffset) throws IOException {
+        try {
+            init(header, headerOffset);
+            return mCipher.doFinal(in, offset, length, out, outOffset);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Frame encryption failed", e);
+        }
+    }
+
+    /**
+     * buf 의 암호문을 같은 자리에서 푼다.
+     *
+     * @param length 태그를 포함한 길이
+     * @return 평문 길이
+     * @throws IOException 태그가 맞지 않음 (변조, 잘못된 키, 빠진 프레임)
+     */
+    public int open(byte[] header, int headerOffset, byte[] buf, int offset, int length)
+            throws IOException {
+        if (length < Frame.TAG_SIZE) {
+            throw new IOException("Encrypted frame too short: " + length);
+        }
+        try {
+            init(header, headerOffset);
+            return mCipher.doFinal(buf, offset, length, buf, offset);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Frame authentication failed", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Frame decryption failed", e);
+        }
+    }
+
+    private void init(byte[] header, int headerOffset) throws GeneralSecurityException {
+        // 2^64 개를 넘게 보낼 일은 없지만 같은 nonce 를 다시 쓰면 안 되므로 막아 둔다.
+        if (mCounter == -1L) {
+            throw new GeneralSecurityException("Nonce space exhausted");
+        }
+        Frame.putLong(mNonce, NONCE_SIZE - 8, mCounter++);
+        mCipher.init(mMode, mKey, new GCMParameterSpec(TAG_BITS, mNonce));
+        mCipher.updateAAD(header, headerOffset, Frame.HEADER_SIZE);
+    }
+}
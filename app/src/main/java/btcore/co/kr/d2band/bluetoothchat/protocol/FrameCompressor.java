@@ -0,0 +1,108 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * DATA payload 를 deflate 로 압축한다. 짧은 채팅 메시지도 줄어들도록 자주 나오는 문자열을
+ * 미리 사전({@link #DICTIONARY}) 으로 넣어 둔다.
+ *
+ * <pre>
+ * 압축된 payload: | 원래 길이 4 (BE) | raw deflate (사전 사용) |
+ * </pre>
+ *
+ * <p>이미 압축된 데이터(이미지, zip 등) 는 앞부분 표본의 엔트로피를 보고 deflate 를 돌리지 않고 건너뛴다.
+ * 압축해도 줄지 않으면 원본을 그대로 보낸다.</p>
+ *
+ * <p>스레드 안전하지 않다. 연결마다 하나씩 만들어 쓰기 스레드에서만 사용한다.</p>
+ */
+public class FrameCompressor {
+
+    // 이보다 짧으면 헤더(4바이트) 를 생각할 때 이득이 거의 없다.
+    static final int MIN_SIZE = 64;
+    // 엔트로피를 볼 표본 바이트 수
+    static final int SAMPLE_SIZE = 512;
+    // 바이트당 비트. 텍스트/JSON 은 보통 4~5, 압축된 데이터는 7.5 이상이다.
+    static final double MAX_ENTROPY = 7.0;
+
+    /**
+     * 양쪽이 같아야 하는 preset dictionary. 바꾸면 이전 버전과 호환되지 않는다.
+     * deflate 는 사전의 뒤쪽을 더 가깝게 보므로 자주 나오는 것을 뒤에 둔다.
+     */
+    static final byte[] DICTIONARY = (
+            "\"timestamp\":\"type\":\"text\",\"file\",\"image\",\"status\":\"ok\",\"error\":"
+                    + "\"sender\":\"message\":\"id\":\"name\":\"data\":{\"true,false,null,"
+                    + "https://www. http:// .com ing the and you that ")
+            .getBytes(Charset.forName("UTF-8"));
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final int[] mHistogram = new int[256];
+    private byte[] mBuffer = new byte[1024];
+    private int mLength;
+
+    /**
+     * src 를 압축해 본다.
+     *
+     * @return 압축해서 더 작아졌으면 true. 결과는 {@link #getBuffer()}, {@link #getLength()}
+     */
+    public boolean compress(byte[] src, int offset, int length) {
+        if (length < MIN_SIZE || isIncompressible(src, offset, length)) {
+            return false;
+        }
+        // 원래보다 작을 때만 의미가 있으므로 출력은 length - 1 바이트까지만 받는다.
+        int limit = length - 1;
+        if (mBuffer.length < limit) {
+            mBuffer = new byte[limit];
+        }
+        Frame.putInt(mBuffer, 0, length);
+        int pos = 4;
+
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(src, offset, length);
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            if (pos >= limit) {
+                return false;
+            }
+            pos += mDeflater.deflate(mBuffer, pos, limit - pos);
+        }
+        mLength = pos;
+        return true;
+    }
+
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * 네이티브 메모리를 돌려준다. 이후에는 사용할 수 없다.
+     */
+    public void end() {
+        mDeflater.end();
+    }
+
+    // 고르게 흩어진 표본의 바이트 분포로 섀넌 엔트로피를 어림한다.
+    boolean isIncompressible(byte[] src, int offset, int length) {
+        int samples = Math.min(length, SAMPLE_SIZE);
+        int step = length / samples;
+        int[] histogram = mHistogram;
+        Arrays.fill(histogram, 0);
+        for (int i = 0, pos = offset; i < samples; i++, pos += step) {
+            histogram[src[pos] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : histogram) {
+            if (count != 0) {
+                double p = (double) count / samples;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2) > MAX_ENTROPY;
+    }
+}
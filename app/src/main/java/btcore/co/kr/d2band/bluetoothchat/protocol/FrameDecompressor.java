@@ -0,0 +1,65 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * {@link FrameCompressor} 로 압축된 payload 를 푼다.
+ * 스레드 안전하지 않다. 연결마다 하나씩 만들어 읽기 스레드에서만 사용한다.
+ */
+public class FrameDecompressor {
+
+    private final Inflater mInflater = new Inflater(true);
+
+    /**
+     * 압축된 payload 앞에 적힌 원래 길이
+     */
+    public static int originalLength(byte[] src, int offset, int length) throws IOException {
+        if (length < 4) {
+            throw new IOException("Compressed frame too short: " + length);
+        }
+        int original = Frame.getInt(src, offset);
+        if (original < 0 || original > Frame.MAX_PAYLOAD) {
+            throw new IOException("Bad original length " + original);
+        }
+        return original;
+    }
+
+    /**
+     * src 의 압축을 풀어 dst 에 원래 길이만큼 채운다.
+     *
+     * @return 원래 길이
+     */
+    public int decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset)
+            throws IOException {
+        int original = originalLength(src, offset, length);
+        if (dst.length - dstOffset < original) {
+            throw new IOException("Destination too small: " + original);
+        }
+        mInflater.reset();
+        mInflater.setDictionary(FrameCompressor.DICTIONARY);
+        mInflater.setInput(src, offset + 4, length - 4);
+        int pos = 0;
+        try {
+            // 원래 길이를 알고 있으므로 finished() 대신 채운 바이트 수로 끝을 판단한다.
+            while (pos < original) {
+                int n = mInflater.inflate(dst, dstOffset + pos, original - pos);
+                if (n == 0 && (mInflater.needsInput() || mInflater.finished())) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                pos += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+        return original;
+    }
+
+    /**
+     * 네이티브 메모리를 돌려준다. 이후에는 사용할 수 없다.
+     */
+    public void end() {
+        mInflater.end();
+    }
+}
@@ -0,0 +1,152 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream 에서 {@link Frame} 을 하나씩 재조립한다.
+ * read() 한 번에 여러 프레임이 들어오거나 프레임 하나가 여러 read() 로 나뉘어 들어와도
+ * 항상 완전한 프레임 단위로 돌려준다.
+ *
+ * <p>{@link #setCipher(FrameCipher)} 뒤로는 암호화된 프레임만 받고 같은 버퍼에서 풀어 돌려준다.
+ * 암호화되지 않은 프레임이 끼어들면 실패한다.</p>
+ *
+ * <p>payload 는 내부 버퍼를 가리키며 다음 {@link #readFrame()} 호출 전까지만 유효하다.
+ * 이 클래스는 스레드 안전하지 않다. (ConnectedThread 한 곳에서만 사용)</p>
+ */
+public class FrameReader {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream mIn;
+    private final Crc32c mCrc = new Crc32c();
+    private FrameCipher mCipher;
+    private byte[] mBuffer;
+    // mBuffer 안에서 아직 처리하지 않은 데이터 범위 [mStart, mEnd)
+    private int mStart;
+    private int mEnd;
+
+    private int mFlags;
+    private int mPayloadOffset;
+    private int mPayloadLength;
+
+    public FrameReader(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public FrameReader(InputStream in, int bufferSize) {
+        this.mIn = in;
+        this.mBuffer = new byte[Math.max(bufferSize, Frame.HEADER_SIZE + Frame.CRC_SIZE)];
+    }
+
+    /**
+     * 이후 받는 프레임은 모두 암호화되어 있어야 한다. 상대방 키 교환 프레임을 읽은 뒤에 설정한다.
+     */
+    public void setCipher(FrameCipher cipher) {
+        mCipher = cipher;
+    }
+
+    /**
+     * 다음 프레임이 완성될 때까지 블록된다.
+     *
+     * @return 프레임 종류, 프레임 경계에서 스트림이 끝나면 -1
+     * @throws IOException 스트림 오류, 프레임 중간에서 끝난 스트림, 잘못된 길이, CRC 불일치,
+     *                     암호화된 연결에서 인증에 실패했거나 암호화되지 않은 프레임
+     */
+    public int readFrame() throws IOException {
+        if (!fill(Frame.HEADER_SIZE)) {
+            return -1;
+        }
+        int type = mBuffer[mStart] & 0xff;
+        int flags = mBuffer[mStart + 1] & 0xff;
+        int length = Frame.getInt(mBuffer, mStart + 2);
+        int limit = Frame.MAX_PAYLOAD + ((flags & Frame.FLAG_ENCRYPTED) != 0 ? Frame.TAG_SIZE : 0);
+        if (length < 0 || length > limit) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        int total = Frame.encodedSize(flags, length);
+        if (!fill(total)) {
+            throw new EOFException("Stream ended inside a frame");
+        }
+
+        int payloadOffset = mStart + Frame.HEADER_SIZE;
+        if ((flags & Frame.FLAG_CRC) != 0) {
+            mCrc.reset();
+            mCrc.update(mBuffer, payloadOffset, length);
+            int expected = Frame.getInt(mBuffer, payloadOffset + length);
+            if ((int) mCrc.getValue() != expected) {
+                throw new IOException("Frame CRC mismatch");
+            }
+        }
+        if ((flags & Frame.FLAG_ENCRYPTED) != 0) {
+            if (mCipher == null) {
+                throw new IOException("Encrypted frame before key exchange");
+            }
+            length = mCipher.open(mBuffer, mStart, mBuffer, payloadOffset, length);
+            flags &= ~Frame.FLAG_ENCRYPTED;
+        } else if (mCipher != null) {
+            throw new IOException("Unencrypted frame on an encrypted link");
+        }
+
+        mFlags = flags;
+        mPayloadOffset = payloadOffset;
+        mPayloadLength = length;
+        mStart += total;
+        return type;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * 마지막으로 읽은 프레임의 payload 가 들어 있는 배열
+     */
+    public byte[] getPayload() {
+        return mBuffer;
+    }
+
+    public int getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+
+    /**
+     * 버퍼에 처리되지 않은 데이터가 최소 need 바이트 있도록 읽는다.
+     *
+     * @return 충분히 읽었으면 true, 아무것도 없는 상태에서 EOF 면 false
+     */
+    private boolean fill(int need) throws IOException {
+        int available = mEnd - mStart;
+        if (available >= need) {
+            return true;
+        }
+        // 뒤쪽 공간이 모자라면 앞으로 당기거나 버퍼를 늘린다.
+        if (mStart + need > mBuffer.length) {
+            if (need > mBuffer.length) {
+                byte[] grown = new byte[Math.max(need, mBuffer.length * 2)];
+                System.arraycopy(mBuffer, mStart, grown, 0, available);
+                mBuffer = grown;
+            } else {
+                System.arraycopy(mBuffer, mStart, mBuffer, 0, available);
+            }
+            mStart = 0;
+            mEnd = available;
+        }
+        while (mEnd - mStart < need) {
+            int n = mIn.read(mBuffer, mEnd, mBuffer.length - mEnd);
+            if (n < 0) {
+                if (mEnd == mStart) {
+                    return false;
+                }
+                throw new EOFException("Stream ended inside a frame");
+            }
+            mEnd += n;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,427 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 보낼 프레임을 제한된 크기의 큐에 넣고 전용 쓰기 스레드에서 내보낸다.
+ * 호출한 스레드(UI 스레드 등) 는 소켓 쓰기를 기다리지 않는다.
+ *
+ * <p>쓰기 스레드는 큐에 쌓여 있는 작은 프레임을 한꺼번에 꺼내 {@link FrameWriter} 버퍼에 모은 뒤
+ * write() 한 번으로 보낸다.</p>
+ *
+ * <p>흐름 제어: DATA 프레임은 상대방이 준 credit(바이트) 안에서만 보낸다. credit 이 모자라면
+ * 상대방이 {@link Frame#TYPE_CREDIT} 으로 돌려줄 때까지 기다린다. 제어 프레임은 별도 큐로
+ * credit 과 상관없이 먼저 나가므로 양쪽이 서로 credit 을 기다리며 멈추지 않는다.</p>
+ *
+ * <p>채널: 제어, 대화({@link #send}), 대용량({@link #sendBulk}) 채널마다 큐가 따로 있고 이 순서로 먼저 보낸다.
+ * 상대방이 지원하면 큰 메시지는 {@link Frame#MAX_FRAGMENT} 단위로 나눠서 한 번의 write() 에
+ * {@link #BATCH_BYTES} 정도만 싣는다. 그래서 파일을 보내는 중에도 대화 메시지는 조각 몇 개만 기다리면 나간다.
+ * 대용량 채널은 대화가 계속 이어져도 write() 마다 조각 하나는 보낸다.</p>
+ */
+public class FrameSender {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    // 한 번의 write() 로 모을 최대 프레임 수
+    static final int MAX_BATCH = 64;
+    // 한 번의 write() 에 싣는 바이트 수 목표. 이만큼 쓰는 동안 새로 온 대화 메시지가 기다린다.
+    static final int BATCH_BYTES = 8 * 1024;
+
+    /**
+     * 프레임 하나가 소켓에 쓰인 뒤 호출된다 (쓰기 스레드).
+     */
+    public interface Callback {
+        /**
+         * @param queuedNanos 큐에 넣은 뒤 소켓에 다 쓰일 때까지 걸린 시간
+         */
+        void onFrameSent(int type, byte[] payload, long queuedNanos);
+
+        void onSendFailed(IOException e);
+    }
+
+    private static final class Request {
+        final int channel;
+        final int type;
+        final byte[] payload;
+        final WriteFuture future;
+        final long queuedAt = System.nanoTime();
+        // 실제로 보낼 바이트와 flags. 압축하면 바뀐다. 쓰기 스레드만 사용한다.
+        byte[] wire;
+        int flags;
+        boolean prepared;
+        // wire 중 이미 보낸 바이트 수
+        int position;
+
+        Request(int channel, int type, int flags, byte[] payload, WriteFuture future) {
+            this.channel = channel;
+            this.type = type;
+            this.flags = flags;
+            this.payload = payload;
+            this.wire = payload;
+            this.future = future;
+        }
+    }
+
+    private final FrameWriter mWriter;
+    private final Callback mCallback;
+    private final Thread mThread;
+    private final int mQueueCapacity;
+
+    // 아래 필드는 모두 mLock 으로 보호한다.
+    private final Object mLock = new Object();
+    private final ArrayDeque<Request>[] mQueues;
+    // 흐름 제어 창 크기. 0 이면 흐름 제어를 하지 않는다.
+    private final int mWindow;
+    private long mCredit;
+    private boolean mClosed;
+    private IOException mFailure;
+
+    // 큐에서 꺼내 credit 을 쓴 뒤 아직 다 보내지 못한 요청. 쓰기 스레드만 사용한다.
+    private final ArrayDeque<Request> mActiveInteractive = new ArrayDeque<Request>();
+    private final ArrayDeque<Request> mActiveBulk = new ArrayDeque<Request>();
+
+    // 상대방이 압축을 받겠다고 하면 설정된다. 쓰기 스레드에서만 사용한다.
+    private volatile FrameCompressor mCompressor;
+    // 상대방이 조각난 메시지를 이어 붙일 수 있으면 true
+    private volatile boolean mFragmentationEnabled;
+
+    public FrameSender(FrameWriter writer, String name, Callback callback) {
+        this(writer, name, DEFAULT_QUEUE_CAPACITY, 0, callback);
+    }
+
+    /**
+     * @param queueCapacity 대화, 대용량 채널 큐 각각의 크기
+     * @param window        상대방이 처음 허용하는 DATA 바이트 수 ({@link Frame#INITIAL_CREDIT}). 0 이면 흐름 제어 없음
+     */
+    public FrameSender(FrameWriter writer, String name, int queueCapacity, int window,
+                       Callback callback) {
+        this.mWriter = writer;
+        this.mQueueCapacity = queueCapacity;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayDeque<Request>[] queues = new ArrayDeque[Frame.CHANNEL_COUNT];
+        this.mQueues = queues;
+        for (int i = 0; i < mQueues.length; i++) {
+            mQueues[i] = new ArrayDeque<Request>();
+        }
+        this.mWindow = window;
+        this.mCredit = window;
+        this.mCallback = callback;
+        this.mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, name);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * 대화 채널로 보낸다. 큐에 넣고 바로 돌아온다. 큐가 가득 찼거나 이미 닫혔으면 실패한 결과를 돌려준다.
+     */
+    public WriteFuture send(int type, byte[] payload) {
+        return send(type, 0, payload);
+    }
+
+    public WriteFuture send(int type, int flags, byte[] payload) {
+        return enqueue(Frame.CHANNEL_INTERACTIVE, type, flags, payload, mQueueCapacity);
+    }
+
+    /**
+     * 대용량 채널로 보낸다. 대화 채널에 보낼 것이 없을 때 나머지 대역폭을 쓴다.
+     */
+    public WriteFuture sendBulk(int type, byte[] payload) {
+        return enqueue(Frame.CHANNEL_BULK, type, 0, payload, mQueueCapacity);
+    }
+
+    /**
+     * 제어 프레임(credit 등) 을 보낸다. 다른 채널보다 먼저 나가며 credit 을 쓰지 않는다.
+     */
+    public WriteFuture sendControl(int type, byte[] payload) {
+        return enqueue(Frame.CHANNEL_CONTROL, type, 0, payload, Integer.MAX_VALUE);
+    }
+
+    private WriteFuture enqueue(int channel, int type, int flags, byte[] payload, int capacity) {
+        WriteFuture future = new WriteFuture();
+        synchronized (mLock) {
+            if (mClosed) {
+                future.fail(mFailure != null ? mFailure : new IOException("Sender closed"));
+                return future;
+            }
+            ArrayDeque<Request> queue = mQueues[channel];
+            if (queue.size() >= capacity) {
+                future.fail(new IOException("Send queue full"));
+                return future;
+            }
+            queue.addLast(new Request(channel, type, flags, payload, future));
+            mLock.notifyAll();
+        }
+        return future;
+    }
+
+    /**
+     * 이후 DATA 프레임을 압축해서 보낸다. 상대방이 HELLO 로 {@link Frame#CAP_DEFLATE} 를 알렸을 때만 설정한다.
+     * credit 은 압축 전 길이로 센다. 받는 쪽도 압축을 푼 길이로 돌려주기 때문이다.
+     */
+    public void setCompressor(FrameCompressor compressor) {
+        mCompressor = compressor;
+    }
+
+    /**
+     * 큰 메시지를 조각내서 다른 채널과 섞어 보낸다. 상대방이 HELLO 로 {@link Frame#CAP_FRAGMENT} 를 알렸을 때만 켠다.
+     */
+    public void setFragmentationEnabled(boolean enabled) {
+        mFragmentationEnabled = enabled;
+    }
+
+    /**
+     * 상대방이 돌려준 credit 을 더한다.
+     */
+    public void addCredit(int bytes) {
+        synchronized (mLock) {
+            mCredit += bytes;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * 지금 보낼 수 있는 DATA 바이트 수
+     */
+    public long getCredit() {
+        synchronized (mLock) {
+            return mCredit;
+        }
+    }
+
+    /**
+     * 큐에 남아 있는 DATA 프레임 수
+     */
+    public int pending() {
+        synchronized (mLock) {
+            return mQueues[Frame.CHANNEL_INTERACTIVE].size() + mQueues[Frame.CHANNEL_BULK].size();
+        }
+    }
+
+    /**
+     * 쓰기 스레드를 멈추고 아직 보내지 못한 프레임을 모두 실패로 끝낸다.
+     */
+    public void close() {
+        List<Request> rest;
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            rest = takeAll();
+            mLock.notifyAll();
+        }
+        failAll(rest, new IOException("Sender closed"));
+    }
+
+    private void drainLoop() {
+        List<Request> control = new ArrayList<Request>();
+        List<Request> finished = new ArrayList<Request>(MAX_BATCH);
+        try {
+            while (true) {
+                synchronized (mLock) {
+                    while (!mClosed && !hasWork()) {
+                        mLock.wait();
+                    }
+                    if (mClosed) {
+                        return;
+                    }
+                    takeRequests(control);
+                }
+                prepare(mActiveInteractive);
+                prepare(mActiveBulk);
+                if (!writeBatch(control, finished)) {
+                    return;
+                }
+                control.clear();
+                finished.clear();
+            }
+        } catch (InterruptedException e) {
+            // 종료
+        } finally {
+            List<Request> rest;
+            IOException failure;
+            synchronized (mLock) {
+                mClosed = true;
+                failure = mFailure != null ? mFailure : new IOException("Sender closed");
+                rest = takeAll();
+            }
+            rest.addAll(control);
+            rest.addAll(mActiveInteractive);
+            rest.addAll(mActiveBulk);
+            mActiveInteractive.clear();
+            mActiveBulk.clear();
+            failAll(rest, failure);
+            FrameCompressor compressor = mCompressor;
+            if (compressor != null) {
+                compressor.end();
+            }
+        }
+    }
+
+    // mLock 을 잡은 상태에서 호출
+    private boolean hasWork() {
+        return !mQueues[Frame.CHANNEL_CONTROL].isEmpty()
+                || !mActiveInteractive.isEmpty() || !mActiveBulk.isEmpty()
+                || hasCreditFor(mQueues[Frame.CHANNEL_INTERACTIVE].peekFirst())
+                || hasCreditFor(mQueues[Frame.CHANNEL_BULK].peekFirst());
+    }
+
+    // credit 보다 큰 프레임은 상대방이 받은 것을 거의 다 처리했을 때 보낸다.
+    // 받는 쪽은 threshold 미만의 credit 을 돌려주지 않고 들고 있을 수 있으므로 창이 꽉 찰 때까지 기다리면 멈춘다.
+    // 대용량 채널은 대화 메시지가 credit 을 기다리지 않도록 창의 일부를 남겨 둔다.
+    private boolean hasCreditFor(Request request) {
+        if (request == null) {
+            return false;
+        }
+        if (mWindow == 0) {
+            return true;
+        }
+        int threshold = ReceiveWindow.creditThreshold(mWindow);
+        long reserve = request.channel == Frame.CHANNEL_BULK ? threshold : 0;
+        return mCredit - reserve >= request.payload.length || mCredit > mWindow - threshold;
+    }
+
+    // mLock 을 잡은 상태에서 호출. 제어 프레임은 모두, DATA 는 credit 이 허락하는 만큼 꺼낸다.
+    // 대화 채널은 BATCH_BYTES 만큼 미리 꺼내 작은 메시지를 한 번에 모으고, 대용량은 한 번에 하나씩 보낸다.
+    private void takeRequests(List<Request> control) {
+        ArrayDeque<Request> queue = mQueues[Frame.CHANNEL_CONTROL];
+        while (!queue.isEmpty()) {
+            control.add(queue.pollFirst());
+        }
+        int activeBytes = 0;
+        for (Request request : mActiveInteractive) {
+            activeBytes += request.wire.length - request.position;
+        }
+        queue = mQueues[Frame.CHANNEL_INTERACTIVE];
+        while (activeBytes < BATCH_BYTES && mActiveInteractive.size() < MAX_BATCH
+                && hasCreditFor(queue.peekFirst())) {
+            Request request = takeData(queue);
+            activeBytes += request.wire.length;
+            mActiveInteractive.addLast(request);
+        }
+        queue = mQueues[Frame.CHANNEL_BULK];
+        if (mActiveBulk.isEmpty() && hasCreditFor(queue.peekFirst())) {
+            mActiveBulk.addLast(takeData(queue));
+        }
+    }
+
+    // mLock 을 잡은 상태에서 호출
+    private Request takeData(ArrayDeque<Request> queue) {
+        Request request = queue.pollFirst();
+        if (mWindow != 0) {
+            mCredit -= request.payload.length;
+        }
+        return request;
+    }
+
+    // 처음 보내는 요청을 압축한다. 락 밖에서 한다.
+    private void prepare(ArrayDeque<Request> active) {
+        FrameCompressor compressor = mCompressor;
+        for (Request request : active) {
+            if (request.prepared) {
+                continue;
+            }
+            request.prepared = true;
+            byte[] payload = request.payload;
+            if (compressor != null && request.type == Frame.TYPE_DATA
+                    && compressor.compress(payload, 0, payload.length)) {
+                // 조각이 여러 번의 write() 에 걸칠 수 있으므로 압축 버퍼를 복사해 둔다.
+                request.wire = Arrays.copyOf(compressor.getBuffer(), compressor.getLength());
+                request.flags |= Frame.FLAG_COMPRESSED;
+            }
+        }
+    }
+
+    private boolean writeBatch(List<Request> control, List<Request> finished) {
+        boolean fragment = mFragmentationEnabled;
+        try {
+            for (Request request : control) {
+                mWriter.appendFrame(request.type, request.flags, request.payload, 0,
+                        request.payload.length);
+            }
+            int budget = BATCH_BYTES;
+            while (!mActiveInteractive.isEmpty() && budget > 0) {
+                Request request = mActiveInteractive.peekFirst();
+                budget -= appendFragment(request, fragment);
+                if (request.position == request.wire.length) {
+                    finished.add(mActiveInteractive.pollFirst());
+                }
+            }
+            // 대용량은 대화 채널이 예산을 다 써도 조각 하나는 보낸다.
+            boolean first = true;
+            while (!mActiveBulk.isEmpty() && (budget > 0 || first)) {
+                Request request = mActiveBulk.peekFirst();
+                budget -= appendFragment(request, fragment);
+                first = false;
+                if (request.position == request.wire.length) {
+                    finished.add(mActiveBulk.pollFirst());
+                }
+            }
+            mWriter.flush();
+        } catch (IOException e) {
+            synchronized (mLock) {
+                mFailure = e;
+                mClosed = true;
+            }
+            // 이미 쓴 조각이 있어도 상대방이 받았는지 알 수 없으므로 실패로 처리한다.
+            failAll(finished, e);
+            if (mCallback != null) {
+                mCallback.onSendFailed(e);
+            }
+            return false;
+        }
+        for (Request request : control) {
+            request.future.complete();
+        }
+        long now = System.nanoTime();
+        for (Request request : finished) {
+            request.future.complete();
+            if (mCallback != null) {
+                mCallback.onFrameSent(request.type, request.payload, now - request.queuedAt);
+            }
+        }
+        return true;
+    }
+
+    // 요청의 다음 조각을 쓴다. 조각내지 않으면 남은 전체를 쓴다.
+    private int appendFragment(Request request, boolean fragment) throws IOException {
+        int remaining = request.wire.length - request.position;
+        int length = fragment ? Math.min(remaining, Frame.MAX_FRAGMENT) : remaining;
+        int flags = Frame.withChannel(request.flags, fragment ? request.channel : 0);
+        if (length < remaining) {
+            flags |= Frame.FLAG_MORE;
+        }
+        mWriter.appendFrame(request.type, flags, request.wire, request.position, length);
+        request.position += length;
+        return length;
+    }
+
+    // mLock 을 잡은 상태에서 호출
+    private List<Request> takeAll() {
+        List<Request> rest = new ArrayList<Request>();
+        for (ArrayDeque<Request> queue : mQueues) {
+            rest.addAll(queue);
+            queue.clear();
+        }
+        return rest;
+    }
+
+    private static void failAll(List<Request> requests, IOException failure) {
+        for (Request request : requests) {
+            if (!request.future.isDone()) {
+                request.future.fail(failure);
+            }
+        }
+        requests.clear();
+    }
+}
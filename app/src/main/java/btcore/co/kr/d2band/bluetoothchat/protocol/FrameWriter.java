@@ -0,0 +1,168 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link Frame} 을 OutputStream 에 쓴다.
+ * 작은 프레임은 헤더와 payload 를 내부 버퍼에 모아 write() 한 번으로 보낸다.
+ * 큰 payload 는 버퍼를 거치지 않고 바로 쓴다.
+ * {@link #setCipher(FrameCipher)} 뒤로는 모든 프레임을 암호화한다. 암호문도 같은 버퍼에 바로 쓰고,
+ * 버퍼보다 큰 프레임은 다시 쓰는 별도 버퍼에 암호화한다.
+ * 이 클래스는 스레드 안전하지 않으므로 호출하는 쪽에서 동기화해야 한다.
+ */
+public class FrameWriter {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer;
+    private final Crc32c mCrc = new Crc32c();
+    private boolean mChecksumEnabled;
+    private FrameCipher mCipher;
+    // 버퍼에 들어가지 않는 프레임의 암호문. 필요할 때만 만들고 계속 쓴다.
+    private byte[] mSealBuffer;
+    // mBuffer 에 모여 있는 바이트 수
+    private int mCount;
+
+    public FrameWriter(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    public FrameWriter(OutputStream out, int bufferSize) {
+        this.mOut = out;
+        this.mBuffer = new byte[Math.max(bufferSize, Frame.HEADER_SIZE + Frame.CRC_SIZE)];
+    }
+
+    /**
+     * 프레임마다 CRC32C 를 붙일지 지정한다. RFCOMM 은 링크 계층에서 이미 오류를 검출하므로 기본값은 false.
+     */
+    public void setChecksumEnabled(boolean enabled) {
+        mChecksumEnabled = enabled;
+    }
+
+    public boolean isChecksumEnabled() {
+        return mChecksumEnabled;
+    }
+
+    /**
+     * 이후 쓰는 프레임을 모두 암호화한다. 키 교환 프레임을 쓴 뒤에 설정한다.
+     */
+    public void setCipher(FrameCipher cipher) {
+        mCipher = cipher;
+    }
+
+    public void writeFrame(int type, byte[] payload) throws IOException {
+        writeFrame(type, 0, payload, 0, payload.length);
+    }
+
+    /**
+     * 프레임 하나를 쓰고 flush 한다.
+     */
+    public void writeFrame(int type, int flags, byte[] payload, int offset, int length)
+            throws IOException {
+        appendFrame(type, flags, payload, offset, length);
+        flush();
+    }
+
+    /**
+     * 프레임을 내부 버퍼에 모은다. 버퍼가 모자라면 그때까지 모은 내용을 먼저 내보낸다.
+     * 여러 작은 프레임을 모았다가 {@link #flush()} 하면 write() 한 번으로 나간다.
+     */
+    public void appendFrame(int type, int flags, byte[] payload, int offset, int length)
+            throws IOException {
+        if (length > Frame.MAX_PAYLOAD) {
+            throw new IOException("Frame too large: " + length);
+        }
+        if (mChecksumEnabled) {
+            flags |= Frame.FLAG_CRC;
+        }
+        if (mCipher != null) {
+            appendSealed(type, flags | Frame.FLAG_ENCRYPTED, payload, offset, length);
+            return;
+        }
+        boolean crcEnabled = (flags & Frame.FLAG_CRC) != 0;
+        int crc = 0;
+        if (crcEnabled) {
+            mCrc.reset();
+            mCrc.update(payload, offset, length);
+            crc = (int) mCrc.getValue();
+        }
+
+        int total = Frame.encodedSize(flags, length);
+        if (mCount + total > mBuffer.length) {
+            flushBuffer();
+        }
+        if (total <= mBuffer.length) {
+            mCount += Frame.encodeHeader(mBuffer, mCount, type, flags, length);
+            System.arraycopy(payload, offset, mBuffer, mCount, length);
+            mCount += length;
+            if (crcEnabled) {
+                Frame.putInt(mBuffer, mCount, crc);
+                mCount += Frame.CRC_SIZE;
+            }
+        } else {
+            // 큰 payload 는 복사하지 않고 그대로 쓴다.
+            int pos = Frame.encodeHeader(mBuffer, 0, type, flags, length);
+            mOut.write(mBuffer, 0, pos);
+            mOut.write(payload, offset, length);
+            if (crcEnabled) {
+                Frame.putInt(mBuffer, 0, crc);
+                mOut.write(mBuffer, 0, Frame.CRC_SIZE);
+            }
+        }
+    }
+
+    // 헤더를 먼저 쓰고 (인증 데이터) 그 뒤에 암호문을 바로 쓴다. CRC 는 암호문에 대한 값이다.
+    private void appendSealed(int type, int flags, byte[] payload, int offset, int length)
+            throws IOException {
+        int sealedLength = length + Frame.TAG_SIZE;
+        boolean crcEnabled = (flags & Frame.FLAG_CRC) != 0;
+        int total = Frame.encodedSize(flags, sealedLength);
+        if (mCount + total > mBuffer.length) {
+            flushBuffer();
+        }
+        byte[] out;
+        int start;
+        if (total <= mBuffer.length) {
+            out = mBuffer;
+            start = mCount;
+            mCount += total;
+        } else {
+            if (mSealBuffer == null || mSealBuffer.length < total) {
+                mSealBuffer = new byte[Math.max(total, mBuffer.length * 2)];
+            }
+            out = mSealBuffer;
+            start = 0;
+        }
+        Frame.encodeHeader(out, start, type, flags, sealedLength);
+        int sealed = mCipher.seal(out, start, payload, offset, length,
+                out, start + Frame.HEADER_SIZE);
+        if (sealed != sealedLength) {
+            throw new IOException("Unexpected ciphertext length " + sealed);
+        }
+        if (crcEnabled) {
+            mCrc.reset();
+            mCrc.update(out, start + Frame.HEADER_SIZE, sealedLength);
+            Frame.putInt(out, start + Frame.HEADER_SIZE + sealedLength, (int) mCrc.getValue());
+        }
+        if (out != mBuffer) {
+            mOut.write(out, 0, total);
+        }
+    }
+
+    /**
+     * 모아둔 프레임을 내보내고 스트림을 flush 한다.
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        mOut.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            mOut.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+    }
+}
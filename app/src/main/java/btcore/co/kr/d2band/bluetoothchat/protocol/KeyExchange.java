@@ -0,0 +1,138 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 연결마다 새 ECDH(P-256) 키 쌍을 만들어 공개 키를 {@link Frame#TYPE_KEY_EXCHANGE} 로 주고받고,
+ * 공유 비밀에서 HKDF-SHA256 으로 방향별 AES-128 키를 만든다.
+ *
+ * <p>키는 서명하지 않으므로 수동적인 도청은 막지만 연결 도중에 끼어드는 공격자는 막지 못한다.
+ * 페어링하지 않은 RFCOMM 연결과 같은 수준의 신원 확인이다. 양쪽이 {@link #getFingerprint()} 를
+ * 비교하면 끼어든 공격자를 찾을 수 있다.</p>
+ */
+public final class KeyExchange {
+
+    // X.509 로 인코딩한 P-256 공개 키는 91 바이트다. 잘못된 입력으로 큰 배열을 만들지 않도록 막는다.
+    private static final int MAX_PUBLIC_KEY_SIZE = 256;
+    private static final int KEY_SIZE = 16;
+    private static final byte[] INFO = {'d', '2', 'b', 'a', 'n', 'd', '-', 'c', 'h', 'a', 't', '-', '1'};
+
+    private final KeyPair mKeyPair;
+    private final byte[] mPublicKey;
+    private byte[] mFingerprint;
+
+    public KeyExchange() throws IOException {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            mKeyPair = generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("EC key generation failed", e);
+        }
+        mPublicKey = mKeyPair.getPublic().getEncoded();
+    }
+
+    /**
+     * 상대방에게 보낼 공개 키
+     */
+    public byte[] getPublicKey() {
+        return mPublicKey.clone();
+    }
+
+    /**
+     * 상대방 공개 키로 양쪽 방향의 {@link FrameCipher} 를 만든다.
+     * 양쪽 모두 같은 두 키를 얻고, 공개 키를 비교해 어느 쪽이 어느 키로 보낼지 정한다.
+     *
+     * @return [보내는 쪽, 받는 쪽]
+     */
+    public FrameCipher[] agree(byte[] peerPublicKey) throws IOException {
+        if (peerPublicKey.length > MAX_PUBLIC_KEY_SIZE) {
+            throw new IOException("Public key too large: " + peerPublicKey.length);
+        }
+        int order = compare(mPublicKey, peerPublicKey);
+        if (order == 0) {
+            // 자기 키를 되돌려 보내는 반사 공격
+            throw new IOException("Peer echoed our public key");
+        }
+        try {
+            PublicKey peer = KeyFactory.getInstance("EC")
+                    .generatePublic(new X509EncodedKeySpec(peerPublicKey));
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(mKeyPair.getPrivate());
+            agreement.doPhase(peer, true);
+            byte[] secret = agreement.generateSecret();
+
+            // salt 는 두 공개 키를 정해진 순서로 이은 값의 해시다. 양쪽이 같은 값을 얻는다.
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(order < 0 ? mPublicKey : peerPublicKey);
+            digest.update(order < 0 ? peerPublicKey : mPublicKey);
+            byte[] salt = digest.digest();
+
+            // HKDF extract, expand 한 블록 (32 바이트 = AES-128 키 두 개)
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+            byte[] prk = mac.doFinal(secret);
+            Arrays.fill(secret, (byte) 0);
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            mac.update(INFO);
+            mac.update((byte) 1);
+            byte[] okm = mac.doFinal();
+            Arrays.fill(prk, (byte) 0);
+
+            byte[] lowKey = Arrays.copyOfRange(okm, 0, KEY_SIZE);
+            byte[] highKey = Arrays.copyOfRange(okm, KEY_SIZE, 2 * KEY_SIZE);
+            Arrays.fill(okm, (byte) 0);
+            // 공개 키가 작은 쪽이 lowKey 로 보낸다.
+            byte[] sendKey = order < 0 ? lowKey : highKey;
+            byte[] receiveKey = order < 0 ? highKey : lowKey;
+            FrameCipher[] ciphers = {new FrameCipher(sendKey, true), new FrameCipher(receiveKey, false)};
+            mFingerprint = Arrays.copyOf(digest.digest(salt), 8);
+            return ciphers;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Key agreement failed", e);
+        }
+    }
+
+    /**
+     * 두 공개 키로 만든 짧은 값. 양쪽 화면에 같은 값이 보이면 중간에 끼어든 장치가 없다.
+     * {@link #agree(byte[])} 전에는 null
+     */
+    public String getFingerprint() {
+        if (mFingerprint == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mFingerprint.length; i++) {
+            if (i > 0 && i % 2 == 0) {
+                sb.append(' ');
+            }
+            sb.append(String.format("%02x", mFingerprint[i] & 0xff));
+        }
+        return sb.toString();
+    }
+
+    // 부호 없는 사전식 비교
+    private static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int d = (a[i] & 0xff) - (b[i] & 0xff);
+            if (d != 0) {
+                return d;
+            }
+        }
+        return a.length - b.length;
+    }
+}
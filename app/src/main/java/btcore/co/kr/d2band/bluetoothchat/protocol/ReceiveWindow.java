@@ -0,0 +1,48 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import btcore.co.kr.d2band.bluetoothchat.buffer.PooledBuffer;
+
+/**
+ * 받는 쪽 흐름 제어. 받은 메시지 버퍼가 release() 될 때(소비자가 실제로 처리했을 때)
+ * 처리한 바이트를 모아 두었다가 창의 1/4 이상이 되면 상대방에게 {@link Frame#TYPE_CREDIT} 으로 돌려준다.
+ * 소비자가 느리면 credit 이 늦게 돌아가므로 보내는 쪽도 그만큼 느려지고,
+ * 받는 쪽 Handler 큐에는 최대 창 크기만큼만 쌓인다.
+ */
+public class ReceiveWindow implements PooledBuffer.ReleaseListener {
+
+    private final FrameSender mSender;
+    private final int mThreshold;
+    private final AtomicInteger mConsumed = new AtomicInteger();
+
+    public ReceiveWindow(FrameSender sender, int window) {
+        this.mSender = sender;
+        this.mThreshold = creditThreshold(window);
+    }
+
+    // 이만큼 모이면 credit 을 돌려준다. 보내는 쪽도 같은 값으로 받는 쪽이 비었는지 판단한다.
+    static int creditThreshold(int window) {
+        return Math.max(1, window / 4);
+    }
+
+    @Override
+    public void onReleased(int length) {
+        consumed(length);
+    }
+
+    /**
+     * 소비자가 length 바이트를 처리했음을 알린다. 어느 스레드에서 불러도 된다.
+     */
+    public void consumed(int length) {
+        if (mConsumed.addAndGet(length) < mThreshold) {
+            return;
+        }
+        int credit = mConsumed.getAndSet(0);
+        if (credit > 0) {
+            byte[] payload = new byte[4];
+            Frame.putInt(payload, 0, credit);
+            mSender.sendControl(Frame.TYPE_CREDIT, payload);
+        }
+    }
+}
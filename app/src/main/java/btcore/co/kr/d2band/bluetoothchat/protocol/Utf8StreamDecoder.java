@@ -0,0 +1,152 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.nio.CharBuffer;
+
+/**
+ * 조각난 바이트열을 이어서 UTF-8 로 푸는 디코더. 한 번 만들어 계속 쓴다.
+ *
+ * <p>{@link #decode} 는 푼 문자를 내부 {@link CharBuffer} 뒤에 붙인다. 입력이 문자 중간에서 끝나면
+ * 남은 바이트를 상태로 들고 있다가 다음 호출에서 이어 푼다. 그래서 한글 한 글자(3바이트) 가 두 조각에
+ * 나뉘어 와도 깨지지 않는다. 잘못된 바이트는 U+FFFD 로 바꾼다 (WHATWG 인코딩 표준과 같은 위치와 개수).</p>
+ *
+ * <p>출력 버퍼는 더 긴 입력이 올 때만 늘어나고 그 밖에는 메모리를 할당하지 않는다.
+ * 이 클래스는 스레드 안전하지 않다.</p>
+ */
+public final class Utf8StreamDecoder {
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private char[] mChars;
+    private CharBuffer mBuffer;
+    private int mLength;
+
+    // 풀고 있는 문자. 더 받아야 하는 바이트 수와 다음 바이트의 허용 범위
+    private int mCodePoint;
+    private int mNeeded;
+    private int mSeen;
+    private int mLower = 0x80;
+    private int mUpper = 0xBF;
+
+    public Utf8StreamDecoder() {
+        this(256);
+    }
+
+    public Utf8StreamDecoder(int initialCapacity) {
+        mChars = new char[Math.max(initialCapacity, 16)];
+        mBuffer = CharBuffer.wrap(mChars);
+    }
+
+    /**
+     * src 를 풀어 지금까지 푼 문자 뒤에 붙인다.
+     *
+     * @param endOfInput 더 올 바이트가 없으면 true. 끝나지 않은 문자는 U+FFFD 가 된다.
+     * @return 지금까지 푼 모든 문자 (position 0, limit 문자 수). 다음 호출 전까지 유효하다.
+     */
+    public CharBuffer decode(byte[] src, int offset, int length, boolean endOfInput) {
+        // 바이트마다 문자가 하나 이하다. 앞 조각에서 이어진 4바이트 문자가 2개, 끝에서 U+FFFD 가 1개 더 나올 수 있다.
+        ensureCapacity(mLength + length + 2);
+        char[] out = mChars;
+        int n = mLength;
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int b = src[i] & 0xff;
+            if (mNeeded == 0) {
+                if (b < 0x80) {
+                    out[n++] = (char) b;
+                    i++;
+                    // ASCII 가 이어지면 상태 검사 없이 복사한다.
+                    while (i < end && src[i] >= 0) {
+                        out[n++] = (char) src[i++];
+                    }
+                    continue;
+                }
+                if (b >= 0xC2 && b <= 0xDF) {
+                    mNeeded = 1;
+                    mCodePoint = b & 0x1F;
+                } else if (b >= 0xE0 && b <= 0xEF) {
+                    // 짧게 쓸 수 있었던 값과 서로게이트 영역을 두 번째 바이트에서 걸러 낸다.
+                    if (b == 0xE0) {
+                        mLower = 0xA0;
+                    } else if (b == 0xED) {
+                        mUpper = 0x9F;
+                    }
+                    mNeeded = 2;
+                    mCodePoint = b & 0x0F;
+                } else if (b >= 0xF0 && b <= 0xF4) {
+                    if (b == 0xF0) {
+                        mLower = 0x90;
+                    } else if (b == 0xF4) {
+                        mUpper = 0x8F;
+                    }
+                    mNeeded = 3;
+                    mCodePoint = b & 0x07;
+                } else {
+                    out[n++] = REPLACEMENT;
+                }
+                i++;
+                continue;
+            }
+            if (b < mLower || b > mUpper) {
+                // 끝나지 않은 문자를 U+FFFD 하나로 바꾸고 이 바이트는 처음부터 다시 본다.
+                resetSequence();
+                out[n++] = REPLACEMENT;
+                continue;
+            }
+            mLower = 0x80;
+            mUpper = 0xBF;
+            mCodePoint = (mCodePoint << 6) | (b & 0x3F);
+            i++;
+            if (++mSeen == mNeeded) {
+                if (mCodePoint >= 0x10000) {
+                    out[n++] = Character.highSurrogate(mCodePoint);
+                    out[n++] = Character.lowSurrogate(mCodePoint);
+                } else {
+                    out[n++] = (char) mCodePoint;
+                }
+                resetSequence();
+            }
+        }
+        if (endOfInput && mNeeded != 0) {
+            resetSequence();
+            out[n++] = REPLACEMENT;
+        }
+        mLength = n;
+        mBuffer.clear();
+        mBuffer.limit(n);
+        return mBuffer;
+    }
+
+    /**
+     * 푼 문자를 비운다. 끝나지 않은 문자는 그대로 들고 있다.
+     */
+    public void clear() {
+        mLength = 0;
+    }
+
+    /**
+     * 푼 문자와 끝나지 않은 문자를 모두 버린다. 새 스트림을 시작할 때 부른다.
+     */
+    public void reset() {
+        mLength = 0;
+        resetSequence();
+    }
+
+    private void resetSequence() {
+        mCodePoint = 0;
+        mNeeded = 0;
+        mSeen = 0;
+        mLower = 0x80;
+        mUpper = 0xBF;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mChars.length) {
+            return;
+        }
+        char[] grown = new char[Math.max(capacity, mChars.length * 2)];
+        System.arraycopy(mChars, 0, grown, 0, mLength);
+        mChars = grown;
+        mBuffer = CharBuffer.wrap(mChars);
+    }
+}
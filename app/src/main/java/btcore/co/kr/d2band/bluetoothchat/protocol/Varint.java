@@ -0,0 +1,81 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.io.IOException;
+
+/**
+ * 부호 없는 LEB128 가변 길이 정수. 7비트씩 낮은 자리부터 쓰고 이어지는 바이트에는 최상위 비트를 켠다.
+ * 0~127 은 1바이트, 64비트 전체는 최대 10바이트다.
+ *
+ * <p>읽을 때는 가장 짧은 형식만 받는다. 그래서 읽은 바이트 수는 {@link #size(long)} 와 같다.</p>
+ */
+public final class Varint {
+
+    public static final int MAX_SIZE = 10;
+
+    private Varint() {
+    }
+
+    /**
+     * value 를 쓰는 데 필요한 바이트 수
+     */
+    public static int size(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * @return 쓴 바이트 수
+     */
+    public static int write(byte[] dst, int offset, long value) {
+        int pos = offset;
+        while ((value & ~0x7fL) != 0) {
+            dst[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos - offset;
+    }
+
+    /**
+     * offset 에서 하나를 읽는다. 다음 값은 offset + {@link #size(long)} 에 있다.
+     *
+     * @param limit 읽을 수 있는 끝 (포함하지 않음)
+     * @throws IOException limit 전에 끝나지 않았거나, 64비트를 넘거나, 더 짧게 쓸 수 있는 값
+     */
+    public static long read(byte[] src, int offset, int limit) throws IOException {
+        long value = 0;
+        for (int shift = 0, pos = offset; shift < 64; shift += 7, pos++) {
+            if (pos >= limit) {
+                throw new IOException("Truncated varint");
+            }
+            int b = src[pos];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                // 마지막 바이트가 0 이면 (첫 바이트 제외) 한 바이트 짧게 쓸 수 있었다.
+                if (b == 0 && pos > offset) {
+                    throw new IOException("Overlong varint");
+                }
+                if (shift == 63 && b > 1) {
+                    throw new IOException("Varint overflows 64 bits");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * 부호 있는 값을 작은 절댓값이 짧아지도록 바꾼다 (0, -1, 1, -2 → 0, 1, 2, 3).
+     */
+    public static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,162 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 비동기로 보낸 메시지의 전송 결과.
+ * 소켓에 다 쓰이면 성공, 쓰기 도중 오류가 나거나 큐가 가득 차 있으면 실패로 끝난다.
+ * 리스너는 전송을 끝낸 스레드(쓰기 스레드) 에서 호출되므로 오래 걸리는 작업을 하면 안 된다.
+ */
+public class WriteFuture implements Future<Void> {
+
+    /**
+     * 전송 완료 콜백
+     */
+    public interface Listener {
+        void onWriteComplete(WriteFuture future);
+    }
+
+    private boolean mDone;
+    private IOException mFailure;
+    private List<Listener> mListeners;
+
+    /**
+     * 이미 실패로 끝난 결과를 만든다.
+     */
+    public static WriteFuture failed(IOException cause) {
+        WriteFuture future = new WriteFuture();
+        future.fail(cause);
+        return future;
+    }
+
+    /**
+     * 모든 결과가 끝나면 끝나는 결과를 만든다. 하나라도 실패하면 첫 번째 실패 원인으로 실패한다.
+     */
+    public static WriteFuture allOf(List<WriteFuture> futures) {
+        final WriteFuture all = new WriteFuture();
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        Listener listener = new Listener() {
+            @Override
+            public void onWriteComplete(WriteFuture future) {
+                if (!future.isSuccess()) {
+                    failure.compareAndSet(null, future.getFailure());
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    all.finish(failure.get());
+                }
+            }
+        };
+        if (futures.isEmpty()) {
+            all.complete();
+        }
+        for (WriteFuture future : futures) {
+            future.addListener(listener);
+        }
+        return all;
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (!mDone) {
+                if (mListeners == null) {
+                    mListeners = new ArrayList<Listener>(1);
+                }
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onWriteComplete(this);
+    }
+
+    public void complete() {
+        finish(null);
+    }
+
+    public void fail(IOException cause) {
+        finish(cause);
+    }
+
+    private void finish(IOException cause) {
+        List<Listener> listeners;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mFailure = cause;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        if (listeners != null) {
+            for (Listener listener : listeners) {
+                listener.onWriteComplete(this);
+            }
+        }
+    }
+
+    public synchronized boolean isSuccess() {
+        return mDone && mFailure == null;
+    }
+
+    /**
+     * 실패 원인, 성공했거나 아직 끝나지 않았으면 null
+     */
+    public synchronized IOException getFailure() {
+        return mFailure;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        // 큐에 들어간 메시지는 취소하지 않는다.
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized Void get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized Void get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (mFailure != null) {
+            throw new ExecutionException(mFailure);
+        }
+        return null;
+    }
+}
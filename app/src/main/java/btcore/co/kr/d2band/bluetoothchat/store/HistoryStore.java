@@ -0,0 +1,306 @@
+package btcore.co.kr.d2band.bluetoothchat.store;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import btcore.co.kr.d2band.bluetoothchat.protocol.Crc32c;
+import btcore.co.kr.d2band.bluetoothchat.protocol.Frame;
+
+/**
+ * 덧붙이기만 하는 기록 저장소. 기록마다 0 부터 매긴 번호로 앞뒤 어디서든 읽는다.
+ *
+ * <p>기록은 정해진 크기의 세그먼트 파일에 차례로 쓰고, 세그먼트가 차면 새 파일을 연다.
+ * 파일 이름은 그 세그먼트 첫 기록의 번호다.</p>
+ *
+ * <pre>
+ * 0000000000000000000.seg : | length 4 | crc32c 4 | data (length) | ...
+ * 0000000000000000000.idx : | 기록 0 위치 4 | 기록 64 위치 4 | 기록 128 위치 4 | ...
+ * </pre>
+ *
+ * <p>색인은 {@link #INDEX_INTERVAL} 개마다 위치 하나만 두는 성긴 색인이다. 간격이 일정하므로
+ * n 번째 기록은 색인 파일의 (n / 64) * 4 위치를 한 번 읽고 많아야 63 개를 건너뛰어 찾는다.
+ * 열 때는 파일 목록과 마지막 세그먼트의 마지막 색인 뒤만 읽으므로 기록이 많아져도 여는 시간은 같다.</p>
+ *
+ * <p>{@link Journal} 처럼 fsync 는 하지 않는다. 전원이 갑자기 꺼져 반쯤 쓰인 마지막 기록은
+ * 다시 열 때 crc32c 로 찾아 잘라 낸다. 모든 메서드는 this 로 동기화한다.</p>
+ */
+public final class HistoryStore implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    static final int INDEX_INTERVAL = 64;
+    static final int RECORD_HEADER_SIZE = 8;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    // 첫 기록 번호 -> 세그먼트. 마지막 것에만 쓴다.
+    private final TreeMap<Long, Segment> mSegments = new TreeMap<Long, Segment>();
+    private Segment mActive;
+    private RandomAccessFile mActiveData;
+    private RandomAccessFile mActiveIndex;
+    private final byte[] mHeader = new byte[RECORD_HEADER_SIZE];
+
+    private static final class Segment {
+        final long base;
+        final File data;
+        final File index;
+        // 마지막 세그먼트만 바뀐다.
+        int count;
+        long length;
+
+        Segment(File directory, long base) {
+            this.base = base;
+            String name = String.format(Locale.US, "%019d", base);
+            this.data = new File(directory, name + SEGMENT_SUFFIX);
+            this.index = new File(directory, name + INDEX_SUFFIX);
+        }
+    }
+
+    private HistoryStore(File directory, int segmentSize) {
+        this.mDirectory = directory;
+        this.mSegmentSize = segmentSize;
+    }
+
+    public static HistoryStore open(File directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * 폴더를 열고 마지막 세그먼트를 이어 쓸 수 있게 한다. 폴더가 없으면 만든다.
+     *
+     * @param segmentSize 세그먼트 파일 하나의 크기. 이보다 큰 기록은 세그먼트 하나를 혼자 쓴다.
+     */
+    public static HistoryStore open(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        HistoryStore store = new HistoryStore(directory, segmentSize);
+        try {
+            store.load();
+        } catch (IOException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    private void load() throws IOException {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    mSegments.put(base, new Segment(mDirectory, base));
+                } catch (NumberFormatException e) {
+                    // 이 저장소가 만든 파일이 아니다.
+                }
+            }
+        }
+        // 앞 세그먼트의 기록 수는 다음 세그먼트 번호로 안다.
+        Segment previous = null;
+        for (Segment segment : mSegments.values()) {
+            if (previous != null) {
+                previous.count = (int) (segment.base - previous.base);
+                previous.length = previous.data.length();
+            }
+            previous = segment;
+        }
+        if (previous == null) {
+            previous = new Segment(mDirectory, 0);
+            mSegments.put(0L, previous);
+        }
+        openActive(previous);
+        recoverActive();
+    }
+
+    private void openActive(Segment segment) throws IOException {
+        closeActive();
+        mActive = segment;
+        mActiveData = new RandomAccessFile(segment.data, "rw");
+        mActiveIndex = new RandomAccessFile(segment.index, "rw");
+    }
+
+    // 마지막 색인이 가리키는 기록부터 끝까지 읽어 기록 수를 세고 망가진 꼬리를 잘라 낸다.
+    private void recoverActive() throws IOException {
+        long dataLength = mActiveData.length();
+        int entries = (int) (mActiveIndex.length() / 4);
+        long position = 0;
+        int count = 0;
+        // 색인 파일에 쓰다 만 항목이 있거나 데이터보다 앞서 있으면 믿을 수 있는 것까지 물러난다.
+        while (entries > 0) {
+            mActiveIndex.seek((long) (entries - 1) * 4);
+            long entry = mActiveIndex.readInt() & 0xffffffffL;
+            if (entry < dataLength) {
+                position = entry;
+                count = (entries - 1) * INDEX_INTERVAL;
+                break;
+            }
+            entries--;
+        }
+        mActiveIndex.setLength((long) entries * 4);
+        byte[] data = new byte[0];
+        while (position + RECORD_HEADER_SIZE <= dataLength) {
+            mActiveData.seek(position);
+            mActiveData.readFully(mHeader);
+            int length = Frame.getInt(mHeader, 0);
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > dataLength) {
+                break;
+            }
+            if (data.length < length) {
+                data = new byte[length];
+            }
+            mActiveData.readFully(data, 0, length);
+            if (Crc32c.compute(data, 0, length) != Frame.getInt(mHeader, 4)) {
+                break;
+            }
+            if (count % INDEX_INTERVAL == 0 && count / INDEX_INTERVAL == entries) {
+                // 기록은 썼지만 색인을 쓰기 전에 멈췄다.
+                mActiveIndex.seek((long) entries * 4);
+                mActiveIndex.writeInt((int) position);
+                entries++;
+            }
+            position += RECORD_HEADER_SIZE + length;
+            count++;
+        }
+        if (position < dataLength) {
+            mActiveData.setLength(position);
+        }
+        mActive.count = count;
+        mActive.length = position;
+    }
+
+    /**
+     * 기록을 끝에 덧붙인다.
+     *
+     * @return 덧붙인 기록의 번호
+     */
+    public synchronized long append(byte[] data, int offset, int length) throws IOException {
+        if (mActiveData == null) {
+            throw new IOException("History store is closed");
+        }
+        if (mActive.count > 0 && mActive.length + RECORD_HEADER_SIZE + length > mSegmentSize) {
+            Segment next = new Segment(mDirectory, mActive.base + mActive.count);
+            mSegments.put(next.base, next);
+            openActive(next);
+        }
+        Segment segment = mActive;
+        byte[] record = new byte[RECORD_HEADER_SIZE + length];
+        Frame.putInt(record, 0, length);
+        Frame.putInt(record, 4, Crc32c.compute(data, offset, length));
+        System.arraycopy(data, offset, record, RECORD_HEADER_SIZE, length);
+        mActiveData.seek(segment.length);
+        mActiveData.write(record);
+        if (segment.count % INDEX_INTERVAL == 0) {
+            mActiveIndex.seek((long) (segment.count / INDEX_INTERVAL) * 4);
+            mActiveIndex.writeInt((int) segment.length);
+        }
+        segment.length += record.length;
+        return segment.base + segment.count++;
+    }
+
+    /**
+     * 다음에 덧붙일 기록의 번호. 곧 지금까지 쓴 기록 수다.
+     */
+    public synchronized long size() {
+        return mActive.base + mActive.count;
+    }
+
+    /**
+     * from 번 기록부터 차례로 max 개까지 읽어 out 에 더한다.
+     *
+     * @return 읽은 기록 수. from 이 끝이면 0
+     */
+    public synchronized int read(long from, int max, List<byte[]> out) throws IOException {
+        if (from < 0) {
+            throw new IllegalArgumentException("from=" + from);
+        }
+        int read = 0;
+        long next = from;
+        while (read < max && next < size()) {
+            Map.Entry<Long, Segment> entry = mSegments.floorEntry(next);
+            Segment segment = entry.getValue();
+            int n = (int) Math.min(max - read, segment.base + segment.count - next);
+            readSegment(segment, (int) (next - segment.base), n, out);
+            read += n;
+            next += n;
+        }
+        return read;
+    }
+
+    // 세그먼트 안의 first 번째부터 count 개를 읽는다.
+    private void readSegment(Segment segment, int first, int count, List<byte[]> out)
+            throws IOException {
+        boolean active = segment == mActive;
+        RandomAccessFile data = active ? mActiveData : new RandomAccessFile(segment.data, "r");
+        RandomAccessFile index = active ? mActiveIndex : new RandomAccessFile(segment.index, "r");
+        try {
+            index.seek((long) (first / INDEX_INTERVAL) * 4);
+            long position = index.readInt() & 0xffffffffL;
+            // 색인 항목 사이는 길이만 읽고 건너뛴다.
+            for (int skip = first % INDEX_INTERVAL; skip > 0; skip--) {
+                data.seek(position);
+                position += RECORD_HEADER_SIZE + data.readInt();
+            }
+            data.seek(position);
+            for (int i = 0; i < count; i++) {
+                data.readFully(mHeader);
+                int length = Frame.getInt(mHeader, 0);
+                if (length < 0 || length > segment.length) {
+                    throw new IOException("Corrupt record " + (segment.base + first + i));
+                }
+                byte[] record = new byte[length];
+                data.readFully(record);
+                if (Crc32c.compute(record, 0, length) != Frame.getInt(mHeader, 4)) {
+                    throw new IOException("Corrupt record " + (segment.base + first + i));
+                }
+                out.add(record);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated segment " + segment.data, e);
+        } finally {
+            if (!active) {
+                data.close();
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * 세그먼트 파일 수
+     */
+    synchronized int segmentCount() {
+        return mSegments.size();
+    }
+
+    private void closeActive() throws IOException {
+        try {
+            if (mActiveData != null) {
+                mActiveData.close();
+            }
+        } finally {
+            mActiveData = null;
+            if (mActiveIndex != null) {
+                mActiveIndex.close();
+                mActiveIndex = null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeActive();
+    }
+}
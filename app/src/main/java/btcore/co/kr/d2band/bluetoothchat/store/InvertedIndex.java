@@ -0,0 +1,171 @@
+package btcore.co.kr.d2band.bluetoothchat.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import btcore.co.kr.d2band.bluetoothchat.protocol.Varint;
+
+/**
+ * 낱말마다 그 낱말이 나온 글 번호 목록을 두는 역색인. 글은 번호가 늘어나는 순서로만 더한다.
+ *
+ * <p>번호 목록은 앞 번호와의 차이를 {@link Varint} 로 이어 쓴 바이트 배열이다. 대화 기록처럼 번호가
+ * 촘촘하면 번호 하나가 대개 1~2 바이트다. 낱말은 정렬해 두어 접두어가 같은 낱말을 한 구간으로 찾는다.</p>
+ *
+ * <p>검색은 검색어의 낱말마다 그 낱말로 시작하는 모든 낱말의 목록을 비트셋 하나에 합치고,
+ * 낱말끼리는 AND 한다. 비트셋 크기는 글 수 / 8 바이트라 글이 수십만 개여도 수십 KB 이고,
+ * 걸리는 시간은 풀어야 하는 번호 수에 비례한다. 스레드에 안전하지 않다.</p>
+ */
+public final class InvertedIndex {
+
+    private static final long[] NO_RESULT = new long[0];
+
+    private static final class Postings {
+        byte[] data = new byte[4];
+        int length;
+        long last = -1;
+
+        void add(long id) {
+            if (id == last) {
+                // 한 글에 같은 낱말이 여러 번 나왔다.
+                return;
+            }
+            if (data.length - length < Varint.MAX_SIZE) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + Varint.MAX_SIZE));
+            }
+            length += Varint.write(data, length, id - last);
+            last = id;
+        }
+
+        // 검색 시간 대부분이 여기서 쓰인다. 이 클래스가 쓴 것만 읽으므로 검사 없이 Varint 를 바로 푼다.
+        void addTo(long[] bits) {
+            byte[] data = this.data;
+            long id = -1;
+            int pos = 0;
+            while (pos < length) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                bits[(int) (id >>> 6)] |= 1L << id;
+            }
+        }
+    }
+
+    private final TreeMap<String, Postings> mTerms = new TreeMap<String, Postings>();
+    // 다음에 더할 수 있는 가장 작은 번호
+    private long mNextId;
+    private final List<String> mTokens = new ArrayList<String>();
+
+    /**
+     * 글 하나를 색인에 넣는다.
+     *
+     * @param id 앞서 넣은 글보다 큰 번호
+     */
+    public void add(long id, CharSequence text) {
+        mTokens.clear();
+        Tokenizer.tokenize(text, mTokens);
+        add(id, mTokens);
+    }
+
+    /**
+     * {@link Tokenizer#tokenize} 로 미리 나눈 낱말로 글 하나를 넣는다. 나누기는 락 밖에서 할 수 있다.
+     *
+     * @param id 앞서 넣은 글보다 큰 번호
+     */
+    public void add(long id, List<String> tokens) {
+        if (id < mNextId) {
+            throw new IllegalArgumentException("id " + id + " < " + mNextId);
+        }
+        mNextId = id + 1;
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            Postings postings = mTerms.get(token);
+            if (postings == null) {
+                postings = new Postings();
+                mTerms.put(token, postings);
+            }
+            postings.add(id);
+        }
+    }
+
+    /**
+     * 검색어의 모든 낱말로 시작하는 낱말이 하나씩은 있는 글을 찾는다.
+     *
+     * @param limit 돌려줄 최대 수
+     * @return 글 번호. 큰 번호(최근 글)부터
+     */
+    public long[] search(CharSequence query, int limit) {
+        mTokens.clear();
+        Tokenizer.tokenizeQuery(query, mTokens);
+        if (mTokens.isEmpty() || limit <= 0 || mNextId == 0) {
+            return NO_RESULT;
+        }
+        long[] result = null;
+        for (int i = 0; i < mTokens.size(); i++) {
+            String prefix = mTokens.get(i);
+            long[] bits = new long[(int) ((mNextId + 63) >>> 6)];
+            boolean any = false;
+            for (Postings postings
+                    : mTerms.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+                postings.addTo(bits);
+                any = true;
+            }
+            if (!any) {
+                return NO_RESULT;
+            }
+            if (result == null) {
+                result = bits;
+            } else {
+                for (int w = 0; w < result.length; w++) {
+                    result[w] &= bits[w];
+                }
+            }
+        }
+        return collect(result, limit);
+    }
+
+    // 큰 번호부터 limit 개를 꺼낸다.
+    private static long[] collect(long[] bits, int limit) {
+        int found = 0;
+        for (long word : bits) {
+            found += Long.bitCount(word);
+        }
+        limit = Math.min(limit, found);
+        long[] ids = new long[limit];
+        int count = 0;
+        for (int w = bits.length - 1; w >= 0 && count < limit; w--) {
+            long word = bits[w];
+            while (word != 0 && count < limit) {
+                int bit = 63 - Long.numberOfLeadingZeros(word);
+                ids[count++] = ((long) w << 6) + bit;
+                word &= ~(1L << bit);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 서로 다른 낱말 수
+     */
+    public int termCount() {
+        return mTerms.size();
+    }
+
+    /**
+     * 번호 목록이 차지하는 바이트 수
+     */
+    public long postingBytes() {
+        long bytes = 0;
+        for (Postings postings : mTerms.values()) {
+            bytes += postings.length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,280 @@
+package btcore.co.kr.d2band.bluetoothchat.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import btcore.co.kr.d2band.bluetoothchat.protocol.Crc32c;
+
+/**
+ * 파일 하나를 메모리에 매핑한 덧붙이기 전용 기록. 앞에서부터 지우는 FIFO 로 쓴다.
+ *
+ * <pre>
+ * | magic 4 | head 4 | 기록 ... | 0 4 |
+ * 기록: | length 4 | crc32c 4 | data (length) |
+ * </pre>
+ *
+ * <p>head 는 아직 지우지 않은 첫 기록의 위치이고 마지막 기록 뒤에는 항상 길이 0 이 있다.
+ * 매핑한 메모리에 쓰는 것만으로 커널 페이지 캐시에 들어가므로 프로세스가 죽어도 남는다.
+ * fsync 는 하지 않아서 전원이 갑자기 꺼지면 마지막 몇 기록을 잃을 수 있고,
+ * 반쯤 쓰인 기록은 다시 열 때 crc32c 로 찾아 버린다.</p>
+ *
+ * <p>파일은 {@link #INITIAL_SIZE} 로 시작해 두 배씩 {@link #MAX_SIZE} 까지 늘어난다.
+ * 모든 기록을 지우면 처음 위치부터 다시 쓰고, 공간이 모자라면 지운 자리로 남은 기록을 당겨 온다.
+ * 스레드에 안전하지 않다.</p>
+ */
+public final class Journal implements Closeable {
+
+    static final int MAGIC = 0x4A524E31; // "JRN1"
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8;
+    static final int INITIAL_SIZE = 64 * 1024;
+    public static final int MAX_SIZE = 4 * 1024 * 1024;
+    // 기록 하나의 최대 크기. 머리와 뒤의 길이 0 까지 들어가야 한다.
+    public static final int MAX_RECORD_SIZE = MAX_SIZE - HEADER_SIZE - RECORD_HEADER_SIZE - 4;
+
+    private static final int HEAD_OFFSET = 4;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    private int mHead;
+    private int mTail;
+    // next() 가 다음에 돌려줄 기록 위치. head 와 tail 사이에 있다.
+    private int mReadPos;
+    private int mCount;
+    private int mUnread;
+
+    private Journal(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+    }
+
+    /**
+     * 파일을 열고 남아 있는 기록을 찾는다. 없거나 형식이 다르면 빈 기록으로 새로 만든다.
+     */
+    public static Journal open(File file) throws IOException {
+        Journal journal = new Journal(file);
+        try {
+            journal.recover();
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    private void recover() throws IOException {
+        long length = mChannel.size();
+        int capacity = (int) Math.min(Math.max(length, INITIAL_SIZE), MAX_SIZE);
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        int head = mBuffer.getInt(HEAD_OFFSET);
+        if (length < HEADER_SIZE || mBuffer.getInt(0) != MAGIC
+                || head < HEADER_SIZE || head > capacity - 4) {
+            mBuffer.putInt(HEADER_SIZE, 0);
+            mBuffer.putInt(HEAD_OFFSET, HEADER_SIZE);
+            mBuffer.putInt(0, MAGIC);
+            head = HEADER_SIZE;
+        }
+        int pos = head;
+        int count = 0;
+        int recordLength;
+        while ((recordLength = validRecordAt(pos)) >= 0) {
+            pos += RECORD_HEADER_SIZE + recordLength;
+            count++;
+        }
+        if (mBuffer.getInt(pos) != 0) {
+            // 전원이 꺼지며 반쯤 쓰인 기록이다. 그 뒤로는 믿을 수 없다.
+            mBuffer.putInt(pos, 0);
+        }
+        mHead = head;
+        mTail = pos;
+        mReadPos = head;
+        mCount = count;
+        mUnread = count;
+    }
+
+    // pos 에 온전한 기록이 있으면 data 길이를, 없으면 -1 을 돌려준다.
+    private int validRecordAt(int pos) {
+        int capacity = mBuffer.capacity();
+        if (pos > capacity - RECORD_HEADER_SIZE - 4) {
+            return -1;
+        }
+        int length = mBuffer.getInt(pos);
+        if (length <= 0 || length > capacity - pos - RECORD_HEADER_SIZE - 4) {
+            return -1;
+        }
+        int crc = mBuffer.getInt(pos + 4);
+        byte[] data = new byte[length];
+        read(pos + RECORD_HEADER_SIZE, data);
+        return Crc32c.compute(data, 0, length) == crc ? length : -1;
+    }
+
+    /**
+     * 기록을 끝에 덧붙인다.
+     *
+     * @return 최대 크기를 넘어 더 넣을 수 없으면 false
+     */
+    public boolean append(byte[] data, int offset, int length) throws IOException {
+        if (length <= 0 || length > MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("length=" + length);
+        }
+        int needed = RECORD_HEADER_SIZE + length + 4;
+        if (mTail + needed > mBuffer.capacity() && !makeRoom(needed)) {
+            return false;
+        }
+        int pos = mTail;
+        ByteBuffer dst = mBuffer.duplicate();
+        dst.position(pos + RECORD_HEADER_SIZE);
+        dst.put(data, offset, length);
+        mBuffer.putInt(pos + 4, Crc32c.compute(data, offset, length));
+        mBuffer.putInt(pos + RECORD_HEADER_SIZE + length, 0);
+        // 길이를 마지막에 써서 다 쓰기 전에는 기록이 보이지 않게 한다.
+        mBuffer.putInt(pos, length);
+        mTail = pos + RECORD_HEADER_SIZE + length;
+        mCount++;
+        mUnread++;
+        return true;
+    }
+
+    // 지운 자리로 당겨 오거나 파일을 늘린다.
+    private boolean makeRoom(int needed) throws IOException {
+        if (canCompact(needed)) {
+            compact();
+            return true;
+        }
+        long required = (long) mTail + needed;
+        if (required <= MAX_SIZE) {
+            int capacity = mBuffer.capacity();
+            while (capacity < required) {
+                capacity = (int) Math.min((long) capacity * 2, MAX_SIZE);
+            }
+            grow(capacity);
+            return true;
+        }
+        // 더 늘릴 수 없으면 최대 크기 안에서 당겨 올 수 있는지 본다.
+        grow(MAX_SIZE);
+        if (canCompact(needed)) {
+            compact();
+            return true;
+        }
+        return false;
+    }
+
+    // 옮기는 도중에 죽어도 head 가 가리키는 원래 기록은 남아 있도록 겹치지 않을 때만 당긴다.
+    private boolean canCompact(int needed) {
+        int live = mTail - mHead;
+        return HEADER_SIZE + live + 4 <= mHead
+                && HEADER_SIZE + live + needed <= mBuffer.capacity();
+    }
+
+    private void grow(int capacity) throws IOException {
+        if (capacity > mBuffer.capacity()) {
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+
+    private void compact() {
+        int shift = mHead - HEADER_SIZE;
+        int live = mTail - mHead;
+        ByteBuffer src = mBuffer.duplicate();
+        src.position(mHead).limit(mTail);
+        ByteBuffer dst = mBuffer.duplicate();
+        dst.position(HEADER_SIZE);
+        dst.put(src);
+        mBuffer.putInt(HEADER_SIZE + live, 0);
+        mBuffer.putInt(HEAD_OFFSET, HEADER_SIZE);
+        mHead = HEADER_SIZE;
+        mTail -= shift;
+        mReadPos -= shift;
+    }
+
+    /**
+     * 아직 읽지 않은 다음 기록을 복사해 돌려준다.
+     *
+     * @return 없으면 null
+     */
+    public byte[] next() {
+        if (mUnread == 0) {
+            return null;
+        }
+        int length = mBuffer.getInt(mReadPos);
+        byte[] data = new byte[length];
+        read(mReadPos + RECORD_HEADER_SIZE, data);
+        mReadPos += RECORD_HEADER_SIZE + length;
+        mUnread--;
+        return data;
+    }
+
+    /**
+     * {@link #next()} 가 다시 첫 기록부터 돌려주게 한다.
+     */
+    public void rewind() {
+        mReadPos = mHead;
+        mUnread = mCount;
+    }
+
+    /**
+     * 첫 기록을 지운다. 모두 지우면 처음 위치부터 다시 쓴다.
+     */
+    public void removeFirst() {
+        if (mCount == 0) {
+            throw new IllegalStateException("Journal is empty");
+        }
+        int next = mHead + RECORD_HEADER_SIZE + mBuffer.getInt(mHead);
+        if (mReadPos == mHead) {
+            mReadPos = next;
+            mUnread--;
+        }
+        mCount--;
+        if (mCount == 0) {
+            // 먼저 head 를 마지막 기록 뒤의 길이 0 으로 옮겨 비운 것을 알리고, 그다음에 처음 위치로 되돌린다.
+            // 첫 자리를 먼저 지우면 그 사이에 죽었을 때 head 가 가리키는 지운 기록이 다시 살아난다.
+            mBuffer.putInt(HEAD_OFFSET, next);
+            mBuffer.putInt(HEADER_SIZE, 0);
+            mBuffer.putInt(HEAD_OFFSET, HEADER_SIZE);
+            mHead = HEADER_SIZE;
+            mTail = HEADER_SIZE;
+            mReadPos = HEADER_SIZE;
+        } else {
+            mBuffer.putInt(HEAD_OFFSET, next);
+            mHead = next;
+        }
+    }
+
+    /**
+     * 지우지 않은 기록 수
+     */
+    public int size() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * 매핑한 크기. 파일 크기와 같다.
+     */
+    int capacity() {
+        return mBuffer.capacity();
+    }
+
+    private void read(int pos, byte[] dst) {
+        ByteBuffer src = mBuffer.duplicate();
+        src.position(pos);
+        src.get(dst);
+    }
+
+    /**
+     * 파일을 닫는다. 쓴 내용은 커널이 알아서 디스크에 내린다.
+     */
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
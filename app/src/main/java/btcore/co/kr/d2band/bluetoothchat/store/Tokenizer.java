@@ -0,0 +1,82 @@
+package btcore.co.kr.d2band.bluetoothchat.store;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 검색 색인에 넣을 낱말을 나눈다.
+ *
+ * <p>글자나 숫자가 이어진 부분을 낱말 하나로 보고, 한글과 그 밖의 글자가 바뀌는 곳에서도 나눈다
+ * ("USB연결" 은 "usb", "연결"). 한글이 아닌 낱말은 소문자로 바꾼다.
+ * 한국어는 조사와 어미가 낱말 뒤에 붙으므로 접두어 검색만으로 "블루투스를" 을 "블루투스" 로 찾는다.
+ * 합성어 가운데를 찾을 수 있도록 색인에 넣을 때는 한글 낱말의 두 글자 이상인 뒷부분도 모두 넣는다
+ * ("블루투스연결" 은 "루투스연결", "투스연결", "스연결", "연결" 도 넣는다).</p>
+ */
+public final class Tokenizer {
+
+    // 이보다 긴 낱말은 앞부분만 쓴다.
+    static final int MAX_TOKEN_LENGTH = 32;
+
+    private static final int NONE = 0;
+    private static final int HANGUL = 1;
+    private static final int OTHER = 2;
+
+    private Tokenizer() {
+    }
+
+    /**
+     * 색인에 넣을 낱말. 한 글에 같은 낱말이 여러 번 나올 수 있다.
+     */
+    public static void tokenize(CharSequence text, List<String> out) {
+        split(text, out, true);
+    }
+
+    /**
+     * 검색어를 낱말로 나눈다. 뒷부분은 넣지 않는다.
+     */
+    public static void tokenizeQuery(CharSequence text, List<String> out) {
+        split(text, out, false);
+    }
+
+    private static void split(CharSequence text, List<String> out, boolean suffixes) {
+        int length = text.length();
+        int start = 0;
+        int kind = NONE;
+        for (int i = 0; i <= length; i++) {
+            int next = i < length ? kindOf(text.charAt(i)) : NONE;
+            if (next == kind) {
+                continue;
+            }
+            if (kind != NONE) {
+                emit(text, start, i, kind, out, suffixes);
+            }
+            kind = next;
+            start = i;
+        }
+    }
+
+    private static void emit(CharSequence text, int start, int end, int kind, List<String> out,
+                             boolean suffixes) {
+        String token = text.subSequence(start, Math.min(end, start + MAX_TOKEN_LENGTH)).toString();
+        if (kind == OTHER) {
+            out.add(token.toLowerCase(Locale.ROOT));
+            return;
+        }
+        out.add(token);
+        if (suffixes) {
+            for (int i = 1; i <= token.length() - 2; i++) {
+                out.add(token.substring(i));
+            }
+        }
+    }
+
+    private static int kindOf(char c) {
+        if ((c >= '\uAC00' && c <= '\uD7A3')     // 완성형 음절 (가~힣)
+                || (c >= '\u1100' && c <= '\u11FF')  // 자모
+                || (c >= '\u3130' && c <= '\u318F')) { // 호환용 자모 (ㄱ, ㅏ)
+            return HANGUL;
+        }
+        // 서로게이트 쌍(이모지 등)은 낱말로 보지 않는다.
+        return Character.isLetterOrDigit(c) ? OTHER : NONE;
+    }
+}
@@ -0,0 +1,31 @@
+package btcore.co.kr.d2band.bluetoothchat.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 연결 하나에 대한 입출력 스트림 쌍. BluetoothSocket 에 대응한다.
+ */
+public interface ChatChannel extends Closeable {
+
+    /**
+     * 원격 장치에 연결한다. 연결될 때까지 블록되며, {@link #close()} 로 취소할 수 있다.
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * 원격 장치 주소 (RFCOMM 이면 MAC 주소)
+     */
+    String getRemoteAddress();
+
+    /**
+     * UI 에 표시할 원격 장치 이름
+     */
+    String getRemoteName();
+}
@@ -0,0 +1,16 @@
+package btcore.co.kr.d2band.bluetoothchat.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * 들어오는 연결을 기다리는 서버 채널. BluetoothServerSocket 에 대응한다.
+ */
+public interface ChatServerChannel extends Closeable {
+
+    /**
+     * 연결이 들어올 때까지 블록된다. 반환된 채널은 이미 연결되어 있으므로 connect() 를 호출하지 않는다.
+     * 다른 스레드에서 {@link #close()} 를 호출하면 IOException 으로 빠져나온다.
+     */
+    ChatChannel accept() throws IOException;
+}
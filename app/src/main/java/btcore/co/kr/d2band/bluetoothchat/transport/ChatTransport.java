@@ -0,0 +1,26 @@
+package btcore.co.kr.d2band.bluetoothchat.transport;
+
+import java.io.IOException;
+
+/**
+ * BluetoothChatService 가 사용하는 전송 계층 추상화.
+ * 기본 구현은 RFCOMM 이며, 테스트/벤치마크용으로 메모리 파이프와 로컬 TCP 구현을 제공한다.
+ */
+public interface ChatTransport {
+
+    /**
+     * 들어오는 연결을 받기 위한 서버 채널을 연다.
+     *
+     * @param secure 보안(페어링) 채널 여부
+     */
+    ChatServerChannel listen(boolean secure) throws IOException;
+
+    /**
+     * 원격 장치에 대한 채널을 만든다. 실제 연결은 {@link ChatChannel#connect()} 에서 이루어지므로
+     * 연결 도중 다른 스레드에서 {@link ChatChannel#close()} 로 취소할 수 있다.
+     *
+     * @param address 원격 장치 주소
+     * @param secure  보안(페어링) 채널 여부
+     */
+    ChatChannel open(String address, boolean secure) throws IOException;
+}
@@ -0,0 +1,112 @@
+package btcore.co.kr.d2band.bluetoothchat.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * 로컬 TCP 소켓(127.0.0.1) 위에서 동작하는 전송 계층.
+ * 메모리 파이프보다 실제 소켓에 가까운 조건(커널 버퍼, 시스템 콜)에서 측정할 때 사용한다.
+ * secure / insecure 는 서로 다른 포트로 구분한다.
+ */
+public class LoopbackTcpTransport implements ChatTransport {
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final int mSecurePort;
+    private final int mInsecurePort;
+
+    public LoopbackTcpTransport(int securePort, int insecurePort) {
+        this.mSecurePort = securePort;
+        this.mInsecurePort = insecurePort;
+    }
+
+    private int port(boolean secure) {
+        return secure ? mSecurePort : mInsecurePort;
+    }
+
+    @Override
+    public ChatServerChannel listen(boolean secure) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName(null), port(secure)));
+        return new TcpServerChannel(serverSocket);
+    }
+
+    /**
+     * @param address 접속할 호스트. null 이면 루프백 주소를 사용한다.
+     */
+    @Override
+    public ChatChannel open(String address, boolean secure) throws IOException {
+        return new TcpChannel(new Socket(), address != null ? address : "127.0.0.1", port(secure));
+    }
+
+    private static final class TcpServerChannel implements ChatServerChannel {
+        private final ServerSocket mServerSocket;
+
+        TcpServerChannel(ServerSocket serverSocket) {
+            this.mServerSocket = serverSocket;
+        }
+
+        @Override
+        public ChatChannel accept() throws IOException {
+            Socket socket = mServerSocket.accept();
+            socket.setTcpNoDelay(true);
+            InetSocketAddress remote = (InetSocketAddress) socket.getRemoteSocketAddress();
+            return new TcpChannel(socket, remote.getAddress().getHostAddress(), remote.getPort());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    private static final class TcpChannel implements ChatChannel {
+        private final Socket mSocket;
+        private final String mHost;
+        private final int mPort;
+
+        TcpChannel(Socket socket, String host, int port) {
+            this.mSocket = socket;
+            this.mHost = host;
+            this.mPort = port;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mSocket.setTcpNoDelay(true);
+            mSocket.connect(new InetSocketAddress(InetAddress.getByName(mHost), mPort),
+                    CONNECT_TIMEOUT_MS);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mHost + ":" + mPort;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return getRemoteAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
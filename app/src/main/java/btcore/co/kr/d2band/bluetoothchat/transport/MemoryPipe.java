@@ -0,0 +1,169 @@
+package btcore.co.kr.d2band.bluetoothchat.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * 한 방향으로만 흐르는 고정 크기 링 버퍼 파이프.
+ * java.io.PipedInputStream 은 쓰기 스레드가 종료되면 "Write end dead" 로 끊기고
+ * 1초 단위 polling 을 하기 때문에 벤치마크용으로 쓰기 어렵다. 그래서 직접 구현한다.
+ */
+final class MemoryPipe {
+
+    private final byte[] mBuffer;
+    private int mReadPos;
+    private int mCount;
+    private boolean mWriterClosed;
+    private boolean mReaderClosed;
+
+    private final InputStream mIn = new PipeInputStream();
+    private final OutputStream mOut = new PipeOutputStream();
+
+    MemoryPipe(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        mBuffer = new byte[capacity];
+    }
+
+    InputStream inputStream() {
+        return mIn;
+    }
+
+    OutputStream outputStream() {
+        return mOut;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (mCount == 0) {
+            if (mReaderClosed) {
+                throw new IOException("Pipe closed");
+            }
+            if (mWriterClosed) {
+                return -1;
+            }
+            await();
+        }
+        if (mReaderClosed) {
+            throw new IOException("Pipe closed");
+        }
+        int n = Math.min(len, mCount);
+        int first = Math.min(n, mBuffer.length - mReadPos);
+        System.arraycopy(mBuffer, mReadPos, b, off, first);
+        if (n > first) {
+            System.arraycopy(mBuffer, 0, b, off + first, n - first);
+        }
+        mReadPos = (mReadPos + n) % mBuffer.length;
+        mCount -= n;
+        notifyAll();
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            while (mCount == mBuffer.length) {
+                if (mReaderClosed || mWriterClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                await();
+            }
+            if (mReaderClosed || mWriterClosed) {
+                throw new IOException("Pipe closed");
+            }
+            int writePos = (mReadPos + mCount) % mBuffer.length;
+            int n = Math.min(len, mBuffer.length - mCount);
+            int first = Math.min(n, mBuffer.length - writePos);
+            System.arraycopy(b, off, mBuffer, writePos, first);
+            if (n > first) {
+                System.arraycopy(b, off + first, mBuffer, 0, n - first);
+            }
+            mCount += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    private synchronized int available() {
+        return mCount;
+    }
+
+    /**
+     * 읽는 쪽을 닫는다. 블록된 read 는 즉시 깨어나고, 이후 write 는 IOException 을 던진다.
+     */
+    synchronized void closeReader() {
+        mReaderClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * 쓰는 쪽을 닫는다. 읽는 쪽은 남은 데이터를 모두 읽은 뒤 EOF(-1) 를 받는다.
+     */
+    synchronized void closeWriter() {
+        mWriterClosed = true;
+        notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        private final byte[] mSingle = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            synchronized (MemoryPipe.this) {
+                int n = MemoryPipe.this.read(mSingle, 0, 1);
+                return n < 0 ? -1 : mSingle[0] & 0xff;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return MemoryPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return MemoryPipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        private final byte[] mSingle = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized (MemoryPipe.this) {
+                mSingle[0] = (byte) b;
+                MemoryPipe.this.write(mSingle, 0, 1);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            MemoryPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package btcore.co.kr.d2band.bluetoothchat.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 같은 프로세스 안에서 메모리 파이프로 연결을 흉내내는 전송 계층.
+ * 블루투스 장치 없이 JVM 위에서 ConnectedThread 의 읽기/쓰기 경로를 측정하기 위해 사용한다.
+ *
+ * <pre>
+ * PipedTransport.Medium medium = new PipedTransport.Medium();
+ * ChatTransport server = new PipedTransport(medium, "00:00:00:00:00:01");
+ * ChatTransport client = new PipedTransport(medium, "00:00:00:00:00:02");
+ * </pre>
+ */
+public class PipedTransport implements ChatTransport {
+
+    // 파이프 한 방향의 기본 버퍼 크기 (RFCOMM 소켓 버퍼와 비슷한 크기)
+    public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    private final Medium mMedium;
+    private final String mLocalAddress;
+    private final int mPipeCapacity;
+
+    public PipedTransport(Medium medium, String localAddress) {
+        this(medium, localAddress, DEFAULT_PIPE_CAPACITY);
+    }
+
+    public PipedTransport(Medium medium, String localAddress, int pipeCapacity) {
+        this.mMedium = medium;
+        this.mLocalAddress = localAddress;
+        this.mPipeCapacity = pipeCapacity;
+    }
+
+    @Override
+    public ChatServerChannel listen(boolean secure) throws IOException {
+        String key = Medium.key(mLocalAddress, secure);
+        PipedServerChannel server = new PipedServerChannel(key);
+        if (mMedium.mServers.putIfAbsent(key, server) != null) {
+            throw new IOException("Address already in use: " + key);
+        }
+        return server;
+    }
+
+    @Override
+    public ChatChannel open(String address, boolean secure) throws IOException {
+        return new PipedChannel(address, secure);
+    }
+
+    /**
+     * 여러 PipedTransport 가 서로를 찾을 수 있도록 서버 채널을 등록해 두는 공간.
+     */
+    public static final class Medium {
+        private final ConcurrentMap<String, PipedServerChannel> mServers =
+                new ConcurrentHashMap<String, PipedServerChannel>();
+
+        private static String key(String address, boolean secure) {
+            return address + (secure ? "/secure" : "/insecure");
+        }
+    }
+
+    private final class PipedServerChannel implements ChatServerChannel {
+        // accept() 를 깨우기 위한 종료 표시
+        private final PipedChannel mClosedMarker = new PipedChannel(null, false);
+        private final BlockingQueue<PipedChannel> mPending = new LinkedBlockingQueue<PipedChannel>();
+        private final String mKey;
+        private volatile boolean mClosed;
+
+        PipedServerChannel(String key) {
+            this.mKey = key;
+        }
+
+        @Override
+        public ChatChannel accept() throws IOException {
+            PipedChannel channel;
+            try {
+                channel = mPending.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (channel == mClosedMarker || mClosed) {
+                mPending.offer(mClosedMarker);
+                throw new IOException("Server channel closed");
+            }
+            channel.mAccepted.countDown();
+            return channel.mPeer;
+        }
+
+        void offer(PipedChannel client) throws IOException {
+            if (mClosed) {
+                throw new IOException("Connection refused");
+            }
+            mPending.offer(client);
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+            mMedium.mServers.remove(mKey, this);
+            mPending.offer(mClosedMarker);
+        }
+    }
+
+    private final class PipedChannel implements ChatChannel {
+        private final String mRemoteAddress;
+        private final boolean mSecure;
+        private final CountDownLatch mAccepted = new CountDownLatch(1);
+        private MemoryPipe mInPipe;
+        private MemoryPipe mOutPipe;
+        private PipedChannel mPeer;
+        private volatile boolean mClosed;
+
+        PipedChannel(String remoteAddress, boolean secure) {
+            this.mRemoteAddress = remoteAddress;
+            this.mSecure = secure;
+        }
+
+        // accept 쪽에서 돌려줄 반대편 끝
+        private PipedChannel(PipedChannel client, MemoryPipe in, MemoryPipe out) {
+            this.mRemoteAddress = mLocalAddress;
+            this.mSecure = client.mSecure;
+            this.mInPipe = in;
+            this.mOutPipe = out;
+            this.mPeer = client;
+            this.mAccepted.countDown();
+        }
+
+        @Override
+        public void connect() throws IOException {
+            PipedServerChannel server = mMedium.mServers.get(Medium.key(mRemoteAddress, mSecure));
+            if (server == null) {
+                throw new IOException("Connection refused: " + mRemoteAddress);
+            }
+            MemoryPipe toServer = new MemoryPipe(mPipeCapacity);
+            MemoryPipe toClient = new MemoryPipe(mPipeCapacity);
+            synchronized (this) {
+                if (mClosed) {
+                    throw new IOException("Channel closed");
+                }
+                mInPipe = toClient;
+                mOutPipe = toServer;
+                mPeer = new PipedChannel(this, toServer, toClient);
+            }
+            server.offer(this);
+            try {
+                mAccepted.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (mClosed) {
+                throw new IOException("Channel closed");
+            }
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mInPipe == null) {
+                throw new IOException("Not connected");
+            }
+            return mInPipe.inputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mOutPipe == null) {
+                throw new IOException("Not connected");
+            }
+            return mOutPipe.outputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public void close() {
+            MemoryPipe in;
+            MemoryPipe out;
+            synchronized (this) {
+                mClosed = true;
+                in = mInPipe;
+                out = mOutPipe;
+            }
+            mAccepted.countDown();
+            if (in != null) {
+                in.closeReader();
+            }
+            if (out != null) {
+                out.closeWriter();
+            }
+        }
+    }
+}
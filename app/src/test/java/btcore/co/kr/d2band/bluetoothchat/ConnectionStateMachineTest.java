@@ -0,0 +1,56 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * moveTo 가 실제로 거친 상태만 리스너에 알리고, 허용되지 않은 전이는 거절하는지 확인한다.
+ */
+public class ConnectionStateMachineTest {
+
+    private final ConnectionStateMachine mMachine = new ConnectionStateMachine();
+    // 리스너가 받은 {old, new}
+    private final List<int[]> mChanges = new ArrayList<int[]>();
+
+    public ConnectionStateMachineTest() {
+        mMachine.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int oldState, int newState) {
+                mChanges.add(new int[]{oldState, newState});
+            }
+        });
+    }
+
+    @Test
+    public void connectsFromNoneWithoutInventingSteps() {
+        assertTrue(mMachine.moveTo(BluetoothChatService.STATE_CONNECTED));
+        assertEquals(BluetoothChatService.STATE_CONNECTED, mMachine.get());
+        assertEquals(1, mChanges.size());
+        assertArrayEquals(new int[]{BluetoothChatService.STATE_NONE, BluetoothChatService.STATE_CONNECTED},
+                mChanges.get(0));
+
+        // 같은 상태로는 알리지 않는다.
+        assertFalse(mMachine.moveTo(BluetoothChatService.STATE_CONNECTED));
+        assertEquals(1, mChanges.size());
+    }
+
+    @Test
+    public void refusesUnknownTransition() {
+        mMachine.moveTo(BluetoothChatService.STATE_CONNECTED);
+        mChanges.clear();
+
+        assertFalse(mMachine.moveTo(BluetoothChatService.STATE_CONNECTED + 1));
+        assertEquals(BluetoothChatService.STATE_CONNECTED, mMachine.get());
+        assertTrue(mChanges.isEmpty());
+
+        // 끊기면 바로 내려간다.
+        assertTrue(mMachine.moveTo(BluetoothChatService.STATE_LISTEN));
+        assertEquals(1, mChanges.size());
+        assertArrayEquals(new int[]{BluetoothChatService.STATE_CONNECTED, BluetoothChatService.STATE_LISTEN},
+                mChanges.get(0));
+    }
+}
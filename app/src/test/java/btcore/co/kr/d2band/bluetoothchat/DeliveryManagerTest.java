@@ -0,0 +1,188 @@
+package btcore.co.kr.d2band.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import btcore.co.kr.d2band.bluetoothchat.protocol.Frame;
+import btcore.co.kr.d2band.bluetoothchat.protocol.WriteFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * 쓰기가 중간에 실패하거나 연결이 끊겨도 받는 쪽이 빈 번호를 건너 확인하지 않고,
+ * 모든 메시지가 순서대로 한 번씩 전달되는지 확인한다.
+ */
+public class DeliveryManagerTest {
+
+    private final DeliveryManager mSender = new DeliveryManager();
+    private final DeliveryManager mReceiver = new DeliveryManager();
+    // 받는 쪽이 화면에 넘긴 메시지
+    private final List<Integer> mDelivered = new ArrayList<Integer>();
+
+    // 쓰기 큐 대신 보낸 프레임을 모아 두었다가 테스트가 넘겨준다.
+    private static final class FakeLink implements DeliveryManager.Link {
+        final String address;
+        final ArrayDeque<Object[]> frames = new ArrayDeque<Object[]>();
+        // 이 번째 DATA 쓰기를 쓰기 큐가 가득 찬 것처럼 바로 실패시킨다.
+        final List<Integer> failWrites = new ArrayList<Integer>();
+        int writes;
+        final List<Long> acks = new ArrayList<Long>();
+
+        FakeLink(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return address;
+        }
+
+        @Override
+        public synchronized WriteFuture send(int type, int flags, byte[] payload) {
+            if (failWrites.contains(++writes)) {
+                return WriteFuture.failed(new IOException("Send queue full"));
+            }
+            WriteFuture future = new WriteFuture();
+            frames.addLast(new Object[]{payload, future});
+            return future;
+        }
+
+        @Override
+        public synchronized WriteFuture sendControl(int type, byte[] payload) {
+            if (type == Frame.TYPE_ACK) {
+                acks.add(Frame.getLong(payload, 0));
+            }
+            return new WriteFuture();
+        }
+
+        synchronized Object[] poll() {
+            return frames.pollFirst();
+        }
+
+        synchronized long lastAck() {
+            return acks.isEmpty() ? -1 : acks.get(acks.size() - 1);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mSender.shutdown();
+        mReceiver.shutdown();
+    }
+
+    @Test
+    public void receiverDoesNotAckPastGap() {
+        FakeLink toSender = new FakeLink("A");
+        mReceiver.onHello(toSender, 1);
+        assertTrue(mReceiver.onReceived(toSender, 1));
+        assertTrue(mReceiver.onReceived(toSender, 2));
+        // 3 이 빠졌다.
+        assertFalse(mReceiver.onReceived(toSender, 4));
+        assertFalse(mReceiver.onReceived(toSender, 2));
+        // 같은 세션의 HELLO 는 받은 데까지 바로 확인한다.
+        mReceiver.onHello(toSender, 1);
+        assertEquals(2, toSender.lastAck());
+        assertTrue(mReceiver.onReceived(toSender, 3));
+        assertTrue(mReceiver.onReceived(toSender, 4));
+        mReceiver.onHello(toSender, 1);
+        assertEquals(4, toSender.lastAck());
+    }
+
+    @Test
+    public void restartedReceiverStartsFromFirstReplayedNumber() {
+        FakeLink toSender = new FakeLink("A");
+        mReceiver.onHello(toSender, 1);
+        // 보내는 쪽은 확인받지 못한 첫 메시지부터 다시 보낸다.
+        assertTrue(mReceiver.onReceived(toSender, 95));
+        assertFalse(mReceiver.onReceived(toSender, 97));
+        assertTrue(mReceiver.onReceived(toSender, 96));
+    }
+
+    @Test
+    public void failedWritesAndLinkLossAreReplayedInOrder() throws Exception {
+        FakeLink toReceiver = new FakeLink("B");
+        FakeLink toSender = new FakeLink("A");
+        // 창 가운데에서 쓰기가 몇 번 실패한다.
+        toReceiver.failWrites.add(5);
+        toReceiver.failWrites.add(6);
+        toReceiver.failWrites.add(40);
+        connect(toReceiver, toSender);
+
+        int count = DeliveryManager.WINDOW;
+        // 쓰기 큐보다 큰 창 하나를 한꺼번에 넣는다.
+        for (int i = 0; i < count; i++) {
+            assertFalse(mSender.send(toReceiver, message(i)).isDone());
+        }
+        // 창이 가득 차면 더는 받지 않는다.
+        assertFalse(mSender.send(toReceiver, message(count)).isSuccess());
+
+        // 조금 넘긴 뒤 연결이 끊기고, 쓰기 큐에 남은 것은 실패한다.
+        for (int i = 0; i < 30; i++) {
+            deliverOne(toReceiver, toSender);
+        }
+        mSender.onLinkLost(toReceiver);
+        mReceiver.onLinkLost(toSender);
+        Object[] frame;
+        while ((frame = toReceiver.poll()) != null) {
+            ((WriteFuture) frame[1]).fail(new IOException("Link lost"));
+        }
+
+        toReceiver = new FakeLink("B");
+        toSender = new FakeLink("A");
+        toReceiver.failWrites.add(3);
+        connect(toReceiver, toSender);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mSender.pending("B") > 0 && System.currentTimeMillis() < deadline) {
+            if (!deliverOne(toReceiver, toSender)) {
+                // 실패한 뒤 다시 보내기나 늦게 보내는 확인을 기다린다.
+                Thread.sleep(20);
+                forwardAck(toReceiver, toSender);
+            }
+        }
+        assertEquals(0, mSender.pending("B"));
+        assertEquals(count, mDelivered.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int) mDelivered.get(i));
+        }
+    }
+
+    private void connect(FakeLink toReceiver, FakeLink toSender) {
+        mReceiver.onHello(toSender, mSender.getSessionId());
+        mSender.onHello(toReceiver, mReceiver.getSessionId());
+    }
+
+    // 프레임 하나를 받는 쪽에 넘기고, 받는 쪽이 보낸 확인을 보내는 쪽에 넘긴다.
+    private boolean deliverOne(FakeLink toReceiver, FakeLink toSender) {
+        Object[] frame = toReceiver.poll();
+        if (frame == null) {
+            return false;
+        }
+        byte[] payload = (byte[]) frame[0];
+        if (mReceiver.onReceived(toSender, Frame.getLong(payload, 0))) {
+            mDelivered.add(Frame.getInt(payload, DeliveryManager.SEQ_SIZE));
+        }
+        // 확인한 번호는 항상 빠짐없이 전달한 데까지다.
+        assertTrue(toSender.lastAck() <= mDelivered.size());
+        ((WriteFuture) frame[1]).complete();
+        forwardAck(toReceiver, toSender);
+        return true;
+    }
+
+    private void forwardAck(FakeLink toReceiver, FakeLink toSender) {
+        long ack = toSender.lastAck();
+        if (ack > 0) {
+            mSender.onAck(toReceiver, ack);
+        }
+    }
+
+    private static byte[] message(int i) {
+        byte[] data = new byte[4];
+        Frame.putInt(data, 0, i);
+        return data;
+    }
+}
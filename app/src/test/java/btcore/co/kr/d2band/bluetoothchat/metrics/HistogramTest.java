@@ -0,0 +1,38 @@
+package btcore.co.kr.d2band.bluetoothchat.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 구간 경계와 백분위 값이 기대대로 나오는지 확인한다.
+ */
+public class HistogramTest {
+
+    @Test
+    public void percentilesReportBucketUpperBound() {
+        Histogram histogram = Histogram.of125(10, 1000);
+        for (int i = 0; i < 98; i++) {
+            histogram.record(15);
+        }
+        histogram.record(300);
+        histogram.record(5000);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(5000, snapshot.getMax());
+        // 15 는 (10, 20] 구간
+        assertEquals(20, snapshot.getPercentile(0.50));
+        assertEquals(500, snapshot.getPercentile(0.99));
+        // 1000 을 넘는 값은 넘침 구간이라 최댓값을 돌려준다.
+        assertEquals(5000, snapshot.getPercentile(1.0));
+    }
+
+    @Test
+    public void emptyHistogram() {
+        Histogram.Snapshot snapshot = Histogram.of125(10, 1000).snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(0.99));
+        assertEquals(0.0, snapshot.getMean(), 0.0);
+    }
+}
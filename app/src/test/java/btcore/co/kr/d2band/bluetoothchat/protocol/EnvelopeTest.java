@@ -0,0 +1,109 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 봉투 형식과 가변 길이 정수를 확인한다.
+ */
+public class EnvelopeTest {
+
+    @Test
+    public void roundTripsIntoCallerBuffer() throws Exception {
+        byte[] sender = "D2 Band".getBytes("UTF-8");
+        byte[] text = "안녕하세요 hello".getBytes("UTF-8");
+        Envelope out = new Envelope().set(Envelope.TYPE_TEXT, 300, 1514764800000L)
+                .setSender(sender, 0, sender.length)
+                .setPayload(text, 0, text.length);
+        // 앞뒤에 다른 데이터가 있는 버퍼 중간에 쓴다.
+        byte[] buffer = new byte[out.encodedSize() + 10];
+        assertEquals(out.encodedSize(), out.encode(buffer, 5));
+
+        Envelope in = new Envelope();
+        assertTrue(Envelope.isEnvelope(buffer, 5, out.encodedSize()));
+        in.decode(buffer, 5, out.encodedSize());
+        assertEquals(Envelope.TYPE_TEXT, in.getType());
+        assertEquals(300, in.getId());
+        assertEquals(1514764800000L, in.getTimestamp());
+        assertArrayEquals(sender, Arrays.copyOfRange(in.getSenderArray(), in.getSenderOffset(),
+                in.getSenderOffset() + in.getSenderLength()));
+        assertArrayEquals(text, Arrays.copyOfRange(in.getPayloadArray(), in.getPayloadOffset(),
+                in.getPayloadOffset() + in.getPayloadLength()));
+    }
+
+    @Test
+    public void isSeveralTimesSmallerThanJson() throws Exception {
+        byte[] text = "hi".getBytes("UTF-8");
+        Envelope envelope = new Envelope().set(Envelope.TYPE_TEXT, 1234, 1514764800000L)
+                .setPayload(text, 0, text.length);
+        String json = "{\"type\":\"text\",\"id\":1234,\"timestamp\":1514764800000,\"sender\":null,\"payload\":\"hi\"}";
+        assertTrue(envelope.encodedSize() + " vs " + json.length(),
+                envelope.encodedSize() * 4 < json.length());
+    }
+
+    @Test
+    public void rejectsTruncatedEnvelope() throws Exception {
+        byte[] text = "hello".getBytes("UTF-8");
+        Envelope envelope = new Envelope().set(Envelope.TYPE_TEXT, 1, 2).setPayload(text, 0, text.length);
+        byte[] buffer = new byte[envelope.encodedSize()];
+        envelope.encode(buffer, 0);
+        for (int length = 1; length < buffer.length; length++) {
+            try {
+                new Envelope().decode(buffer, 0, length);
+                fail("decoded " + length + " of " + buffer.length + " bytes");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void rejectsNegativeLengthsAndType() throws Exception {
+        // type, id, 시각, sender 길이, payload 길이 중 하나를 10 바이트 varint -1 로 바꾼 메시지.
+        // 나머지 필드는 0 이고 뒤에 3 바이트가 붙는다.
+        for (int field = 0; field < 5; field++) {
+            byte[] buffer = new byte[1 + 5 * Varint.MAX_SIZE + 3];
+            int pos = 0;
+            buffer[pos++] = (byte) Envelope.MAGIC;
+            for (int i = 0; i < 5; i++) {
+                pos += Varint.write(buffer, pos, i == field ? -1L : 0L);
+            }
+            buffer[pos++] = 'a';
+            buffer[pos++] = 'b';
+            buffer[pos++] = 'c';
+            try {
+                new Envelope().decode(buffer, 0, pos);
+                fail("decoded negative field " + field);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void textIsNotAnEnvelope() throws Exception {
+        byte[] text = "안녕".getBytes("UTF-8");
+        assertFalse(Envelope.isEnvelope(text, 0, text.length));
+    }
+
+    @Test
+    public void varintBoundaries() throws Exception {
+        long[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1L};
+        byte[] buffer = new byte[Varint.MAX_SIZE];
+        for (long value : values) {
+            int size = Varint.write(buffer, 0, value);
+            assertEquals(Varint.size(value), size);
+            assertEquals(value, Varint.read(buffer, 0, size));
+        }
+        assertEquals(10, Varint.size(-1L));
+        assertEquals(-3, Varint.unZigZag(Varint.zigZag(-3)));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOverlongVarint() throws Exception {
+        // 1 을 두 바이트로 쓴 것
+        Varint.read(new byte[]{(byte) 0x81, 0x00}, 0, 2);
+    }
+}
@@ -0,0 +1,43 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 채널별로 나뉜 조각이 섞여 와도 메시지가 원래대로 복원되는지 확인한다.
+ */
+public class FrameAssemblerTest {
+
+    @Test
+    public void reassemblesInterleavedChannels() throws Exception {
+        byte[] bulk = new byte[10000];
+        for (int i = 0; i < bulk.length; i++) {
+            bulk[i] = (byte) i;
+        }
+        byte[] chat = "hi".getBytes("UTF-8");
+        int bulkFlags = Frame.withChannel(0, Frame.CHANNEL_BULK);
+        int chatFlags = Frame.withChannel(0, Frame.CHANNEL_INTERACTIVE);
+
+        FrameAssembler assembler = new FrameAssembler();
+        assertFalse(assembler.add(Frame.TYPE_FILE_CHUNK, bulkFlags | Frame.FLAG_MORE, bulk, 0, 4096));
+        // 대용량 조각 사이에 끼어든 대화 메시지는 바로 나온다.
+        assertTrue(assembler.add(Frame.TYPE_DATA, chatFlags, chat, 0, chat.length));
+        assertEquals(Frame.TYPE_DATA, assembler.getType());
+        assertArrayEquals(chat, copy(assembler));
+
+        assertFalse(assembler.add(Frame.TYPE_FILE_CHUNK, bulkFlags | Frame.FLAG_MORE, bulk, 4096, 4096));
+        assertTrue(assembler.add(Frame.TYPE_FILE_CHUNK, bulkFlags, bulk, 8192, bulk.length - 8192));
+        assertEquals(Frame.TYPE_FILE_CHUNK, assembler.getType());
+        assertEquals(Frame.CHANNEL_BULK, Frame.channel(assembler.getFlags()));
+        assertEquals(0, assembler.getFlags() & Frame.FLAG_MORE);
+        assertArrayEquals(bulk, copy(assembler));
+    }
+
+    private static byte[] copy(FrameAssembler assembler) {
+        int offset = assembler.getPayloadOffset();
+        return Arrays.copyOfRange(assembler.getPayload(), offset, offset + assembler.getPayloadLength());
+    }
+}
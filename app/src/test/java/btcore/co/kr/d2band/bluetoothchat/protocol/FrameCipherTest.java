@@ -0,0 +1,82 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 키 교환 뒤 양쪽이 같은 키로 프레임을 주고받고, 바뀐 프레임은 거부하는지 확인한다.
+ */
+public class FrameCipherTest {
+
+    @Test
+    public void bothSidesAgreeAndRoundTripFrames() throws Exception {
+        KeyExchange a = new KeyExchange();
+        KeyExchange b = new KeyExchange();
+        FrameCipher[] aCiphers = a.agree(b.getPublicKey());
+        FrameCipher[] bCiphers = b.agree(a.getPublicKey());
+        assertEquals(a.getFingerprint(), b.getFingerprint());
+
+        Random random = new Random(7);
+        // 버퍼에 들어가는 프레임과 버퍼보다 큰 프레임, 빈 프레임
+        byte[][] messages = {new byte[10], new byte[20000], new byte[0], new byte[3000]};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out);
+        writer.setChecksumEnabled(true);
+        writer.setCipher(aCiphers[0]);
+        for (byte[] message : messages) {
+            random.nextBytes(message);
+            writer.appendFrame(Frame.TYPE_DATA, Frame.FLAG_SEQUENCED, message, 0, message.length);
+        }
+        writer.flush();
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()), 16);
+        reader.setCipher(bCiphers[1]);
+        for (byte[] message : messages) {
+            assertEquals(Frame.TYPE_DATA, reader.readFrame());
+            assertEquals(Frame.FLAG_SEQUENCED | Frame.FLAG_CRC, reader.getFlags());
+            int offset = reader.getPayloadOffset();
+            assertArrayEquals(message, Arrays.copyOfRange(reader.getPayload(), offset,
+                    offset + reader.getPayloadLength()));
+        }
+        assertEquals(-1, reader.readFrame());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTamperedCiphertext() throws Exception {
+        FrameCipher[][] ciphers = pair();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out);
+        writer.setCipher(ciphers[0][0]);
+        writer.writeFrame(Frame.TYPE_DATA, "hello".getBytes("UTF-8"));
+        byte[] wire = out.toByteArray();
+        wire[Frame.HEADER_SIZE] ^= 1;
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(wire));
+        reader.setCipher(ciphers[1][1]);
+        reader.readFrame();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsPlaintextFrameOnEncryptedLink() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameWriter(out).writeFrame(Frame.TYPE_DATA, "hello".getBytes("UTF-8"));
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        reader.setCipher(pair()[1][1]);
+        reader.readFrame();
+    }
+
+    // [a 의 보내기/받기, b 의 보내기/받기]
+    private static FrameCipher[][] pair() throws IOException {
+        KeyExchange a = new KeyExchange();
+        KeyExchange b = new KeyExchange();
+        return new FrameCipher[][]{a.agree(b.getPublicKey()), b.agree(a.getPublicKey())};
+    }
+}
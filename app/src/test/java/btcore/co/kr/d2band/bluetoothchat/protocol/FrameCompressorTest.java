@@ -0,0 +1,50 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 압축/해제가 원래 내용을 복원하고, 압축된 데이터는 건너뛰는지 확인한다.
+ */
+public class FrameCompressorTest {
+
+    @Test
+    public void roundTripsText() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append("{\"type\":\"text\",\"sender\":\"B0\",\"message\":\"hello ").append(i).append("\"}");
+        }
+        byte[] original = text.toString().getBytes("UTF-8");
+
+        FrameCompressor compressor = new FrameCompressor();
+        assertTrue(compressor.compress(original, 0, original.length));
+        assertTrue(compressor.getLength() < original.length / 2);
+
+        byte[] restored = new byte[original.length];
+        FrameDecompressor decompressor = new FrameDecompressor();
+        int length = decompressor.decompress(compressor.getBuffer(), 0, compressor.getLength(),
+                restored, 0);
+        assertEquals(original.length, length);
+        assertArrayEquals(original, restored);
+        compressor.end();
+        decompressor.end();
+    }
+
+    @Test
+    public void skipsRandomAndShortPayloads() {
+        byte[] random = new byte[4096];
+        new Random(7).nextBytes(random);
+        FrameCompressor compressor = new FrameCompressor();
+        assertTrue(compressor.isIncompressible(random, 0, random.length));
+        assertFalse(compressor.compress(random, 0, random.length));
+
+        byte[] small = new byte[FrameCompressor.MIN_SIZE - 1];
+        Arrays.fill(small, (byte) 'a');
+        assertFalse(compressor.compress(small, 0, small.length));
+        compressor.end();
+    }
+}
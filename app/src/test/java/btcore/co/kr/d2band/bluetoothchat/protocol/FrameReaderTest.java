@@ -0,0 +1,115 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 프레임 경계가 read() 경계와 상관없이 복원되는지 확인한다.
+ */
+public class FrameReaderTest {
+
+    @Test
+    public void reassemblesFramesSplitAcrossReads() throws Exception {
+        Random random = new Random(42);
+        byte[][] messages = {new byte[3], new byte[1024], new byte[5000], new byte[0], new byte[20000]};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out);
+        writer.setChecksumEnabled(true);
+        for (byte[] message : messages) {
+            random.nextBytes(message);
+            writer.writeFrame(Frame.TYPE_DATA, message);
+        }
+
+        // 한 번에 1~7 바이트씩만 돌려주는 스트림
+        FrameReader reader = new FrameReader(new TrickleInputStream(out.toByteArray(), 7), 16);
+        for (byte[] message : messages) {
+            assertEquals(Frame.TYPE_DATA, reader.readFrame());
+            int offset = reader.getPayloadOffset();
+            byte[] payload = Arrays.copyOfRange(reader.getPayload(), offset,
+                    offset + reader.getPayloadLength());
+            assertArrayEquals(message, payload);
+        }
+        assertEquals(-1, reader.readFrame());
+    }
+
+    @Test
+    public void readsBackToBackFramesFromOneRead() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out);
+        writer.writeFrame(Frame.TYPE_DATA, "hello".getBytes("UTF-8"));
+        writer.writeFrame(Frame.TYPE_DATA, "world".getBytes("UTF-8"));
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(Frame.TYPE_DATA, reader.readFrame());
+        assertEquals("hello", new String(reader.getPayload(), reader.getPayloadOffset(),
+                reader.getPayloadLength(), "UTF-8"));
+        assertEquals(Frame.TYPE_DATA, reader.readFrame());
+        assertEquals("world", new String(reader.getPayload(), reader.getPayloadOffset(),
+                reader.getPayloadLength(), "UTF-8"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCorruptedPayload() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out);
+        writer.setChecksumEnabled(true);
+        writer.writeFrame(Frame.TYPE_DATA, new byte[]{1, 2, 3, 4});
+        byte[] encoded = out.toByteArray();
+        encoded[Frame.HEADER_SIZE + 1] ^= 0x10;
+
+        new FrameReader(new ByteArrayInputStream(encoded)).readFrame();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFrame() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameWriter(out).writeFrame(Frame.TYPE_DATA, new byte[100]);
+        byte[] encoded = Arrays.copyOf(out.toByteArray(), 50);
+
+        new FrameReader(new ByteArrayInputStream(encoded)).readFrame();
+    }
+
+    @Test
+    public void crc32cMatchesKnownValue() {
+        // RFC 3720 B.4 의 "123456789" 테스트 벡터
+        byte[] data = "123456789".getBytes();
+        assertEquals(0xE3069283, Crc32c.compute(data, 0, data.length));
+    }
+
+    private static class TrickleInputStream extends InputStream {
+        private final byte[] mData;
+        private final int mMaxChunk;
+        private int mPos;
+
+        TrickleInputStream(byte[] data, int maxChunk) {
+            mData = data;
+            mMaxChunk = maxChunk;
+        }
+
+        @Override
+        public int read() {
+            return mPos < mData.length ? mData[mPos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mPos == mData.length) {
+                return -1;
+            }
+            // 1 ~ mMaxChunk 바이트 사이에서 매번 다른 크기로 자른다.
+            int limit = Math.min(Math.min(len, mMaxChunk), mData.length - mPos);
+            int n = 1 + mPos % limit;
+            System.arraycopy(mData, mPos, b, off, n);
+            mPos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package btcore.co.kr.d2band.bluetoothchat.protocol;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 조각 경계가 글자 중간에 걸려도 한 번에 푼 것과 같은지, 잘못된 바이트를 바꾸는지 확인한다.
+ */
+public class Utf8StreamDecoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void carriesPartialCharactersAcrossChunks() {
+        String text = "안녕하세요 D2 Band 😀 é";
+        byte[] bytes = text.getBytes(UTF_8);
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder(4);
+        // 모든 위치에서 두 조각으로 나눈다.
+        for (int split = 0; split <= bytes.length; split++) {
+            decoder.reset();
+            decoder.decode(bytes, 0, split, false);
+            assertEquals("split at " + split, text,
+                    decoder.decode(bytes, split, bytes.length - split, true).toString());
+        }
+    }
+
+    @Test
+    public void matchesStringConstructorForRandomChunks() {
+        Random random = new Random(3);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.appendCodePoint(random.nextInt(4) == 0 ? 0x1F600 + random.nextInt(50)
+                    : random.nextBoolean() ? 'a' + random.nextInt(26) : 0xAC00 + random.nextInt(11172));
+        }
+        byte[] bytes = sb.toString().getBytes(UTF_8);
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        int pos = 0;
+        while (pos < bytes.length) {
+            int n = Math.min(1 + random.nextInt(7), bytes.length - pos);
+            decoder.decode(bytes, pos, n, false);
+            pos += n;
+        }
+        assertEquals(sb.toString(), decoder.decode(bytes, 0, 0, true).toString());
+    }
+
+    @Test
+    public void replacesMalformedInput() {
+        // WHATWG 인코딩 표준의 결과. 잘못된 부분마다 U+FFFD 하나
+        byte[][] inputs = {
+                {(byte) 0xC0, (byte) 0xAF},             // 짧게 쓸 수 있었던 '/'
+                {(byte) 0xED, (byte) 0xA0, (byte) 0x80}, // 서로게이트
+                {(byte) 0xE3, (byte) 0x81, 'A'},         // 끝나지 않은 글자 뒤의 ASCII
+                {(byte) 0xFF},
+                {(byte) 0xEC, (byte) 0x95},               // 입력 끝에서 끊긴 글자
+        };
+        String[] expected = {"\uFFFD\uFFFD", "\uFFFD\uFFFD\uFFFD", "\uFFFDA", "\uFFFD", "\uFFFD"};
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        for (int i = 0; i < inputs.length; i++) {
+            decoder.reset();
+            assertEquals(expected[i], decoder.decode(inputs[i], 0, inputs[i].length, true).toString());
+        }
+    }
+
+    @Test
+    public void clearKeepsPendingBytes() {
+        byte[] han = "한".getBytes(UTF_8);
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        assertEquals("", decoder.decode(han, 0, 1, false).toString());
+        decoder.clear();
+        assertEquals("한", decoder.decode(han, 1, 2, true).toString());
+    }
+}
@@ -0,0 +1,124 @@
+package btcore.co.kr.d2band.bluetoothchat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 세그먼트로 나눈 기록 저장소의 덧붙이기, 구간 읽기, 다시 열기를 확인한다.
+ */
+public class HistoryStoreTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("history", "");
+        mDirectory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static byte[] record(long i) {
+        return ("message " + i).getBytes();
+    }
+
+    private File activeSegment(String suffix) {
+        File last = null;
+        for (File file : mDirectory.listFiles()) {
+            if (file.getName().endsWith(suffix)
+                    && (last == null || file.getName().compareTo(last.getName()) > 0)) {
+                last = file;
+            }
+        }
+        return last;
+    }
+
+    @Test
+    public void readsRangesAcrossSegments() throws Exception {
+        HistoryStore store = HistoryStore.open(mDirectory, SEGMENT_SIZE);
+        for (long i = 0; i < 2000; i++) {
+            assertEquals(i, store.append(record(i), 0, record(i).length));
+        }
+        assertTrue(store.segmentCount() > 5);
+
+        List<byte[]> out = new ArrayList<byte[]>();
+        // 세그먼트와 색인 간격에 걸치는 구간
+        assertEquals(300, store.read(130, 300, out));
+        for (int i = 0; i < out.size(); i++) {
+            assertArrayEquals(record(130 + i), out.get(i));
+        }
+        out.clear();
+        assertEquals(10, store.read(1990, 50, out));
+        assertArrayEquals(record(1999), out.get(9));
+        out.clear();
+        assertEquals(0, store.read(2000, 50, out));
+        store.close();
+    }
+
+    @Test
+    public void reopensAndContinuesNumbering() throws Exception {
+        HistoryStore store = HistoryStore.open(mDirectory, SEGMENT_SIZE);
+        for (long i = 0; i < 500; i++) {
+            store.append(record(i), 0, record(i).length);
+        }
+        store.close();
+
+        store = HistoryStore.open(mDirectory, SEGMENT_SIZE);
+        assertEquals(500, store.size());
+        assertEquals(500, store.append(record(500), 0, record(500).length));
+        List<byte[]> out = new ArrayList<byte[]>();
+        store.read(495, 6, out);
+        for (int i = 0; i < 6; i++) {
+            assertArrayEquals(record(495 + i), out.get(i));
+        }
+        store.close();
+    }
+
+    @Test
+    public void recoversTornTailAndMissingIndex() throws Exception {
+        HistoryStore store = HistoryStore.open(mDirectory, 1024 * 1024);
+        for (long i = 0; i < 200; i++) {
+            store.append(record(i), 0, record(i).length);
+        }
+        store.close();
+
+        // 마지막 색인 항목(기록 192)을 잃고, 마지막 기록은 반만 쓰였다.
+        RandomAccessFile index = new RandomAccessFile(activeSegment(".idx"), "rw");
+        index.setLength(index.length() - 4);
+        index.close();
+        RandomAccessFile data = new RandomAccessFile(activeSegment(".seg"), "rw");
+        data.setLength(data.length() - 3);
+        data.close();
+
+        store = HistoryStore.open(mDirectory, 1024 * 1024);
+        assertEquals(199, store.size());
+        List<byte[]> out = new ArrayList<byte[]>();
+        assertEquals(7, store.read(192, 10, out));
+        assertArrayEquals(record(192), out.get(0));
+        assertArrayEquals(record(198), out.get(6));
+        assertEquals(199, store.append(record(199), 0, record(199).length));
+        out.clear();
+        store.read(199, 1, out);
+        assertArrayEquals(record(199), out.get(0));
+        store.close();
+    }
+}
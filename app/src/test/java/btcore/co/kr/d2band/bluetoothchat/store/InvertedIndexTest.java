@@ -0,0 +1,74 @@
+package btcore.co.kr.d2band.bluetoothchat.store;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 낱말 나누기와 접두어 검색을 확인한다.
+ */
+public class InvertedIndexTest {
+
+    @Test
+    public void splitsHangulAndLatin() {
+        List<String> tokens = new ArrayList<String>();
+        Tokenizer.tokenizeQuery("USB연결, Hello 세계! v2.0", tokens);
+        assertEquals(Arrays.asList("usb", "연결", "hello", "세계", "v2", "0"), tokens);
+
+        tokens.clear();
+        Tokenizer.tokenize("블루투스연결", tokens);
+        assertEquals(Arrays.asList("블루투스연결", "루투스연결", "투스연결", "스연결", "연결"), tokens);
+    }
+
+    @Test
+    public void findsByPrefixNewestFirst() {
+        InvertedIndex index = new InvertedIndex();
+        index.add(0, "Hello world");
+        index.add(1, "블루투스를 켜 주세요");
+        index.add(2, "help me");
+        index.add(5, "HELLO again");
+        index.add(300, "블루투스 연결이 끊겼어요");
+
+        assertArrayEquals(new long[]{5, 2, 0}, index.search("hel", 10));
+        assertArrayEquals(new long[]{5, 0}, index.search("hello", 10));
+        assertArrayEquals(new long[]{5}, index.search("hel", 1));
+        // 조사가 붙은 낱말도 찾는다.
+        assertArrayEquals(new long[]{300, 1}, index.search("블루투스", 10));
+        // 낱말마다 AND
+        assertArrayEquals(new long[]{300}, index.search("블루 연결", 10));
+        assertArrayEquals(new long[]{0}, index.search("wor hel", 10));
+        assertEquals(0, index.search("bye", 10).length);
+        assertEquals(0, index.search("  !! ", 10).length);
+    }
+
+    @Test
+    public void findsMiddleOfHangulCompound() {
+        InvertedIndex index = new InvertedIndex();
+        index.add(7, "블루투스연결 설정");
+        assertArrayEquals(new long[]{7}, index.search("연결", 10));
+        assertArrayEquals(new long[]{7}, index.search("투스", 10));
+    }
+
+    @Test
+    public void compressesDensePostings() {
+        InvertedIndex index = new InvertedIndex();
+        for (int i = 0; i < 10000; i++) {
+            index.add(i, "ping " + (i % 10));
+        }
+        // "ping" 은 번호마다 1 바이트, 숫자 낱말은 10 씩 건너뛰어 1 바이트
+        assertEquals(11, index.termCount());
+        assertEquals(20000, index.postingBytes());
+        assertEquals(1000, index.search("7", Integer.MAX_VALUE / 2).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOutOfOrderIds() {
+        InvertedIndex index = new InvertedIndex();
+        index.add(10, "a");
+        index.add(9, "b");
+    }
+}
@@ -0,0 +1,188 @@
+package btcore.co.kr.d2band.bluetoothchat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * 매핑한 기록 파일의 덧붙이기, 지우기, 다시 열기를 확인한다.
+ */
+public class JournalTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("journal", ".journal");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static byte[] record(int i, int size) {
+        byte[] data = new byte[size];
+        for (int k = 0; k < size; k++) {
+            data[k] = (byte) (i + k);
+        }
+        return data;
+    }
+
+    @Test
+    public void keepsUndeliveredRecordsAcrossReopen() throws Exception {
+        Journal journal = Journal.open(mFile);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(journal.append(record(i, 10 + i), 0, 10 + i));
+        }
+        journal.next();
+        journal.removeFirst();
+        journal.next();
+        journal.close();
+
+        // 읽기만 하고 지우지 않은 기록은 다시 보낸다.
+        journal = Journal.open(mFile);
+        assertEquals(4, journal.size());
+        for (int i = 1; i < 5; i++) {
+            assertArrayEquals(record(i, 10 + i), journal.next());
+        }
+        assertNull(journal.next());
+        journal.close();
+    }
+
+    @Test
+    public void dropsTornRecord() throws Exception {
+        Journal journal = Journal.open(mFile);
+        journal.append(record(1, 20), 0, 20);
+        journal.append(record(2, 20), 0, 20);
+        journal.close();
+
+        // 두 번째 기록의 data 를 망가뜨린다.
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(Journal.HEADER_SIZE + (Journal.RECORD_HEADER_SIZE + 20) + Journal.RECORD_HEADER_SIZE + 3);
+        file.write(0x55);
+        file.close();
+
+        journal = Journal.open(mFile);
+        assertEquals(1, journal.size());
+        assertArrayEquals(record(1, 20), journal.next());
+        // 버린 자리에 새 기록을 이어 쓴다.
+        journal.append(record(3, 7), 0, 7);
+        journal.close();
+        journal = Journal.open(mFile);
+        assertEquals(2, journal.size());
+        journal.next();
+        assertArrayEquals(record(3, 7), journal.next());
+        journal.close();
+    }
+
+    @Test
+    public void emptyJournalDoesNotResurrectOldRecords() throws Exception {
+        Journal journal = Journal.open(mFile);
+        journal.append(record(1, 30), 0, 30);
+        journal.append(record(2, 30), 0, 30);
+        journal.removeFirst();
+        journal.removeFirst();
+        assertTrue(journal.isEmpty());
+        journal.close();
+
+        journal = Journal.open(mFile);
+        assertTrue(journal.isEmpty());
+        assertNull(journal.next());
+        journal.close();
+    }
+
+    @Test
+    public void emptyingSurvivesCrashBetweenWrites() throws Exception {
+        Journal journal = Journal.open(mFile);
+        journal.append(record(1, 30), 0, 30);
+        journal.append(record(2, 30), 0, 30);
+        journal.removeFirst();
+        journal.close();
+        // 두 번째 기록 뒤의 길이 0 위치
+        int end = Journal.HEADER_SIZE + 2 * (Journal.RECORD_HEADER_SIZE + 30);
+
+        // 마지막 기록을 지우는 쓰기 세 번 중 앞의 몇 번만 남은 채 죽은 경우를 차례로 만든다.
+        int[][] writes = {
+                {4, end},                           // head 를 마지막 기록 뒤로
+                {Journal.HEADER_SIZE, 0},           // 첫 자리를 비운다
+                {4, Journal.HEADER_SIZE},           // head 를 처음 위치로
+        };
+        byte[] before = readFile();
+        for (int applied = 1; applied <= writes.length; applied++) {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            file.write(before);
+            for (int i = 0; i < applied; i++) {
+                file.seek(writes[i][0]);
+                file.writeInt(writes[i][1]);
+            }
+            file.close();
+            journal = Journal.open(mFile);
+            assertTrue("after " + applied + " writes", journal.isEmpty());
+            journal.close();
+        }
+
+        // 실제로 지운 파일도 같은 모양이다.
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.write(before);
+        file.close();
+        journal = Journal.open(mFile);
+        assertEquals(1, journal.size());
+        journal.removeFirst();
+        journal.close();
+        journal = Journal.open(mFile);
+        assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    private byte[] readFile() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        byte[] data = new byte[(int) file.length()];
+        file.readFully(data);
+        file.close();
+        return data;
+    }
+
+    @Test
+    public void compactsAndGrowsWithoutLosingOrder() throws Exception {
+        Journal journal = Journal.open(mFile);
+        int size = 1000;
+        int next = 0;
+        int first = 0;
+        // 앞에서 지우면서 덧붙여 당겨 오기와 늘리기가 모두 일어나게 한다.
+        for (int round = 0; round < 400; round++) {
+            assertTrue(journal.append(record(next, size), 0, size));
+            next++;
+            if (round % 3 != 0) {
+                assertArrayEquals(record(first, size), journal.next());
+                journal.removeFirst();
+                first++;
+            }
+        }
+        journal.close();
+
+        journal = Journal.open(mFile);
+        assertEquals(next - first, journal.size());
+        for (int i = first; i < next; i++) {
+            assertArrayEquals(record(i, size), journal.next());
+        }
+        assertTrue(journal.capacity() <= 4 * Journal.INITIAL_SIZE);
+        journal.close();
+    }
+
+    @Test
+    public void refusesWhenFull() throws Exception {
+        Journal journal = Journal.open(mFile);
+        byte[] big = new byte[Journal.MAX_RECORD_SIZE / 2];
+        assertTrue(journal.append(big, 0, big.length));
+        assertFalse(journal.append(big, 0, big.length));
+        assertEquals(1, journal.size());
+        journal.close();
+    }
+}
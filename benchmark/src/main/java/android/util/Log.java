@@ -0,0 +1,39 @@
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * JVM 벤치마크용 android.util.Log 대역. 로그캣에 쓰지 않고 받은 글자 수만 센다.
+ * 상수 값은 안드로이드와 같다. common.logger 가 이 클래스를 부르는 비용만 남기기 위해 쓴다.
+ */
+public final class Log {
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    // JIT 가 호출을 없애지 못하도록 결과를 남긴다.
+    private static volatile long sCharacters;
+
+    private Log() {
+    }
+
+    public static int println(int priority, String tag, String msg) {
+        int length = (tag != null ? tag.length() : 0) + msg.length();
+        sCharacters += length;
+        return length;
+    }
+
+    public static String getStackTraceString(Throwable tr) {
+        if (tr == null) {
+            return "";
+        }
+        StringWriter sw = new StringWriter();
+        tr.printStackTrace(new PrintWriter(sw));
+        return sw.toString();
+    }
+}
@@ -0,0 +1,97 @@
+package btcore.co.kr.d2band.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import btcore.co.kr.d2band.bluetoothchat.ConversationFormat;
+import btcore.co.kr.d2band.bluetoothchat.buffer.BufferPool;
+import btcore.co.kr.d2band.bluetoothchat.buffer.PooledBuffer;
+import btcore.co.kr.d2band.bluetoothchat.protocol.Envelope;
+import btcore.co.kr.d2band.bluetoothchat.protocol.Utf8StreamDecoder;
+
+/**
+ * ConversationRenderer 가 받은 메시지와 보낸 메시지로 대화 목록에 넣을 한 줄을 만드는 비용.
+ * 디코딩 스레드 하나가 초당 몇 줄을 만들 수 있는지 가늠한다.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatFormatBenchmark {
+
+    @Param({"16", "256"})
+    public int messageLength;
+
+    // 한글이 섞이면 디코딩 비용이 달라진다.
+    @Param({"ascii", "korean"})
+    public String text;
+
+    private final BufferPool mPool = new BufferPool();
+    private final String mPeerName = "D2 Band";
+    private final Envelope mEnvelope = new Envelope();
+    private final Utf8StreamDecoder mDecoder = new Utf8StreamDecoder();
+    private final StringBuilder mLine = new StringBuilder();
+    private byte[] mMessage;
+
+    @Setup
+    public void setUp() {
+        String unit = "ascii".equals(text) ? "hello " : "안녕하세요 ";
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < messageLength) {
+            sb.append(unit);
+        }
+        byte[] text = sb.substring(0, messageLength).getBytes(ConversationFormat.CHARSET);
+        mEnvelope.set(Envelope.TYPE_TEXT, 1234, System.currentTimeMillis()).setPayload(text, 0, text.length);
+        mMessage = new byte[mEnvelope.encodedSize()];
+        mEnvelope.encode(mMessage, 0);
+    }
+
+    // ConversationRenderer.onMessage
+    @Benchmark
+    public String readLine() throws IOException {
+        PooledBuffer readBuf = mPool.acquire(mMessage.length).put(mMessage, 0, mMessage.length);
+        mEnvelope.decode(readBuf.array(), 0, readBuf.length());
+        String line = ConversationFormat.received(mLine, mPeerName, decodeText());
+        readBuf.release();
+        return line;
+    }
+
+    // 비교용: 예전처럼 String 생성자로 푼다.
+    @Benchmark
+    public String readLineNewString() throws IOException {
+        PooledBuffer readBuf = mPool.acquire(mMessage.length).put(mMessage, 0, mMessage.length);
+        mEnvelope.decode(readBuf.array(), 0, readBuf.length());
+        String line = mPeerName + ":  " + new String(mEnvelope.getPayloadArray(),
+                mEnvelope.getPayloadOffset(), mEnvelope.getPayloadLength(), ConversationFormat.CHARSET);
+        readBuf.release();
+        return line;
+    }
+
+    // ConversationRenderer.onMessageSent
+    @Benchmark
+    public String writeLine() throws IOException {
+        mEnvelope.decode(mMessage, 0, mMessage.length);
+        return ConversationFormat.sent(mLine, decodeText());
+    }
+
+    private CharBuffer decodeText() {
+        mDecoder.reset();
+        return mDecoder.decode(mEnvelope.getPayloadArray(), mEnvelope.getPayloadOffset(),
+                mEnvelope.getPayloadLength(), true);
+    }
+}
@@ -0,0 +1,25 @@
+package btcore.co.kr.d2band.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * 쓴 바이트 수만 세고 버린다.
+ */
+final class CountingOutputStream extends OutputStream {
+
+    private long mCount;
+
+    @Override
+    public void write(int b) {
+        mCount++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        mCount += len;
+    }
+
+    long getCount() {
+        return mCount;
+    }
+}
@@ -0,0 +1,73 @@
+package btcore.co.kr.d2band.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import btcore.co.kr.d2band.bluetoothchat.protocol.Frame;
+import btcore.co.kr.d2band.bluetoothchat.protocol.FrameReader;
+import btcore.co.kr.d2band.bluetoothchat.protocol.FrameWriter;
+
+/**
+ * 프레임 하나를 인코딩(FrameWriter), 디코딩(FrameReader) 하는 비용.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    @Param({"32", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"false", "true"})
+    public boolean checksum;
+
+    private byte[] mPayload;
+    private CountingOutputStream mSink;
+    private FrameWriter mWriter;
+    private FrameReader mReader;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPayload = new byte[payloadSize];
+        new Random(42).nextBytes(mPayload);
+
+        mSink = new CountingOutputStream();
+        mWriter = new FrameWriter(mSink);
+        mWriter.setChecksumEnabled(checksum);
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(encoded);
+        writer.setChecksumEnabled(checksum);
+        writer.writeFrame(Frame.TYPE_DATA, mPayload);
+        mReader = new FrameReader(new LoopingInputStream(encoded.toByteArray()));
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        mWriter.writeFrame(Frame.TYPE_DATA, mPayload);
+        return mSink.getCount();
+    }
+
+    @Benchmark
+    public int decode() throws IOException {
+        mReader.readFrame();
+        return mReader.getPayloadLength();
+    }
+}
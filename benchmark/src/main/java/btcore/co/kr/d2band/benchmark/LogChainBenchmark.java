@@ -0,0 +1,73 @@
+package btcore.co.kr.d2band.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import btcore.co.kr.d2band.common.logger.Log;
+import btcore.co.kr.d2band.common.logger.LogNode;
+import btcore.co.kr.d2band.common.logger.LogWrapper;
+import btcore.co.kr.d2band.common.logger.MessageOnlyLogFilter;
+
+/**
+ * MainActivity 가 만드는 LogNode 연결(LogWrapper → MessageOnlyLogFilter → 화면) 로 로그 한 줄을 보내는 비용.
+ * 화면 대신 글자 수만 세는 노드를 끝에 단다. android.util.Log 는 JVM 대역이라 로그캣 비용은 빠진다.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogChainBenchmark {
+
+    private static final String TAG = "BluetoothChatService";
+
+    // LogView 자리에 다는 노드
+    static final class CountingNode implements LogNode {
+        long characters;
+
+        @Override
+        public void println(int priority, String tag, String msg, Throwable tr) {
+            characters += msg.length();
+        }
+    }
+
+    private final CountingNode mSink = new CountingNode();
+    private int mCount;
+
+    @Setup
+    public void setUp() {
+        LogWrapper logWrapper = new LogWrapper();
+        logWrapper.setNext(new MessageOnlyLogFilter(mSink));
+        Log.setLogNode(logWrapper);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Log.setLogNode(null);
+    }
+
+    @Benchmark
+    public long constantMessage() {
+        Log.d(TAG, "connected");
+        return mSink.characters;
+    }
+
+    // 대부분의 로그처럼 호출하는 쪽에서 문자열을 이어 붙이는 경우
+    @Benchmark
+    public long concatenatedMessage() {
+        Log.d(TAG, "Received frame type=" + 1 + " length=" + (mCount++ & 0xfff));
+        return mSink.characters;
+    }
+}
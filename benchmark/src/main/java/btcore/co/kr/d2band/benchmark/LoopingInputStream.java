@@ -0,0 +1,35 @@
+package btcore.co.kr.d2band.benchmark;
+
+import java.io.InputStream;
+
+/**
+ * 같은 바이트를 끝없이 되풀이해서 돌려주는 스트림.
+ * 미리 인코딩한 프레임을 넣으면 읽는 쪽은 소켓에서 계속 프레임이 들어오는 것처럼 동작한다.
+ */
+final class LoopingInputStream extends InputStream {
+
+    private final byte[] mData;
+    private int mPosition;
+
+    LoopingInputStream(byte[] data) {
+        if (data.length == 0) {
+            throw new IllegalArgumentException("empty data");
+        }
+        this.mData = data;
+    }
+
+    @Override
+    public int read() {
+        int b = mData[mPosition] & 0xff;
+        mPosition = (mPosition + 1) % mData.length;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        int n = Math.min(len, mData.length - mPosition);
+        System.arraycopy(mData, mPosition, b, off, n);
+        mPosition = (mPosition + n) % mData.length;
+        return n;
+    }
+}
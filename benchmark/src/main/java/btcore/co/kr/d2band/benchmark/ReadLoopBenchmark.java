@@ -0,0 +1,88 @@
+package btcore.co.kr.d2band.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import btcore.co.kr.d2band.bluetoothchat.buffer.BufferPool;
+import btcore.co.kr.d2band.bluetoothchat.buffer.PooledBuffer;
+import btcore.co.kr.d2band.bluetoothchat.protocol.Frame;
+import btcore.co.kr.d2band.bluetoothchat.protocol.FrameAssembler;
+import btcore.co.kr.d2band.bluetoothchat.protocol.FrameReader;
+import btcore.co.kr.d2band.bluetoothchat.protocol.FrameWriter;
+
+/**
+ * ConnectedThread 읽기 루프가 DATA 메시지 하나를 처리하는 비용.
+ * 메모리 스트림에서 프레임을 읽고, 조각을 이어 붙이고, 풀 버퍼로 옮긴 뒤 돌려주는 과정을 그대로 따라 한다.
+ * 소켓과 Handler 는 빠져 있다.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadLoopBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int messageSize;
+
+    // 보내는 쪽이 Frame.MAX_FRAGMENT 단위로 나눠 보낸 경우
+    @Param({"false", "true"})
+    public boolean fragmented;
+
+    private FrameReader mReader;
+    private final FrameAssembler mAssembler = new FrameAssembler();
+    private final BufferPool mPool = new BufferPool();
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] message = new byte[messageSize];
+        new Random(42).nextBytes(message);
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(encoded);
+        int fragment = fragmented ? Frame.MAX_FRAGMENT : messageSize;
+        for (int position = 0; position < messageSize; position += fragment) {
+            int length = Math.min(fragment, messageSize - position);
+            int flags = Frame.withChannel(0, Frame.CHANNEL_INTERACTIVE);
+            if (position + length < messageSize) {
+                flags |= Frame.FLAG_MORE;
+            }
+            writer.appendFrame(Frame.TYPE_DATA, flags, message, position, length);
+        }
+        writer.flush();
+        mReader = new FrameReader(new LoopingInputStream(encoded.toByteArray()));
+    }
+
+    @Benchmark
+    public int readMessage() throws IOException {
+        while (true) {
+            int type = mReader.readFrame();
+            if (!mAssembler.add(type, mReader.getFlags(), mReader.getPayload(),
+                    mReader.getPayloadOffset(), mReader.getPayloadLength())) {
+                continue;
+            }
+            PooledBuffer message = mPool.acquire(mAssembler.getPayloadLength())
+                    .put(mAssembler.getPayload(), mAssembler.getPayloadOffset(),
+                            mAssembler.getPayloadLength());
+            int length = message.length();
+            // UI 스레드가 문자열로 바꾼 뒤 돌려주는 것에 해당한다.
+            message.release();
+            return length;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package btcore.co.kr.d2band.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import btcore.co.kr.d2band.bluetoothchat.store.InvertedIndex;
+
+/**
+ * 대화 기록 검색 비용. 한글과 영어가 섞인 짧은 메시지 수십만 개를 색인한 뒤 접두어 검색 한 번에 걸리는 시간.
+ * 짧은 접두어일수록 합쳐야 하는 낱말이 많아 느리다.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchIndexBenchmark {
+
+    @Param({"300000"})
+    public int messages;
+
+    @Param({"블루투스", "연결 끊", "bat", "h"})
+    public String query;
+
+    private static final String[] WORDS = {
+            "블루투스를", "블루투스", "연결이", "연결", "끊겼어요", "끊어졌다", "배터리가", "배터리",
+            "충전", "걸음수", "심박수", "오늘", "내일", "어디야", "지금", "확인해", "주세요", "됐어요",
+            "hello", "hi", "battery", "band", "sync", "ok", "thanks", "sleep", "heart", "rate",
+            "step", "count", "update", "firmware", "v2", "2018", "10", "please", "check", "now",
+    };
+
+    private InvertedIndex mIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        mIndex = new InvertedIndex();
+        StringBuilder text = new StringBuilder();
+        // 뒤쪽 낱말이 드물게 나오도록 고른다.
+        for (int id = 0; id < messages; id++) {
+            text.setLength(0);
+            int words = 2 + random.nextInt(8);
+            for (int w = 0; w < words; w++) {
+                int pick = (int) (WORDS.length * Math.pow(random.nextDouble(), 2));
+                text.append(WORDS[pick]).append(' ');
+            }
+            // 드문 낱말도 섞는다.
+            text.append("msg").append(random.nextInt(50000));
+            mIndex.add(id, text);
+        }
+    }
+
+    // 대화 목록 한 화면 분량
+    @Benchmark
+    public long[] search() {
+        return mIndex.search(query, 50);
+    }
+}